@@ -6,7 +6,6 @@ package client;
 import java.io.*;
 import java.rmi.*;
 
-import server.*;
 import transaction.TransactionId;
 import common.*;
 import protocol.*;
@@ -16,6 +15,23 @@ import protocol.*;
  */
 class Client
 {
+    /**
+     * Print a page of scanned entries.
+     * 
+     * @param page the page
+     */
+    private static void print(ScanResponse page)
+    {
+        for (int i = 0; i < page.keys.size(); i++)
+        {
+            Logger.log("(" + page.keys.get(i) + ", " + page.values.get(i) + ")");
+        }
+        if (page.cursor == null)
+        {
+            Logger.log("Scan complete.");
+        }
+    }
+
     public static void main(String[] args)
     {
         try
@@ -36,7 +52,7 @@ class Client
             }
 
             System.setProperty("sun.rmi.transport.tcp.responseTimeout", String.valueOf(Config.defaultResponseTimeout()));            
-            StoreService store = ServiceRegistry.connect(server, StoreService.class);
+            ClusterClient store = new ClusterClient(server);
             Logger.log("Connected to the server.");
 
             // TODO client should issue COMMIT when it exits if the tid is currently open
@@ -59,12 +75,33 @@ class Client
                     }
                     else
                     {
-                        // TODO check for nested OPENs
-                        
                         // TODO add QueryParser for syntax validation
                         
                         Request request = RequestParser.parse(input);
+                        if (request instanceof OpenRequest && tid != null)
+                        {
+                            Logger.warning("Transaction " + tid + " is already open.");
+                            continue;
+                        }
+                        else if (request instanceof CommitRequest || request instanceof AbortRequest)
+                        {
+                            if (tid == null)
+                            {
+                                Logger.warning("No transaction is open.");
+                                continue;
+                            }
+                            else if (request instanceof CommitRequest)
+                            {
+                                ((CommitRequest) request).tid = tid;
+                            }
+                            else
+                            {
+                                ((AbortRequest) request).tid = tid;
+                            }
+                        }
+
                         Response response = store.process(request, tid);
+                        final TransactionId open = tid;
                         tid = response.accept(new ResponseVisitor<TransactionId, NoThrow>()
                                               {
                                                     @Override
@@ -83,10 +120,6 @@ class Client
                                                         {
                                                             Logger.log("Transaction " + r.tid + " aborted.");
                                                         }
-                                                        else
-                                                        {
-                                                            Logger.error("Unexpected response type for request " + request + ".");
-                                                        }
         
                                                         return null;
                                                     }
@@ -95,7 +128,8 @@ class Client
                                                     public TransactionId visit(ErrorResponse r) throws NoThrow
                                                     {
                                                         Logger.warning(r.toString());
-                                                        return null;
+                                                        // the transaction is over once COMMIT or ABORT fails
+                                                        return request instanceof CommitRequest || request instanceof AbortRequest ? null : open;
                                                     }
         
                                                     @Override
@@ -146,9 +180,82 @@ class Client
                                                             Logger.error("Unexpected response type for request " + request + ".");
                                                         }
                                                         
-                                                        return null;
+                                                        return open;
+                                                    }
+
+                                                    @Override
+                                                    public TransactionId visit(ScanResponse r) throws NoThrow
+                                                    {
+                                                        print(r);
+                                                        return open;
+                                                    }
+
+                                                    @Override
+                                                    public TransactionId visit(MultiGetResponse r) throws NoThrow
+                                                    {
+                                                        for (int i = 0; i < r.keys.size(); i++)
+                                                        {
+                                                            if (r.values.get(i) == null)
+                                                            {
+                                                                Logger.warning("Key " + r.keys.get(i) + " doesn't exist.");
+                                                            }
+                                                            else
+                                                            {
+                                                                Logger.log("(" + r.keys.get(i) + ", " + r.values.get(i) + ")");
+                                                            }
+                                                        }
+                                                        return open;
+                                                    }
+
+                                                    @Override
+                                                    public TransactionId visit(MultiWriteResponse r) throws NoThrow
+                                                    {
+                                                        for (int i = 0; i < r.keys.size(); i++)
+                                                        {
+                                                            final String key = r.keys.get(i);
+                                                            final String prev = r.previous.get(i);
+                                                            if (request instanceof MultiPutRequest)
+                                                            {
+                                                                final String val = ((MultiPutRequest) request).puts.get(i).val;
+                                                                if (prev == null)
+                                                                {
+                                                                    Logger.log("Inserted (" + key + ", " + val + ")");
+                                                                }
+                                                                else if (prev.equals(val))
+                                                                {
+                                                                    Logger.warning("(" + key + ", " + val + ") already exists.");
+                                                                }
+                                                                else
+                                                                {
+                                                                    Logger.log("Replaced (" + key + ", " + prev + ") with (" + key + ", " + val + ")");
+                                                                }
+                                                            }
+                                                            else if (prev == null)
+                                                            {
+                                                                Logger.warning("Key " + key + " doesn't exist.");
+                                                            }
+                                                            else
+                                                            {
+                                                                Logger.log("Deleted (" + key + ", " + prev + ")");
+                                                            }
+                                                        }
+                                                        return open;
                                                     }
                                               });
+
+                        // fetch the remaining pages of a scan one at a time
+                        while (response instanceof ScanResponse && ((ScanResponse) response).cursor != null)
+                        {
+                            response = store.process(((ScanRequest) request).next(((ScanResponse) response).cursor), tid);
+                            if (response instanceof ScanResponse)
+                            {
+                                print((ScanResponse) response);
+                            }
+                            else
+                            {
+                                Logger.warning(response.toString());
+                            }
+                        }
                     }
                 }
                 catch (InvalidRequestException e)
@@ -157,7 +264,7 @@ class Client
                 }
                 catch (RemoteException e)
                 {
-                    // TODO Automatically retry other available severs if none then switch to manual
+                    // none of the servers the client knows could process the request
                     Logger.warning("Service exception.", e);
                     
                     while (true)
@@ -178,12 +285,12 @@ class Client
                             else
                             {
                                 final EndPoint retry = CmdLineParser.parseEndPoint(input, Config.defaultServerPortNumber());
-                                store = ServiceRegistry.connect(retry, StoreService.class);
+                                store = new ClusterClient(retry);
                                 Logger.log("Reconnected to the server.");
                                 break;
                             }
                         }
-                        catch (RemoteException | NotBoundException e1)
+                        catch (RemoteException e1)
                         {
                             Logger.warning("Service unavailable.");
                         }
@@ -205,7 +312,7 @@ class Client
                 }
             }
         }
-        catch (RemoteException | NotBoundException e)
+        catch (RemoteException e)
         {
             Logger.error("Service unavailable. Please try again later or try a different server.");
             Logger.debug(e);
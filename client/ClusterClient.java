@@ -0,0 +1,296 @@
+package client;
+
+import java.rmi.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.*;
+import protocol.*;
+import server.StoreService;
+import server.Topology;
+import transaction.TransactionId;
+
+/**
+ * A client of the cluster sending every request straight to the server best
+ * placed to answer it, from the topology of the cluster it keeps.
+ *
+ * A write goes to the coordinator of the shard of its keys, rather than
+ * through a replicated server forwarding it there, and a read goes to the
+ * least loaded replicated server of the shard of its keys, by the requests it
+ * has in flight and the time it has been taking to answer them. A SCAN goes to
+ * the least loaded replicated server of any shard, which merges the shards.
+ * The requests of a transaction, and PRINT, go to the server the client has
+ * been given, where the transaction is open.
+ *
+ * Once a server fails, the client takes the topology again from any server it
+ * knows and retries the request on another server, as long as the request
+ * hasn't been sent or can safely be sent twice.
+ */
+public class ClusterClient
+{
+    private static final int ATTEMPTS = 3;
+
+    /**
+     * The load of a server as seen by the client.
+     */
+    private static class Load
+    {
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile double latency; // smoothed in nanoseconds
+
+        double score()
+        {
+            return (inFlight.get() + 1) * latency;
+        }
+
+        void answered(long nanos)
+        {
+            inFlight.decrementAndGet();
+            latency = latency == 0 ? nanos : 0.875 * latency + 0.125 * nanos;
+        }
+    }
+
+    private final ConcurrentHashMap<EndPoint, StoreService> stores = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<EndPoint, Load> loads = new ConcurrentHashMap<>();
+    private volatile EndPoint home;
+    private volatile Topology topology;
+
+    /**
+     * Connect to a cluster.
+     *
+     * @param server any server of the cluster
+     * @throws RemoteException if the server is unavailable.
+     */
+    public ClusterClient(EndPoint server) throws RemoteException
+    {
+        this.home = server;
+        this.topology = store(server).topology();
+        Logger.debug(() -> "Connected to the cluster. " + topology);
+    }
+
+    /**
+     * @return the topology of the cluster as last taken.
+     */
+    public Topology topology()
+    {
+        return topology;
+    }
+
+    /**
+     * Process a request on the server best placed to answer it.
+     *
+     * @param request the request
+     * @param tid the transaction Id; null if none
+     * @return the response to the request.
+     * @throws RemoteException if no server could process the request.
+     */
+    public Response process(Request request, TransactionId tid) throws RemoteException
+    {
+        final HashSet<EndPoint> failed = new HashSet<>();
+        for (int attempt = 1; ; attempt++)
+        {
+            final EndPoint server = target(request, tid, failed);
+            try
+            {
+                return process(server, request, tid);
+            }
+            catch (RemoteException e)
+            {
+                if (attempt == ATTEMPTS || !retriable(request, tid, e))
+                {
+                    throw e;
+                }
+                Logger.warning("Server " + server + " failed. Taking the topology of the cluster again.");
+                failed.add(server);
+                stores.remove(server);
+                refresh(failed);
+            }
+        }
+    }
+
+    private Response process(EndPoint server, Request request, TransactionId tid) throws RemoteException
+    {
+        final Load load = loads.computeIfAbsent(server, (EndPoint p) -> new Load());
+        final long begin = System.nanoTime();
+        load.inFlight.incrementAndGet();
+        try
+        {
+            final Response response = store(server).process(request, tid);
+            load.answered(System.nanoTime() - begin);
+            return response;
+        }
+        catch (RemoteException | RuntimeException e)
+        {
+            load.inFlight.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the request can be sent again after failing.
+     */
+    private static boolean retriable(Request request, TransactionId tid, RemoteException e)
+    {
+        if (tid != null || request instanceof CommitRequest || request instanceof AbortRequest)
+        {
+            return false; // the transaction is open on the server that failed
+        }
+        else if (e instanceof ConnectException || e instanceof ConnectIOException || e instanceof NoSuchObjectException)
+        {
+            return true; // never sent
+        }
+        return request instanceof GetRequest || request instanceof MultiGetRequest || request instanceof ScanRequest || request instanceof PrintRequest;
+    }
+
+    /**
+     * Choose the server of a request, avoiding the servers that have failed.
+     */
+    private EndPoint target(Request request, TransactionId tid, Set<EndPoint> failed)
+    {
+        final Topology t = topology;
+        if (tid != null || request instanceof OpenRequest || request instanceof CommitRequest || request instanceof AbortRequest || request instanceof PrintRequest)
+        {
+            if (failed.contains(home))
+            {
+                home = t.coordinator(0);
+            }
+            return home;
+        }
+
+        final List<String> keys = keys(request);
+        if (keys == null)
+        {
+            // a SCAN merges the shards wherever it goes
+            return leastLoaded(t, ThreadLocalRandom.current().nextInt(t.size()), failed);
+        }
+
+        final int shard = t.shard(keys.get(0));
+        if (request instanceof GetRequest || request instanceof MultiGetRequest)
+        {
+            return leastLoaded(t, shard, failed);
+        }
+        return t.coordinator(shard);
+    }
+
+    private static List<String> keys(Request request)
+    {
+        if (request instanceof GetRequest)
+        {
+            return Collections.singletonList(((GetRequest) request).key);
+        }
+        else if (request instanceof MultiGetRequest)
+        {
+            return ((MultiGetRequest) request).keys;
+        }
+        else if (request instanceof PutRequest)
+        {
+            return Collections.singletonList(((PutRequest) request).key);
+        }
+        else if (request instanceof DeleteRequest)
+        {
+            return Collections.singletonList(((DeleteRequest) request).key);
+        }
+        else if (request instanceof MultiPutRequest)
+        {
+            return Collections.singletonList(((MultiPutRequest) request).puts.get(0).key);
+        }
+        else if (request instanceof MultiDeleteRequest)
+        {
+            return ((MultiDeleteRequest) request).keys;
+        }
+        return null;
+    }
+
+    /**
+     * @return the least loaded replicated server of a shard that hasn't
+     *         failed; the coordinator if there is none.
+     */
+    private EndPoint leastLoaded(Topology t, int shard, Set<EndPoint> failed)
+    {
+        final List<EndPoint> replicas = t.replicas(shard);
+        EndPoint best = null;
+        double lowest = Double.MAX_VALUE;
+        // from a random server, so that the servers not timed yet share the load
+        final int start = replicas.isEmpty() ? 0 : ThreadLocalRandom.current().nextInt(replicas.size());
+        for (int i = 0; i < replicas.size(); i++)
+        {
+            final EndPoint p = replicas.get((start + i) % replicas.size());
+            final Load load = loads.get(p);
+            final double score = load == null ? 0 : load.score();
+            if (!failed.contains(p) && score < lowest)
+            {
+                best = p;
+                lowest = score;
+            }
+        }
+        return best == null ? t.coordinator(shard) : best;
+    }
+
+    /**
+     * Take the topology of the cluster again from the first server that
+     * answers among the servers known, the coordinators first as they keep
+     * the members of their shards.
+     */
+    private void refresh(Set<EndPoint> failed)
+    {
+        final LinkedHashSet<EndPoint> known = new LinkedHashSet<>();
+        final Topology t = topology;
+        for (int s = 0; s < t.size(); s++)
+        {
+            known.add(t.coordinator(s));
+        }
+        known.add(home);
+        for (int s = 0; s < t.size(); s++)
+        {
+            known.addAll(t.replicas(s));
+        }
+        known.removeAll(failed);
+
+        for (EndPoint p : known)
+        {
+            try
+            {
+                topology = store(p).topology();
+                Logger.debug(() -> "Took the topology of the cluster from " + p + ". " + topology);
+                return;
+            }
+            catch (RemoteException e)
+            {
+                stores.remove(p);
+            }
+        }
+        Logger.warning("No server of the cluster could give its topology.");
+    }
+
+    private StoreService store(EndPoint server) throws RemoteException
+    {
+        StoreService store = stores.get(server);
+        if (store == null)
+        {
+            try
+            {
+                store = ServiceRegistry.connect(server, StoreService.class);
+            }
+            catch (NotBoundException e)
+            {
+                throw new ConnectException("No store service on " + server + ".", e);
+            }
+            stores.put(server, store);
+        }
+        return store;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder s = new StringBuilder(String.valueOf(topology));
+        loads.forEach((EndPoint p, Load l) ->
+                      {
+                          s.append(String.format("%n%s [in flight=%d, latency=%.2f ms]", p, l.inFlight.get(), l.latency / TimeUnit.MILLISECONDS.toNanos(1)));
+                      });
+        return s.toString();
+    }
+}
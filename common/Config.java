@@ -19,6 +19,128 @@ public class Config
         return "./kv.store";
     }
 
+    /**
+     * @param port the port number of the server owning the log
+     * @return path to the write-ahead log of committed requests.
+     */
+    public static String defaultWALPath(int port)
+    {
+        return "./kv." + port + ".wal";
+    }
+
+    /**
+     * @return the interval between background checkpoints of the key value store
+     *         in milliseconds. Set by -Dkv.checkpoint.interval.
+     */
+    public static long checkpointInterval()
+    {
+        return Long.getLong("kv.checkpoint.interval", 60000);
+    }
+
+    /**
+     * @return the maximum bytes per second written by a checkpoint; unlimited if
+     *         not positive. Set by -Dkv.checkpoint.rate.
+     */
+    public static long checkpointBytesPerSecond()
+    {
+        return Long.getLong("kv.checkpoint.rate", 32 << 20);
+    }
+
+    /**
+     * @return true if a key value store opened from a snapshot loads all of it
+     *         into memory in the background; otherwise the keys not written since
+     *         keep being read from the mapped snapshot. Disabled by
+     *         -Dkv.snapshot.materialize=false.
+     */
+    public static boolean materializeSnapshot()
+    {
+        return !"false".equals(System.getProperty("kv.snapshot.materialize"));
+    }
+
+    /**
+     * @return the length of a tick of the timer wheel expiring keys with a TTL in
+     *         milliseconds. Set by -Dkv.expiry.tick.
+     */
+    public static long expiryTick()
+    {
+        return Long.getLong("kv.expiry.tick", 100);
+    }
+
+    /**
+     * @return the byte budget of the key value store in cache mode, in which the
+     *         coordinator evicts the keys least worth keeping once it is
+     *         exceeded; not positive outside cache mode. Set by -Dkv.cache.bytes.
+     */
+    public static long cacheBytes()
+    {
+        return Long.getLong("kv.cache.bytes", 0);
+    }
+
+    /**
+     * @return the length from which values are compressed by the server a PUT
+     *         enters; not positive to never compress. Set by
+     *         -Dkv.compress.threshold.
+     */
+    public static int compressionThreshold()
+    {
+        return Integer.getInteger("kv.compress.threshold", 1024);
+    }
+
+    /**
+     * @return the storage engine of the key value store: "heap", "offheap",
+     *         "lsm" or the class name of a server.StorageEngine. Set by
+     *         -Dkv.engine or the --engine option of the server;
+     *         -Dkv.offheap=true still selects "offheap".
+     */
+    public static String kvStoreEngine()
+    {
+        return System.getProperty("kv.engine", Boolean.getBoolean("kv.offheap") ? "offheap" : "heap");
+    }
+
+    /**
+     * @return the directory under which the LSM engine keeps its tables. Set by
+     *         -Dkv.lsm.dir.
+     */
+    public static String lsmDirectory()
+    {
+        return System.getProperty("kv.lsm.dir", "./kv.lsm");
+    }
+
+    /**
+     * @return the approximate heap bytes of an LSM memtable before it is flushed
+     *         to disk. Set by -Dkv.lsm.memtable.
+     */
+    public static long lsmMemtableBytes()
+    {
+        return Long.getLong("kv.lsm.memtable", 16 << 20);
+    }
+
+    /**
+     * @return the target size of an LSM table in bytes. Set by -Dkv.lsm.table.
+     */
+    public static long lsmTableBytes()
+    {
+        return Long.getLong("kv.lsm.table", 8 << 20);
+    }
+
+    /**
+     * @return the bytes of table blocks cached on the heap by the LSM engine. Set
+     *         by -Dkv.lsm.cache.
+     */
+    public static long lsmBlockCacheBytes()
+    {
+        return Long.getLong("kv.lsm.cache", 64 << 20);
+    }
+
+    /**
+     * @return the number of threads compacting LSM tables. Set by
+     *         -Dkv.lsm.compaction.threads.
+     */
+    public static int lsmCompactionThreads()
+    {
+        return Integer.getInteger("kv.lsm.compaction.threads", 2);
+    }
+
     /**
      * 
      * @return path to the previously saved id store.
@@ -49,9 +171,34 @@ public class Config
         return ":";
     }
     
+    /**
+     * @return true if debug messages and RMI calls are logged. Set by -Dkv.debug.
+     */
     public static boolean debugMode()
     {
-        return true;
+        return Boolean.getBoolean("kv.debug");
+    }
+
+    /**
+     * @return the lowest level of the logged messages, one of debug, info,
+     *         warning and error. Set by -Dkv.log.level; debug in debug mode and
+     *         info otherwise.
+     */
+    public static Logger.Level logLevel()
+    {
+        String level = System.getProperty("kv.log.level");
+        if (level == null)
+        {
+            return debugMode() ? Logger.Level.DEBUG : Logger.Level.INFO;
+        }
+        try
+        {
+            return Logger.Level.valueOf(level.toUpperCase());
+        }
+        catch (IllegalArgumentException e)
+        {
+            return Logger.Level.INFO;
+        }
     }
 
     public static boolean exitWhenCoordinatorFails()
@@ -68,6 +215,131 @@ public class Config
         return 3000;
     }
     
+    /**
+     * @return the longest deadline of a call the coordinator broadcasts to the
+     *         replicated servers in milliseconds, after which a server is
+     *         considered unresponsive, and the deadline until the calls to a
+     *         server have been timed. It is shorter than the response timeout
+     *         so that a stalled server doesn't fail the client waiting for the
+     *         coordinator. Set by -Dkv.fanout.timeout.
+     */
+    public static long fanoutTimeout()
+    {
+        return Long.getLong("kv.fanout.timeout", 1000);
+    }
+
+    /**
+     * @return the shortest timeout in milliseconds of a call the coordinator
+     *         broadcasts, whatever the calls to the server usually take. Set by
+     *         -Dkv.call.timeout.min.
+     */
+    public static long minCallTimeout()
+    {
+        return Long.getLong("kv.call.timeout.min", 250);
+    }
+
+    /**
+     * @return the interval in milliseconds between the heartbeats the
+     *         coordinator sends every replicated server. Set by
+     *         -Dkv.heartbeat.interval.
+     */
+    public static long heartbeatInterval()
+    {
+        return Long.getLong("kv.heartbeat.interval", 100);
+    }
+
+    /**
+     * @return the suspicion from which the coordinator excludes a replicated
+     *         server as failed, as -log10 of the probability that its heartbeat
+     *         is that late. Set by -Dkv.phi.threshold.
+     */
+    public static double phiThreshold()
+    {
+        return Double.parseDouble(System.getProperty("kv.phi.threshold", "8"));
+    }
+
+    /**
+     * @return the maximum number of client writes the coordinator commits in a
+     *         single two-phase commit and PAXOS round. Set by -Dkv.batch.size;
+     *         1 commits every write on its own.
+     */
+    public static int batchSize()
+    {
+        return Integer.getInteger("kv.batch.size", 64);
+    }
+
+    /**
+     * @return the longest time in microseconds the coordinator waits for more
+     *         writes to join a batch while other batches are being committed.
+     *         Set by -Dkv.batch.window.
+     */
+    public static long batchWindow()
+    {
+        return Long.getLong("kv.batch.window", 2000);
+    }
+
+    /**
+     * @return the most writes the coordinator queues for a replicated server
+     *         lagging behind the writes completed without it, before the next
+     *         writes wait. Set by -Dkv.commit.backlog.
+     */
+    public static int commitBacklog()
+    {
+        return Integer.getInteger("kv.commit.backlog", 1024);
+    }
+
+    /**
+     * @return the endpoints of the coordinators of the shards the key space is
+     *         split across, in the same order on every server; empty if the
+     *         key space isn't sharded. Set by -Dkv.shards as a comma-separated
+     *         list.
+     */
+    public static String[] shards()
+    {
+        final String shards = System.getProperty("kv.shards", "").trim();
+        return shards.isEmpty() ? new String[0] : shards.split("\\s*,\\s*");
+    }
+
+    /**
+     * @return the number of chunks of the coordinator state a joining server
+     *         takes at a time. Set by -Dkv.transfer.threads.
+     */
+    public static int transferThreads()
+    {
+        return Integer.getInteger("kv.transfer.threads", 4);
+    }
+
+    /**
+     * @return the most requests committed since a joining server last caught
+     *         up that it can register with. Set by -Dkv.join.backlog.
+     */
+    public static int joinBacklog()
+    {
+        return Integer.getInteger("kv.join.backlog", 64);
+    }
+
+    /**
+     * @return the duration in milliseconds of the read leases the coordinator
+     *         grants the replicated servers, during which they answer reads
+     *         locally. The coordinator waits as long before excluding an
+     *         unresponsive server. Set by -Dkv.lease.duration; 0 lets the
+     *         servers answer reads locally without any lease.
+     */
+    public static long leaseDuration()
+    {
+        return Long.getLong("kv.lease.duration", 2000);
+    }
+
+    /**
+     * @return the time in milliseconds after which a server drops an open
+     *         transaction its client hasn't used, as if it has been aborted.
+     *         Set by -Dkv.txn.timeout.
+     */
+    public static long transactionTimeout()
+    {
+        return Long.getLong("kv.txn.timeout", 60000);
+    }
+
     /**
      * @return the default number of threads used by PAXOS.
      */
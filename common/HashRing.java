@@ -0,0 +1,58 @@
+package common;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The consistent hashing of keys to the shards of the key space. Every shard
+ * has a number of points on a ring of hashes, and a key belongs to the shard
+ * of the first point from its hash on, so adding a shard only moves the keys
+ * taken by its points.
+ */
+public class HashRing
+{
+    private static final int POINTS = 128; // per shard
+
+    private final TreeMap<Integer, Integer> ring = new TreeMap<>();
+
+    /**
+     * @param shards the names of the shards, the same in the same order
+     *        wherever the ring is built
+     */
+    public HashRing(String[] shards)
+    {
+        for (int s = 0; s < shards.length; s++)
+        {
+            for (int i = 0; i < POINTS; i++)
+            {
+                ring.put(hash(shards[s] + "#" + i), s);
+            }
+        }
+    }
+
+    private static int hash(String s)
+    {
+        // the finalizer of MurmurHash3, as String.hashCode() clusters similar strings
+        int h = s.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @param key a key
+     * @return the index of the shard of the key; 0 if there is no shard.
+     */
+    public int shard(String key)
+    {
+        if (ring.isEmpty())
+        {
+            return 0;
+        }
+        final Map.Entry<Integer, Integer> point = ring.ceilingEntry(hash(key));
+        return (point == null ? ring.firstEntry() : point).getValue();
+    }
+}
@@ -1,25 +1,117 @@
 package common;
 
 import java.io.PrintStream;
-import java.text.SimpleDateFormat;
-import java.util.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
 /**
- * 
+ *
  * These are the thread-safe logging interfaces. It logs regular messages to
  * STDOUT, warnings and errors to STDERR with the current time stamp (in
  * milliseconds precision).
  *
+ * Messages below Config.logLevel() are discarded before being built, and
+ * messages given as suppliers are only built, by the logging thread, when
+ * enabled. Logging a message only claims a slot of a lock-free ring buffer,
+ * which a background thread drains to the streams. Regular and debug messages are dropped and counted
+ * while the ring is full, whereas warnings and errors are then written
+ * directly.
+ *
  */
 public class Logger
 {
     /**
-     * 
+     * The logging levels in increasing severity.
+     */
+    public enum Level
+    {
+        DEBUG, INFO, WARNING, ERROR
+    }
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+
+    // the kinds of entries, besides the levels
+    private static final int PROMPT = -1;
+    private static final int NEWLINE = -2;
+
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd.HH.mm.ss.").withZone(ZoneId.systemDefault());
+
+    private static final Level LEVEL = Config.logLevel();
+    private static final Slot[] RING = new Slot[CAPACITY];
+    private static final AtomicLong TAIL = new AtomicLong();
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final Thread WRITER;
+    private static volatile boolean sleeping;
+    private static volatile boolean closed;
+    private static volatile Second second = new Second(0);
+    private static long head; // written by the writer thread only
+    private static long reported; // the dropped messages reported so far
+
+    /**
+     * An entry of the ring, reused once written.
+     */
+    private static class Slot
+    {
+        volatile long sequence;
+        int kind;
+        long time;
+        String message;
+    }
+
+    /**
+     * The time stamp prefix of a second, so that only the milliseconds are
+     * formatted for every message.
+     */
+    private static class Second
+    {
+        final long second;
+        final String prefix;
+
+        Second(long second)
+        {
+            this.second = second;
+            this.prefix = "[" + FORMAT.format(Instant.ofEpochSecond(second));
+        }
+    }
+
+    static
+    {
+        for (int i = 0; i < CAPACITY; i++)
+        {
+            RING[i] = new Slot();
+            RING[i].sequence = i;
+        }
+        WRITER = new Thread(Logger::drain, "logger");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Logger::close, "logger-shutdown"));
+    }
+
+    /**
+     *
      * @return the current time stamp in milliseconds precision.
      */
     public static String timeStamp()
     {
-        return "[" + new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss.SSS").format(new Date()) + "]";
+        return timeStamp(System.currentTimeMillis());
+    }
+
+    private static String timeStamp(long time)
+    {
+        Second s = second;
+        if (s.second != time / 1000)
+        {
+            s = new Second(time / 1000);
+            second = s;
+        }
+        int ms = (int) (time % 1000);
+        return s.prefix + (ms < 100 ? (ms < 10 ? "00" : "0") : "") + ms + "]";
     }
 
     public static PrintStream getLogStream()
@@ -37,49 +129,254 @@ public class Logger
         return System.err;
     }
 
+    /**
+     * @param level the level
+     * @return true if the messages of the level are logged.
+     */
+    public static boolean isEnabled(Level level)
+    {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    /**
+     * @return the number of messages dropped while the ring was full.
+     */
+    public static long dropped()
+    {
+        return DROPPED.sum();
+    }
+
+    /**
+     * Append an entry to the ring, or write it directly if the ring is full and
+     * it mustn't be dropped.
+     */
+    private static void append(int kind, String message)
+    {
+        final long time = System.currentTimeMillis();
+        if (!closed)
+        {
+            long pos = TAIL.get();
+            while (true)
+            {
+                final Slot s = RING[(int) (pos & MASK)];
+                final long diff = s.sequence - pos;
+                if (diff == 0)
+                {
+                    if (TAIL.compareAndSet(pos, pos + 1))
+                    {
+                        s.kind = kind;
+                        s.time = time;
+                        s.message = message;
+                        s.sequence = pos + 1; // publish
+                        if (sleeping)
+                        {
+                            LockSupport.unpark(WRITER);
+                        }
+                        return;
+                    }
+                    pos = TAIL.get();
+                }
+                else if (diff < 0) // full
+                {
+                    if (kind < Level.WARNING.ordinal())
+                    {
+                        DROPPED.increment();
+                        return;
+                    }
+                    break;
+                }
+                else
+                {
+                    pos = TAIL.get();
+                }
+            }
+        }
+
+        final StringBuilder out = new StringBuilder();
+        final StringBuilder err = new StringBuilder();
+        format(kind, time, message, out, err);
+        flush(out, err);
+    }
+
+    /**
+     * Build a message on the logging thread, so that the writer thread neither
+     * runs the supplier nor keeps what it captures.
+     */
+    private static String build(Supplier<String> supplier)
+    {
+        try
+        {
+            return supplier.get();
+        }
+        catch (RuntimeException e)
+        {
+            return "Failed to build a log message: " + e;
+        }
+    }
+
+    private static void format(int kind, long time, String msg, StringBuilder out, StringBuilder err)
+    {
+        if (kind == NEWLINE)
+        {
+            out.append(System.lineSeparator());
+            return;
+        }
+
+        if (kind == PROMPT)
+        {
+            out.append(timeStamp(time)).append(' ').append(msg);
+        }
+        else if (kind == Level.INFO.ordinal())
+        {
+            out.append(timeStamp(time)).append(' ').append(msg).append(System.lineSeparator());
+        }
+        else
+        {
+            final String tag = kind == Level.DEBUG.ordinal() ? " Debug: " : kind == Level.WARNING.ordinal() ? " Warning: " : " Error: ";
+            err.append(timeStamp(time)).append(tag).append(msg).append(System.lineSeparator());
+        }
+    }
+
+    private static void flush(StringBuilder out, StringBuilder err)
+    {
+        if (out.length() > 0)
+        {
+            synchronized (getLogStream())
+            {
+                getLogStream().print(out);
+                getLogStream().flush();
+            }
+        }
+        if (err.length() > 0)
+        {
+            synchronized (getErrorStream())
+            {
+                getErrorStream().print(err);
+                getErrorStream().flush();
+            }
+        }
+    }
+
+    /**
+     * Write the entries of the ring in order until the ring is empty.
+     */
+    private static void write()
+    {
+        final StringBuilder out = new StringBuilder();
+        final StringBuilder err = new StringBuilder();
+        while (true)
+        {
+            out.setLength(0);
+            err.setLength(0);
+            int n = 0;
+            for (Slot s = RING[(int) (head & MASK)]; s.sequence == head + 1 && n < CAPACITY; s = RING[(int) (head & MASK)])
+            {
+                format(s.kind, s.time, s.message, out, err);
+                s.message = null;
+                s.sequence = head + CAPACITY; // release
+                head++;
+                n++;
+            }
+
+            final long dropped = DROPPED.sum();
+            if (dropped != reported)
+            {
+                err.append(timeStamp()).append(" Warning: Dropped ").append(dropped - reported).append(" log messages.").append(System.lineSeparator());
+                reported = dropped;
+            }
+            if (n == 0 && err.length() == 0)
+            {
+                return;
+            }
+            flush(out, err);
+        }
+    }
+
+    private static void drain()
+    {
+        while (!closed)
+        {
+            write();
+            sleeping = true;
+            if (RING[(int) (head & MASK)].sequence != head + 1)
+            {
+                LockSupport.parkNanos(100_000_000L);
+            }
+            sleeping = false;
+        }
+    }
+
+    /**
+     * Write what is left in the ring and write directly from then on.
+     */
+    private static void close()
+    {
+        closed = true;
+        LockSupport.unpark(WRITER);
+        try
+        {
+            WRITER.join(1000);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        write();
+    }
+
     /**
      * Log regular messages to STDOUT.
-     * 
+     *
      * @param msg the message to be logged.
      */
     public static void log(String msg)
     {
-        synchronized (Logger.getLogStream())
+        if (isEnabled(Level.INFO))
+        {
+            append(Level.INFO.ordinal(), msg);
+        }
+    }
+
+    /**
+     * Log a regular message to STDOUT, built only if it is enabled.
+     *
+     * @param msg the message to be logged.
+     */
+    public static void log(Supplier<String> msg)
+    {
+        if (isEnabled(Level.INFO))
         {
-            getLogStream().println(timeStamp() + " " + msg);
+            append(Level.INFO.ordinal(), build(msg));
         }
     }
 
     /**
      * Log the input prompt to STDOUT.
-     * 
+     *
      * @param msg the input prompt
      */
     public static void input(String msg)
     {
-        synchronized (Logger.getLogStream())
-        {
-            getLogStream().print(timeStamp() + " " + msg);
-        }
+        append(PROMPT, msg);
     }
 
     /**
      * Log warning messages to STDERR.
-     * 
+     *
      * @param msg the message to be logged.
      */
     public static void warning(String msg)
     {
-        synchronized (Logger.getWarningStream())
+        if (isEnabled(Level.WARNING))
         {
-            getWarningStream().println(timeStamp() + " Warning: " + msg);
+            append(Level.WARNING.ordinal(), msg);
         }
     }
 
     /**
      * Log an exception by logging its message. If the message is null, then the
      * actual exception will be logged.
-     * 
+     *
      * @param e the exception to be logged
      */
     public static void warning(Exception e)
@@ -91,7 +388,7 @@ public class Logger
     /**
      * Log a message along with an exception. If the exception message is null, then
      * only the message will be logged.
-     * 
+     *
      * @param msg the message to be logged
      * @param e   the exception to be logged
      */
@@ -102,21 +399,18 @@ public class Logger
 
     /**
      * Log error messages to STDERR.
-     * 
+     *
      * @param msg the message to be logged
      */
     public static void error(String msg)
     {
-        synchronized (Logger.getErrorStream())
-        {
-            getErrorStream().println(timeStamp() + " Error: " + msg);
-        }
+        append(Level.ERROR.ordinal(), msg);
     }
 
     /**
      * Log an exception by logging its message. If the message is null, then the
      * actual exception will be logged.
-     * 
+     *
      * @param e the exception to be logged
      */
     public static void error(Exception e)
@@ -128,7 +422,7 @@ public class Logger
     /**
      * Log a message along with an exception. If the exception message is null, then
      * only the message will be logged.
-     * 
+     *
      * @param msg the message to be logged
      * @param e   the exception to be logged
      */
@@ -142,49 +436,62 @@ public class Logger
      */
     public static void newline()
     {
-        synchronized (Logger.getLogStream())
-        {
-            getLogStream().println();
-        }
+        append(NEWLINE, null);
     }
 
     /**
      * Log a debug message in STDERR.
-     * 
+     *
      * @param msg the message to be logged
      */
     public static void debug(String msg)
     {
-        if (Config.debugMode())
+        if (isEnabled(Level.DEBUG))
         {
-            synchronized (Logger.getErrorStream())
-            {
-                getErrorStream().println(timeStamp() + " Debug: " + msg);
-            }
+            append(Level.DEBUG.ordinal(), msg);
+        }
+    }
+
+    /**
+     * Log a debug message in STDERR, built only if it is enabled.
+     *
+     * @param msg the message to be logged
+     */
+    public static void debug(Supplier<String> msg)
+    {
+        if (isEnabled(Level.DEBUG))
+        {
+            append(Level.DEBUG.ordinal(), build(msg));
         }
     }
 
     /**
      * Log a debug exception by logging its message. If the message is null, then
      * the actual exception will be logged.
-     * 
+     *
      * @param e the exception to be logged
      */
     public static void debug(Exception e)
     {
-        String m = e.getMessage();
-        Logger.debug(m == null ? ("Caught unknown exception:" + e) : m);
+        if (isEnabled(Level.DEBUG))
+        {
+            String m = e.getMessage();
+            Logger.debug(m == null ? ("Caught unknown exception:" + e) : m);
+        }
     }
 
     /**
      * Log a debug message along with a debug exception. If the exception message is
      * null, then only the message will be logged.
-     * 
+     *
      * @param msg the message to be logged
      * @param e   the exception to be logged
      */
     public static void debug(String msg, Exception e)
     {
-        Logger.debug(Utils.combine(msg, e));
+        if (isEnabled(Level.DEBUG))
+        {
+            Logger.debug(Utils.combine(msg, e));
+        }
     }
 }
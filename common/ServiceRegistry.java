@@ -29,6 +29,8 @@ public class ServiceRegistry
     }
     
     private Registry registry;
+    // the started services, which RMI only references weakly once no client holds a lease
+    private final Set<Remote> services = Collections.synchronizedSet(new HashSet<>());
     
     /**
      * Create a registry on a specified port.
@@ -75,6 +77,7 @@ public class ServiceRegistry
     {
         Class<?> r = find(o.getClass());
         registry.rebind(r.getSimpleName(), UnicastRemoteObject.exportObject(o, 0));
+        services.add(o);
         Logger.log("Service " + r.getSimpleName() + " has started.");
     }
     
@@ -91,6 +94,7 @@ public class ServiceRegistry
         Class<?> r = find(o.getClass());
         registry.unbind(r.getSimpleName());
         UnicastRemoteObject.unexportObject(o, true);
+        services.remove(o);
         Logger.log("Service " + r.getSimpleName() + " has been shutdown.");
     }
 }
\ No newline at end of file
@@ -0,0 +1,76 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * 
+ * This class represents the internal BATCH request issued by the coordinator
+ * to commit the writes of several clients in a single two-phase commit and
+ * PAXOS round. The writes are applied in order as a single version of the
+ * store. The batch is committed with the strongest durability of its writes.
+ *
+ */
+public class BatchRequest extends Request
+{
+    private static final long serialVersionUID = 1L;
+
+    public ArrayList<Request> requests;
+
+    /**
+     * Create a BatchRequest.
+     * 
+     * @param requests the writes to commit together
+     */
+    public BatchRequest(ArrayList<Request> requests)
+    {
+        this.requests = requests;
+        Durability durability = Durability.ONE;
+        for (Request r : requests)
+        {
+            durability = Durability.max(durability, r.durability());
+        }
+        with(durability);
+    }
+
+    /**
+     * Apply a RequestVisitor.
+     * 
+     * @param <T> the return type
+     * @param <E> the exception type
+     * @return an object with type T.
+     */
+    @Override
+    public <T, E extends Throwable> T accept(RequestVisitor<T, E> v) throws E
+    {
+        return v.visit(this);
+    }
+
+    /**
+     * Convert the Request to String.
+     */
+    @Override
+    public String toString()
+    {
+        return "BATCH " + requests.size() + " requests";
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(requests);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        BatchRequest other = (BatchRequest) obj;
+        return Objects.equals(requests, other.requests);
+    }
+}
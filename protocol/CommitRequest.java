@@ -1,14 +1,25 @@
 package protocol;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.Objects;
 
 import transaction.TransactionId;
 
+/**
+ * 
+ * This class represents the COMMIT request of the open transaction of a
+ * client. The server the transaction is open on fills in what it has read and
+ * buffered before passing the request on to the coordinator.
+ *
+ */
 public class CommitRequest extends Request
 {
     private static final long serialVersionUID = 1L;
 
     public TransactionId tid;
+    public LinkedHashMap<String, String> reads; // the stored values read by key; null if a key didn't exist
+    public ArrayList<Request> writes; // the PUT and DELETE requests to be committed together
     
     public CommitRequest(TransactionId tid)
     {
@@ -35,12 +46,12 @@ public class CommitRequest extends Request
         if (!(obj instanceof CommitRequest))
             return false;
         CommitRequest other = (CommitRequest) obj;
-        return Objects.equals(tid, other.tid);
+        return Objects.equals(tid, other.tid) && Objects.equals(reads, other.reads) && Objects.equals(writes, other.writes);
     }
 
     @Override
     public int hashCode()
     {
-        return Objects.hash(tid);
+        return Objects.hash(tid, reads, writes);
     }
 }
@@ -0,0 +1,39 @@
+package protocol;
+
+/**
+ * 
+ * The number of servers a write has to be committed on before the client gets
+ * its response, from the weakest to the strongest. The write is committed on
+ * every other server later, in commit order.
+ *
+ */
+public enum Durability
+{
+    /**
+     * Once the coordinator has applied the write.
+     */
+    ONE,
+
+    /**
+     * Once a majority of the servers, counting the coordinator, has applied
+     * the write.
+     */
+    QUORUM,
+
+    /**
+     * Once every server in the cluster has applied the write, the default.
+     */
+    ALL;
+
+    /**
+     * @param a a durability; null stands for ALL
+     * @param b another durability; null stands for ALL
+     * @return the stronger of the two.
+     */
+    public static Durability max(Durability a, Durability b)
+    {
+        final Durability x = a == null ? ALL : a;
+        final Durability y = b == null ? ALL : b;
+        return x.compareTo(y) >= 0 ? x : y;
+    }
+}
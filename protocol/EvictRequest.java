@@ -0,0 +1,69 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * 
+ * This class represents the internal EVICT request issued by the coordinator
+ * in cache mode to remove a batch of keys chosen by its eviction policy, so
+ * that all the servers evict the same keys.
+ *
+ */
+public class EvictRequest extends Request
+{
+    private static final long serialVersionUID = 1L;
+
+    public ArrayList<String> keys;
+
+    /**
+     * Create an EvictRequest.
+     * 
+     * @param keys the keys to evict
+     */
+    public EvictRequest(ArrayList<String> keys)
+    {
+        this.keys = keys;
+    }
+
+    /**
+     * Apply a RequestVisitor.
+     * 
+     * @param <T> the return type
+     * @param <E> the exception type
+     * @return an object with type T.
+     */
+    @Override
+    public <T, E extends Throwable> T accept(RequestVisitor<T, E> v) throws E
+    {
+        return v.visit(this);
+    }
+
+    /**
+     * Convert the Request to String.
+     */
+    @Override
+    public String toString()
+    {
+        return "EVICT " + keys.size() + " keys";
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(keys);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        EvictRequest other = (EvictRequest) obj;
+        return Objects.equals(keys, other.keys);
+    }
+}
@@ -0,0 +1,73 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * 
+ * This class represents the internal EXPIRE request issued by the coordinator
+ * to remove a batch of keys whose TTL has run out. A key is only removed if its
+ * stored deadline has passed at the request time, so that a key rewritten
+ * meanwhile survives.
+ *
+ */
+public class ExpireRequest extends Request
+{
+    private static final long serialVersionUID = 1L;
+
+    public ArrayList<String> keys;
+    public long time;
+
+    /**
+     * Create an ExpireRequest.
+     * 
+     * @param keys the keys to expire
+     * @param time the expiration time in milliseconds since the epoch
+     */
+    public ExpireRequest(ArrayList<String> keys, long time)
+    {
+        this.keys = keys;
+        this.time = time;
+    }
+
+    /**
+     * Apply a RequestVisitor.
+     * 
+     * @param <T> the return type
+     * @param <E> the exception type
+     * @return an object with type T.
+     */
+    @Override
+    public <T, E extends Throwable> T accept(RequestVisitor<T, E> v) throws E
+    {
+        return v.visit(this);
+    }
+
+    /**
+     * Convert the Request to String.
+     */
+    @Override
+    public String toString()
+    {
+        return "EXPIRE " + keys.size() + " keys at " + time;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(keys, time);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        ExpireRequest other = (ExpireRequest) obj;
+        return Objects.equals(keys, other.keys) && time == other.time;
+    }
+}
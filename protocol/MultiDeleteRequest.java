@@ -0,0 +1,81 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * 
+ * This class represents the MDEL request with format "MDEL \<key\>+". All the
+ * keys are deleted atomically, as a single version of the store, or none of
+ * them is.
+ *
+ */
+public class MultiDeleteRequest extends Request
+{
+    private static final long serialVersionUID = 1L;
+
+    public ArrayList<String> keys;
+
+    /**
+     * Create a MultiDeleteRequest with some keys.
+     * 
+     * @param keys the keys
+     * @throws InvalidRequestException if there is no key or any key is not valid.
+     */
+    public MultiDeleteRequest(ArrayList<String> keys) throws InvalidRequestException
+    {
+        if (keys == null || keys.isEmpty())
+        {
+            throw new InvalidRequestException("Request keys shouldn't be empty.");
+        }
+        for (String key : keys)
+        {
+            if (isValid(key))
+            {
+                throw new InvalidRequestException("Request key shouldn't be null or empty.");
+            }
+        }
+        this.keys = keys;
+    }
+
+    /**
+     * Apply a RequestVisitor.
+     * 
+     * @param <T> the return type
+     * @param <E> the exception type
+     * @return an object with type T.
+     */
+    @Override
+    public <T, E extends Throwable> T accept(RequestVisitor<T, E> v) throws E
+    {
+        return v.visit(this);
+    }
+
+    /**
+     * Convert the Request to String.
+     */
+    @Override
+    public String toString()
+    {
+        return "MDEL " + String.join(" ", keys);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(keys);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        MultiDeleteRequest other = (MultiDeleteRequest) obj;
+        return Objects.equals(keys, other.keys);
+    }
+}
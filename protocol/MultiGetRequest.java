@@ -0,0 +1,80 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * 
+ * This class represents the MGET request with format "MGET \<key\>+". The
+ * values of all the keys are read as of a single version of the store.
+ *
+ */
+public class MultiGetRequest extends Request
+{
+    private static final long serialVersionUID = 1L;
+
+    public ArrayList<String> keys;
+
+    /**
+     * Create a MultiGetRequest with some keys.
+     * 
+     * @param keys the keys
+     * @throws InvalidRequestException if there is no key or any key is not valid.
+     */
+    public MultiGetRequest(ArrayList<String> keys) throws InvalidRequestException
+    {
+        if (keys == null || keys.isEmpty())
+        {
+            throw new InvalidRequestException("Request keys shouldn't be empty.");
+        }
+        for (String key : keys)
+        {
+            if (isValid(key))
+            {
+                throw new InvalidRequestException("Request key shouldn't be null or empty.");
+            }
+        }
+        this.keys = keys;
+    }
+
+    /**
+     * Apply a RequestVisitor.
+     * 
+     * @param <T> the return type
+     * @param <E> the exception type
+     * @return an object with type T.
+     */
+    @Override
+    public <T, E extends Throwable> T accept(RequestVisitor<T, E> v) throws E
+    {
+        return v.visit(this);
+    }
+
+    /**
+     * Convert the Request to String.
+     */
+    @Override
+    public String toString()
+    {
+        return "MGET " + String.join(" ", keys);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(keys);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        MultiGetRequest other = (MultiGetRequest) obj;
+        return Objects.equals(keys, other.keys);
+    }
+}
@@ -0,0 +1,65 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ *
+ * The response representing the values of the keys of a MGET request in the
+ * requested order, as of a single version of the store. The value of a
+ * missing key is null.
+ *
+ */
+public class MultiGetResponse extends Response
+{
+    private static final long serialVersionUID = 1L;
+
+    public ArrayList<String> keys = new ArrayList<>();
+    public ArrayList<String> values = new ArrayList<>();
+
+    /**
+     * Append the value of a key.
+     *
+     * @param key the key
+     * @param val the value; null if the key doesn't exist
+     */
+    public void add(String key, String val)
+    {
+        keys.add(key);
+        values.add(val);
+    }
+
+    @Override
+    public <T, E extends Throwable> T accept(ResponseVisitor<T, E> v) throws E
+    {
+        return v.visit(this);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < keys.size(); i++)
+        {
+            s.append(i == 0 ? "" : ", ").append("(").append(keys.get(i)).append(", ").append(values.get(i)).append(")");
+        }
+        return s.toString();
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof MultiGetResponse))
+            return false;
+        MultiGetResponse other = (MultiGetResponse) obj;
+        return Objects.equals(keys, other.keys) && Objects.equals(values, other.values);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(keys, values);
+    }
+}
@@ -0,0 +1,92 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * 
+ * This class represents the MPUT request with format "MPUT (\<key\>
+ * \<value\>)+". All the pairs are written atomically, as a single version of
+ * the store, or none of them is.
+ *
+ */
+public class MultiPutRequest extends Request
+{
+    private static final long serialVersionUID = 1L;
+
+    public ArrayList<PutRequest> puts;
+
+    /**
+     * Create a MultiPutRequest with some key and value pairs.
+     * 
+     * @param puts the writes of the pairs, in order
+     * @throws InvalidRequestException if there is no pair.
+     */
+    public MultiPutRequest(ArrayList<PutRequest> puts) throws InvalidRequestException
+    {
+        if (puts == null || puts.isEmpty())
+        {
+            throw new InvalidRequestException("Request pairs shouldn't be empty.");
+        }
+        this.puts = puts;
+    }
+
+    /**
+     * @return the keys written, in order.
+     */
+    public ArrayList<String> keys()
+    {
+        ArrayList<String> keys = new ArrayList<>(puts.size());
+        for (PutRequest put : puts)
+        {
+            keys.add(put.key);
+        }
+        return keys;
+    }
+
+    /**
+     * Apply a RequestVisitor.
+     * 
+     * @param <T> the return type
+     * @param <E> the exception type
+     * @return an object with type T.
+     */
+    @Override
+    public <T, E extends Throwable> T accept(RequestVisitor<T, E> v) throws E
+    {
+        return v.visit(this);
+    }
+
+    /**
+     * Convert the Request to String.
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder s = new StringBuilder("MPUT");
+        for (PutRequest put : puts)
+        {
+            s.append(put.toString().substring("PUT".length()));
+        }
+        return s.toString();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(puts);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        MultiPutRequest other = (MultiPutRequest) obj;
+        return Objects.equals(puts, other.puts);
+    }
+}
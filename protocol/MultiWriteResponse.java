@@ -0,0 +1,65 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ *
+ * The response representing the results of the keys of a MPUT or MDEL request
+ * in the requested order: the value each key had before the request. The
+ * previous value of a missing key is null.
+ *
+ */
+public class MultiWriteResponse extends Response
+{
+    private static final long serialVersionUID = 1L;
+
+    public ArrayList<String> keys = new ArrayList<>();
+    public ArrayList<String> previous = new ArrayList<>();
+
+    /**
+     * Append the result of a key.
+     *
+     * @param key the key
+     * @param prev the value before the request; null if the key didn't exist
+     */
+    public void add(String key, String prev)
+    {
+        keys.add(key);
+        previous.add(prev);
+    }
+
+    @Override
+    public <T, E extends Throwable> T accept(ResponseVisitor<T, E> v) throws E
+    {
+        return v.visit(this);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < keys.size(); i++)
+        {
+            s.append(i == 0 ? "" : ", ").append("(").append(keys.get(i)).append(", ").append(previous.get(i)).append(")");
+        }
+        return s.toString();
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof MultiWriteResponse))
+            return false;
+        MultiWriteResponse other = (MultiWriteResponse) obj;
+        return Objects.equals(keys, other.keys) && Objects.equals(previous, other.previous);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(keys, previous);
+    }
+}
@@ -1,18 +1,31 @@
 package protocol;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
 /**
  * 
- * This class represents the PUT request with format "PUT \<key\> \<value\>".
+ * This class represents the PUT request with format "PUT \<key\> \<value\>
+ * [EX \<seconds\>]". A key put with a TTL expires once the TTL has run out
+ * from the time the coordinator processes the request. A large value may be
+ * compressed by the server the request enters, and travels compressed from
+ * there on, one byte per character of the compressed value.
  *
  */
 public class PutRequest extends Request
 {
     private static final long serialVersionUID = 1L;
 
+    public static final long MAX_TTL = Integer.MAX_VALUE; // in seconds, so that deadlines never overflow
+
     public String key;
-    public String val;
+    public transient String val; // serialized by writeObject
+    public long ttl; // in seconds; 0 if the key never expires
+    public long deadline; // in milliseconds since the epoch; set by the coordinator
+    public boolean compressed; // true if val has been compressed by the server
 
     /**
      * Construct a PutRequest with a key and val pair.
@@ -23,6 +36,25 @@ public class PutRequest extends Request
      */
     public PutRequest(String key, String val) throws InvalidRequestException
     {
+        this(key, val, 0);
+    }
+
+    /**
+     * Construct a PutRequest with a key and val pair expiring after a TTL.
+     * 
+     * @param key the key
+     * @param val the value
+     * @param ttl the TTL in seconds; 0 if the key never expires
+     * @throws InvalidRequestException if either key, val or ttl is not valid.
+     */
+    public PutRequest(String key, String val, long ttl) throws InvalidRequestException
+    {
+        if (ttl < 0 || ttl > MAX_TTL)
+        {
+            throw new InvalidRequestException("Request TTL should be between 0 and " + MAX_TTL + " seconds.");
+        }
+        this.ttl = ttl;
+
         if (isValid(key))
         {
             throw new InvalidRequestException("Request key shouldn't be null or empty.");
@@ -42,6 +74,36 @@ public class PutRequest extends Request
         }
     }
 
+    /**
+     * Fix the deadline of a key put with a TTL, unless already fixed.
+     * 
+     * @param now the current time in milliseconds since the epoch
+     */
+    public void fixDeadline(long now)
+    {
+        if (ttl > 0 && deadline == 0)
+        {
+            deadline = now + Math.min(ttl, MAX_TTL) * 1000;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        out.defaultWriteObject();
+        // a compressed value only has characters below 256
+        byte[] v = val.getBytes(compressed ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+        out.writeInt(v.length);
+        out.write(v);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        byte[] v = new byte[in.readInt()];
+        in.readFully(v);
+        val = new String(v, compressed ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
     /**
      * Apply a RequestVisitor.
      * 
@@ -60,13 +122,13 @@ public class PutRequest extends Request
     @Override
     public String toString()
     {
-        return "PUT " + key + " " + val;
+        return "PUT " + key + " " + (compressed ? "<" + val.length() + " compressed bytes>" : val) + (ttl > 0 ? " EX " + ttl : "");
     }
 
     @Override
     public int hashCode()
     {
-        return Objects.hash(key, val);
+        return Objects.hash(key, val, ttl, deadline, compressed);
     }
 
     @Override
@@ -79,7 +141,8 @@ public class PutRequest extends Request
         if (getClass() != obj.getClass())
             return false;
         PutRequest other = (PutRequest) obj;
-        return Objects.equals(key, other.key) && Objects.equals(val, other.val);
+        return Objects.equals(key, other.key) && Objects.equals(val, other.val) && ttl == other.ttl
+            && deadline == other.deadline && compressed == other.compressed;
     }
 
 }
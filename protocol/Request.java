@@ -11,6 +11,8 @@ public abstract class Request implements Serializable
 {
     private static final long serialVersionUID = 1L;
 
+    private Durability durability; // of a write; null for the default
+
     /**
      * Return true if a key or value is valid.
      * 
@@ -22,6 +24,26 @@ public abstract class Request implements Serializable
         return kv == null || kv.isEmpty();
     }
 
+    /**
+     * @return the durability the request is committed with.
+     */
+    public Durability durability()
+    {
+        return durability == null ? Durability.ALL : durability;
+    }
+
+    /**
+     * Set the durability the request is committed with.
+     * 
+     * @param durability the durability
+     * @return this request.
+     */
+    public Request with(Durability durability)
+    {
+        this.durability = durability;
+        return this;
+    }
+
     /**
      * Apply a request visitor.
      * 
@@ -1,5 +1,6 @@
 package protocol;
 
+import java.util.ArrayList;
 import java.util.StringTokenizer;
 
 public class RequestParser
@@ -19,7 +20,20 @@ public class RequestParser
         {
             String hd = t.nextToken();
 
-            if (hd.equals("GET"))
+            if (hd.equals("ONE") || hd.equals("QUORUM") || hd.equals("ALL"))
+            {
+                // the durability of the write that follows
+                Request write = t.hasMoreTokens() ? parse(t.nextToken("")) : null;
+                if (write instanceof PutRequest || write instanceof DeleteRequest || write instanceof MultiPutRequest || write instanceof MultiDeleteRequest)
+                {
+                    return write.with(Durability.valueOf(hd));
+                }
+                else
+                {
+                    throw new InvalidRequestException(hd + " expects PUT, DELETE, MPUT or MDEL to follow. Got: " + input + ".");
+                }
+            }
+            else if (hd.equals("GET"))
             {
                 if (t.countTokens() == 1)
                 {
@@ -30,15 +44,69 @@ public class RequestParser
                     throw new InvalidRequestException("GET expects one argument. Got: " + input + ".");
                 }
             }
+            else if (hd.equals("MGET"))
+            {
+                if (t.countTokens() > 0)
+                {
+                    ArrayList<String> keys = new ArrayList<>(t.countTokens());
+                    while (t.hasMoreTokens())
+                    {
+                        keys.add(t.nextToken());
+                    }
+                    return new MultiGetRequest(keys);
+                }
+                else
+                {
+                    throw new InvalidRequestException("MGET expects at least one argument. Got: " + input + ".");
+                }
+            }
+            else if (hd.equals("MPUT"))
+            {
+                if (t.countTokens() > 0 && t.countTokens() % 2 == 0)
+                {
+                    ArrayList<PutRequest> puts = new ArrayList<>(t.countTokens() / 2);
+                    while (t.hasMoreTokens())
+                    {
+                        puts.add(new PutRequest(t.nextToken(), t.nextToken()));
+                    }
+                    return new MultiPutRequest(puts);
+                }
+                else
+                {
+                    throw new InvalidRequestException("MPUT expects at least one key and value pair. Got: " + input + ".");
+                }
+            }
             else if (hd.equals("PUT"))
             {
                 if (t.countTokens() == 2)
                 {
                     return new PutRequest(t.nextToken(), t.nextToken());
                 }
+                else if (t.countTokens() == 4)
+                {
+                    String key = t.nextToken();
+                    String val = t.nextToken();
+                    if (!t.nextToken().equals("EX"))
+                    {
+                        throw new InvalidRequestException("PUT expects EX before the TTL. Got: " + input + ".");
+                    }
+                    try
+                    {
+                        long ttl = Long.parseLong(t.nextToken());
+                        if (ttl <= 0 || ttl > PutRequest.MAX_TTL)
+                        {
+                            throw new InvalidRequestException("PUT expects a TTL between 1 and " + PutRequest.MAX_TTL + " seconds. Got: " + input + ".");
+                        }
+                        return new PutRequest(key, val, ttl);
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        throw new InvalidRequestException("PUT expects a number of seconds after EX. Got: " + input + ".");
+                    }
+                }
                 else
                 {
-                    throw new InvalidRequestException("PUT expects two arguments. Got: " + input + ".");
+                    throw new InvalidRequestException("PUT expects two arguments and an optional EX <seconds>. Got: " + input + ".");
                 }
             }
             else if (hd.equals("DELETE"))
@@ -52,6 +120,22 @@ public class RequestParser
                     throw new InvalidRequestException("DELETE expects one argument. Got: " + input + ".");
                 }
             }
+            else if (hd.equals("MDEL"))
+            {
+                if (t.countTokens() > 0)
+                {
+                    ArrayList<String> keys = new ArrayList<>(t.countTokens());
+                    while (t.hasMoreTokens())
+                    {
+                        keys.add(t.nextToken());
+                    }
+                    return new MultiDeleteRequest(keys);
+                }
+                else
+                {
+                    throw new InvalidRequestException("MDEL expects at least one argument. Got: " + input + ".");
+                }
+            }
             else if (hd.equals("PRINT"))
             {
                 if (t.countTokens() == 0)
@@ -63,6 +147,19 @@ public class RequestParser
                     throw new InvalidRequestException("PRINT expects zero arguments. Got: " + input + ".");
                 }
             }
+            else if (hd.equals("OPEN") || hd.equals("COMMIT") || hd.equals("ABORT"))
+            {
+                if (t.countTokens() != 0)
+                {
+                    throw new InvalidRequestException(hd + " expects zero arguments. Got: " + input + ".");
+                }
+                // COMMIT and ABORT apply to the transaction the client has open
+                return hd.equals("OPEN") ? new OpenRequest() : hd.equals("COMMIT") ? new CommitRequest(null) : new AbortRequest(null);
+            }
+            else if (hd.equals("SCAN"))
+            {
+                return parseScan(t, input);
+            }
             else
             {
                 throw new InvalidRequestException(hd + " is an invalid request.");
@@ -73,4 +170,67 @@ public class RequestParser
             throw new InvalidRequestException("Input request is empty.");
         }
     }
+
+    /**
+     * Parse the options of a SCAN request, each being a keyword followed by its
+     * argument in any order.
+     */
+    private static ScanRequest parseScan(StringTokenizer t, String input) throws InvalidRequestException
+    {
+        String start = null;
+        String end = null;
+        String prefix = null;
+        String cursor = null;
+        int limit = ScanRequest.DEFAULT_LIMIT;
+
+        while (t.hasMoreTokens())
+        {
+            String option = t.nextToken();
+            if (!t.hasMoreTokens())
+            {
+                throw new InvalidRequestException("SCAN expects an argument after " + option + ". Got: " + input + ".");
+            }
+
+            String arg = t.nextToken();
+            if (option.equals("FROM"))
+            {
+                start = arg;
+            }
+            else if (option.equals("TO"))
+            {
+                end = arg;
+            }
+            else if (option.equals("PREFIX"))
+            {
+                prefix = arg;
+            }
+            else if (option.equals("AFTER"))
+            {
+                cursor = arg;
+            }
+            else if (option.equals("LIMIT"))
+            {
+                try
+                {
+                    limit = Integer.parseInt(arg);
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new InvalidRequestException("SCAN expects a number after LIMIT. Got: " + input + ".");
+                }
+            }
+            else
+            {
+                throw new InvalidRequestException(option + " is an invalid SCAN option.");
+            }
+        }
+
+        if (prefix != null && (start != null || end != null))
+        {
+            throw new InvalidRequestException("SCAN expects either PREFIX or FROM/TO. Got: " + input + ".");
+        }
+
+        ScanRequest scan = prefix == null ? new ScanRequest(start, end, limit) : new ScanRequest(prefix, limit);
+        return cursor == null ? scan : scan.after(cursor);
+    }
 }
@@ -22,4 +22,18 @@ public interface RequestVisitor<T, E extends Throwable>
     public T visit(CommitRequest r) throws E;
 
     public T visit(AbortRequest r) throws E;
+
+    public T visit(ScanRequest r) throws E;
+
+    public T visit(ExpireRequest r) throws E;
+
+    public T visit(EvictRequest r) throws E;
+
+    public T visit(MultiGetRequest r) throws E;
+
+    public T visit(MultiPutRequest r) throws E;
+
+    public T visit(MultiDeleteRequest r) throws E;
+
+    public T visit(BatchRequest r) throws E;
 }
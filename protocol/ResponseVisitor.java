@@ -14,4 +14,10 @@ public interface ResponseVisitor<T, E extends Throwable>
     public T visit(ErrorResponse r) throws E;
 
     public T visit(ProcessResponse r) throws E;
+
+    public T visit(ScanResponse r) throws E;
+
+    public T visit(MultiGetResponse r) throws E;
+
+    public T visit(MultiWriteResponse r) throws E;
 }
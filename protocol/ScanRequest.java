@@ -0,0 +1,201 @@
+package protocol;
+
+import java.util.Objects;
+
+/**
+ *
+ * This class represents the SCAN request with format "SCAN [FROM \<start\>]
+ * [TO \<end\>] [PREFIX \<prefix\>] [LIMIT \<limit\>] [AFTER \<cursor\>]". It
+ * reads a page of at most limit entries in key order, either with keys in
+ * [start, end) or starting with prefix. The next page starts after the cursor,
+ * which is the last key of the previous page.
+ *
+ */
+public class ScanRequest extends Request
+{
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 10000;
+
+    public String start;
+    public String end;
+    public String prefix;
+    public int limit;
+    public String cursor;
+    public int shard = -1; // the only shard scanned once routed by a server; -1 for all
+
+    /**
+     * Construct a ScanRequest of a key range.
+     *
+     * @param start the first key, inclusive; null for no lower bound
+     * @param end the last key, exclusive; null for no upper bound
+     * @param limit the maximum number of entries per page
+     * @throws InvalidRequestException if the limit is not valid.
+     */
+    public ScanRequest(String start, String end, int limit) throws InvalidRequestException
+    {
+        this(start, end, null, limit, null);
+    }
+
+    /**
+     * Construct a ScanRequest of the keys starting with a prefix.
+     *
+     * @param prefix the prefix
+     * @param limit the maximum number of entries per page
+     * @throws InvalidRequestException if either the prefix or the limit is not
+     *                                 valid.
+     */
+    public ScanRequest(String prefix, int limit) throws InvalidRequestException
+    {
+        this(null, null, prefix, limit, null);
+        if (isValid(prefix))
+        {
+            throw new InvalidRequestException("Request prefix shouldn't be null or empty.");
+        }
+    }
+
+    private ScanRequest(String start, String end, String prefix, int limit, String cursor) throws InvalidRequestException
+    {
+        if (limit <= 0 || limit > MAX_LIMIT)
+        {
+            throw new InvalidRequestException("Request limit should be between 1 and " + MAX_LIMIT + ".");
+        }
+
+        this.start = start;
+        this.end = end;
+        this.prefix = prefix;
+        this.limit = limit;
+        this.cursor = cursor;
+    }
+
+    /**
+     * @param cursor the last key of the previous page
+     * @return the request of the page after the cursor.
+     */
+    public ScanRequest next(String cursor)
+    {
+        try
+        {
+            return new ScanRequest(start, end, prefix, limit, cursor);
+        }
+        catch (InvalidRequestException e)
+        {
+            throw new IllegalStateException(e); // validated already
+        }
+    }
+
+    /**
+     * Resume the scan after a cursor.
+     *
+     * @param cursor the last key of the previous page
+     * @return this request.
+     * @throws InvalidRequestException if the cursor is not valid.
+     */
+    ScanRequest after(String cursor) throws InvalidRequestException
+    {
+        if (isValid(cursor))
+        {
+            throw new InvalidRequestException("Request cursor shouldn't be null or empty.");
+        }
+        this.cursor = cursor;
+        return this;
+    }
+
+    /**
+     * @return the first key of the page, inclusive.
+     */
+    public String from()
+    {
+        final String first = prefix != null ? prefix : start == null ? "" : start;
+        if (cursor == null)
+        {
+            return first;
+        }
+
+        // the smallest key after the cursor, unless the cursor is before the scan
+        final String after = cursor + '\u0000';
+        return after.compareTo(first) > 0 ? after : first;
+    }
+
+    /**
+     * @return the last key of the scan, exclusive; null if there is no upper
+     *         bound.
+     */
+    public String to()
+    {
+        if (prefix == null)
+        {
+            return end;
+        }
+
+        // the smallest key greater than every key starting with the prefix
+        int n = prefix.length();
+        while (n > 0 && prefix.charAt(n - 1) == Character.MAX_VALUE)
+        {
+            n--;
+        }
+        return n == 0 ? null : prefix.substring(0, n - 1) + (char) (prefix.charAt(n - 1) + 1);
+    }
+
+    /**
+     * Apply a RequestVisitor.
+     *
+     * @param <T> the return type
+     * @param <E> the exception type
+     * @return an object with type T.
+     */
+    @Override
+    public <T, E extends Throwable> T accept(RequestVisitor<T, E> v) throws E
+    {
+        return v.visit(this);
+    }
+
+    /**
+     * Convert the Request to String.
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder s = new StringBuilder("SCAN");
+        if (start != null)
+        {
+            s.append(" FROM ").append(start);
+        }
+        if (end != null)
+        {
+            s.append(" TO ").append(end);
+        }
+        if (prefix != null)
+        {
+            s.append(" PREFIX ").append(prefix);
+        }
+        s.append(" LIMIT ").append(limit);
+        if (cursor != null)
+        {
+            s.append(" AFTER ").append(cursor);
+        }
+        return s.toString();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(start, end, prefix, limit, cursor, shard);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        ScanRequest other = (ScanRequest) obj;
+        return Objects.equals(start, other.start) && Objects.equals(end, other.end)
+            && Objects.equals(prefix, other.prefix) && limit == other.limit && Objects.equals(cursor, other.cursor)
+            && shard == other.shard;
+    }
+}
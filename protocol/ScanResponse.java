@@ -0,0 +1,66 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ *
+ * The response representing a page of entries in key order. The cursor is
+ * the last key of a full page, from which the next page can be requested, or
+ * null once the scan is complete.
+ *
+ */
+public class ScanResponse extends Response
+{
+    private static final long serialVersionUID = 1L;
+
+    public ArrayList<String> keys = new ArrayList<>();
+    public ArrayList<String> values = new ArrayList<>();
+    public String cursor;
+
+    /**
+     * Append an entry to the page.
+     *
+     * @param key the key
+     * @param val the value
+     */
+    public void add(String key, String val)
+    {
+        keys.add(key);
+        values.add(val);
+    }
+
+    @Override
+    public <T, E extends Throwable> T accept(ResponseVisitor<T, E> v) throws E
+    {
+        return v.visit(this);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < keys.size(); i++)
+        {
+            s.append(i == 0 ? "" : ", ").append("(").append(keys.get(i)).append(", ").append(values.get(i)).append(")");
+        }
+        return s.toString();
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof ScanResponse))
+            return false;
+        ScanResponse other = (ScanResponse) obj;
+        return Objects.equals(keys, other.keys) && Objects.equals(values, other.values) && Objects.equals(cursor, other.cursor);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(keys, values, cursor);
+    }
+}
@@ -0,0 +1,63 @@
+package server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The least recently used cache of decoded table blocks bounded by their
+ * encoded size.
+ */
+class BlockCache
+{
+    private final long capacity;
+    private long used;
+    private long hits;
+    private long misses;
+    private final LinkedHashMap<Long, SSTable.Block> blocks = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param capacity the maximum number of encoded block bytes to cache
+     */
+    BlockCache(long capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    private static Long key(long table, int block)
+    {
+        return (table << 24) ^ block;
+    }
+
+    synchronized SSTable.Block get(long table, int block)
+    {
+        SSTable.Block b = blocks.get(key(table, block));
+        if (b == null)
+        {
+            misses++;
+        }
+        else
+        {
+            hits++;
+        }
+        return b;
+    }
+
+    synchronized void put(long table, int block, SSTable.Block b)
+    {
+        SSTable.Block old = blocks.put(key(table, block), b);
+        used += b.bytes - (old == null ? 0 : old.bytes);
+
+        Iterator<SSTable.Block> i = blocks.values().iterator();
+        while (used > capacity && i.hasNext())
+        {
+            used -= i.next().bytes;
+            i.remove();
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "Block cache [bytes=" + used + "/" + capacity + ", hits=" + hits + ", misses=" + misses + "]";
+    }
+}
@@ -0,0 +1,329 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * The W-TinyLFU eviction policy of a store bounded by a byte budget.
+ *
+ * New keys enter a small LRU window. Keys leaving the window compete with the
+ * least recently used key of the probation segment of the main SLRU, and only
+ * the one that has been accessed more often according to a count-min sketch
+ * stays. Keys hit while on probation move to the protected segment, whose
+ * least recently used keys fall back to probation once it is full. Every
+ * operation is O(1) amortized.
+ *
+ * The policy only decides: evicted keys become pending victims, which stay in
+ * the store until their eviction has been committed.
+ */
+class CachePolicy
+{
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final long capacity;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private final FrequencySketch sketch;
+    private final HashMap<String, Node> nodes = new HashMap<>();
+    private final Queue[] queues = { new Queue(), new Queue(), new Queue() };
+    private final LinkedHashSet<String> victims = new LinkedHashSet<>();
+
+    private static class Node
+    {
+        final String key;
+        long bytes;
+        int queue;
+        Node prev;
+        Node next;
+
+        Node(String key, long bytes)
+        {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A doubly linked LRU list, least recently used first.
+     */
+    private static class Queue
+    {
+        final Node head = new Node(null, 0);
+        long bytes;
+
+        Queue()
+        {
+            head.prev = head;
+            head.next = head;
+        }
+
+        boolean isEmpty()
+        {
+            return head.next == head;
+        }
+
+        Node first()
+        {
+            return head.next == head ? null : head.next;
+        }
+
+        Node last()
+        {
+            return head.prev == head ? null : head.prev;
+        }
+
+        void add(Node n)
+        {
+            n.prev = head.prev;
+            n.next = head;
+            head.prev.next = n;
+            head.prev = n;
+            bytes += n.bytes;
+        }
+
+        void remove(Node n)
+        {
+            n.prev.next = n.next;
+            n.next.prev = n.prev;
+            n.prev = null;
+            n.next = null;
+            bytes -= n.bytes;
+        }
+    }
+
+    /**
+     * A count-min sketch of 4-bit saturating counters, halved once the number of
+     * increments reaches ten times its width so that old popularity fades.
+     */
+    private static class FrequencySketch
+    {
+        private static final int[] SEEDS = { 0x97CB3127, 0xB2D05E5F, 0x9E3779B9, 0xC2B2AE35 };
+
+        private final byte[][] rows = new byte[SEEDS.length][];
+        private final int mask;
+        private final long period;
+        private long additions;
+
+        FrequencySketch(int width)
+        {
+            for (int i = 0; i < rows.length; i++)
+            {
+                rows[i] = new byte[width];
+            }
+            mask = width - 1;
+            period = 10L * width;
+        }
+
+        private int index(String key, int row)
+        {
+            int h = key.hashCode() * SEEDS[row];
+            h ^= h >>> 17;
+            h *= 0xED5AD4BB;
+            return (h ^ (h >>> 11)) & mask;
+        }
+
+        int frequency(String key)
+        {
+            int f = Integer.MAX_VALUE;
+            for (int i = 0; i < rows.length; i++)
+            {
+                f = Math.min(f, rows[i][index(key, i)]);
+            }
+            return f;
+        }
+
+        void increment(String key)
+        {
+            for (int i = 0; i < rows.length; i++)
+            {
+                int j = index(key, i);
+                if (rows[i][j] < 15)
+                {
+                    rows[i][j]++;
+                }
+            }
+
+            if (++additions == period)
+            {
+                for (byte[] row : rows)
+                {
+                    for (int j = 0; j < row.length; j++)
+                    {
+                        row[j] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+    }
+
+    /**
+     * @param capacity the byte budget of the store
+     */
+    CachePolicy(long capacity)
+    {
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.protectedCapacity = (capacity - windowCapacity) * 8 / 10;
+
+        // about one counter per expected entry
+        long entries = Math.max(1 << 10, Math.min(1 << 24, capacity / (4 * ENTRY_OVERHEAD)));
+        this.sketch = new FrequencySketch(Integer.highestOneBit((int) entries));
+    }
+
+    /**
+     * @return the estimated heap bytes of an entry.
+     */
+    static long bytes(String key, String stored)
+    {
+        return ENTRY_OVERHEAD + 2L * (key.length() + stored.length());
+    }
+
+    /**
+     * Record a read of a key.
+     */
+    synchronized void touch(String key)
+    {
+        sketch.increment(key);
+        Node n = nodes.get(key);
+        if (n != null)
+        {
+            hit(n);
+        }
+    }
+
+    /**
+     * Record a write of a key, which is no longer a victim if it was one.
+     *
+     * @param key the key
+     * @param bytes the estimated bytes of the entry
+     */
+    synchronized void write(String key, long bytes)
+    {
+        sketch.increment(key);
+        victims.remove(key);
+
+        Node n = nodes.get(key);
+        if (n == null)
+        {
+            n = new Node(key, bytes);
+            n.queue = WINDOW;
+            nodes.put(key, n);
+            queues[WINDOW].add(n);
+        }
+        else
+        {
+            queues[n.queue].bytes += bytes - n.bytes;
+            n.bytes = bytes;
+            hit(n);
+        }
+        evict();
+    }
+
+    /**
+     * Forget a key removed from the store.
+     */
+    synchronized void remove(String key)
+    {
+        victims.remove(key);
+        Node n = nodes.remove(key);
+        if (n != null)
+        {
+            queues[n.queue].remove(n);
+        }
+    }
+
+    private void move(Node n, int queue)
+    {
+        queues[n.queue].remove(n);
+        n.queue = queue;
+        queues[queue].add(n);
+    }
+
+    private void hit(Node n)
+    {
+        if (n.queue == PROBATION)
+        {
+            move(n, PROTECTED);
+            while (queues[PROTECTED].bytes > protectedCapacity)
+            {
+                move(queues[PROTECTED].first(), PROBATION);
+            }
+        }
+        else
+        {
+            move(n, n.queue);
+        }
+    }
+
+    private void evict(Node n)
+    {
+        queues[n.queue].remove(n);
+        nodes.remove(n.key);
+        victims.add(n.key);
+    }
+
+    private void evict()
+    {
+        while (queues[WINDOW].bytes > windowCapacity)
+        {
+            move(queues[WINDOW].first(), PROBATION);
+        }
+
+        while (queues[WINDOW].bytes + queues[PROBATION].bytes + queues[PROTECTED].bytes > capacity)
+        {
+            Node victim = queues[PROBATION].first();
+            Node candidate = queues[PROBATION].last();
+            if (victim == null)
+            {
+                evict(queues[PROTECTED].isEmpty() ? queues[WINDOW].first() : queues[PROTECTED].first());
+            }
+            else if (victim == candidate)
+            {
+                evict(victim);
+            }
+            else
+            {
+                evict(sketch.frequency(candidate.key) > sketch.frequency(victim.key) ? victim : candidate);
+            }
+        }
+    }
+
+    /**
+     * @param max the maximum number of victims
+     * @return the oldest pending victims.
+     */
+    synchronized List<String> victims(int max)
+    {
+        ArrayList<String> keys = new ArrayList<>(Math.min(max, victims.size()));
+        for (String k : victims)
+        {
+            if (keys.size() == max)
+            {
+                break;
+            }
+            keys.add(k);
+        }
+        return keys;
+    }
+
+    /**
+     * @return true if the key is still a pending victim.
+     */
+    synchronized boolean isVictim(String key)
+    {
+        return victims.contains(key);
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        long used = queues[WINDOW].bytes + queues[PROBATION].bytes + queues[PROTECTED].bytes;
+        return "bytes=" + used + "/" + capacity + ", entries=" + nodes.size() + ", pending victims=" + victims.size();
+    }
+}
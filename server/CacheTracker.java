@@ -0,0 +1,99 @@
+package server;
+
+import java.io.Closeable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import common.*;
+
+/**
+ * The cache statistics of a server in cache mode.
+ *
+ * Besides counting hits, misses and evictions, the keys read are buffered and
+ * reported to the coordinator in batches, so that its eviction policy sees the
+ * reads served by every server. Reads are dropped while the buffer is full,
+ * as the policy only needs a sample of them.
+ */
+class CacheTracker implements Closeable
+{
+    private static final int BUFFER = 1 << 14;
+    private static final long INTERVAL = 100;
+
+    private final CoordinatorService coordinator;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final ArrayBlockingQueue<String> reads = new ArrayBlockingQueue<>(BUFFER);
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor((Runnable r) ->
+                                                   {
+                                                       Thread t = new Thread(r, "cache-tracker");
+                                                       t.setDaemon(true);
+                                                       return t;
+                                                   });
+
+    /**
+     * @param coordinator the coordinator the reads are reported to
+     */
+    CacheTracker(CoordinatorService coordinator)
+    {
+        this.coordinator = coordinator;
+        timer.scheduleWithFixedDelay(this::report, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record a read.
+     *
+     * @param key the key
+     * @param hit true if the key was found
+     */
+    void read(String key, boolean hit)
+    {
+        (hit ? hits : misses).increment();
+        reads.offer(key);
+    }
+
+    /**
+     * @param n the number of keys evicted from the local store
+     */
+    void evicted(int n)
+    {
+        evictions.add(n);
+    }
+
+    private void report()
+    {
+        ArrayList<String> keys = new ArrayList<>(reads.size());
+        reads.drainTo(keys);
+        if (keys.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            coordinator.touch(keys);
+        }
+        catch (RemoteException | RuntimeException e)
+        {
+            Logger.debug("Failed to report " + keys.size() + " reads to the coordinator: " + e);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        timer.shutdownNow();
+    }
+
+    @Override
+    public String toString()
+    {
+        long h = hits.sum();
+        long m = misses.sum();
+        return "Cache [hits=" + h + ", misses=" + m 
+             + ", hit ratio=" + (h + m == 0 ? "n/a" : String.format("%.3f", (double) h / (h + m)))
+             + ", evictions=" + evictions.sum() + "]";
+    }
+}
@@ -0,0 +1,251 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import common.*;
+
+/**
+ * The background checkpointing of a key value store.
+ *
+ * A checkpoint is fuzzy: it rotates the write-ahead log and then walks the
+ * store while writes keep being applied, so it may capture some of the writes
+ * logged after the rotation. Replaying the log from the rotated segment on top
+ * of it still recovers the store, since every logged request blindly sets or
+ * removes a key. The checkpoint is written as a snapshot to a temporary file at
+ * a throttled rate and then atomically renamed over the previous one, after
+ * which the older log segments are discarded.
+ *
+ * Checkpoints of version 1 were streamed as [magic][version][first log segment
+ * to replay]([key length][key][value length][value])* [-1][CRC32 of all
+ * previous bytes] and can still be restored.
+ */
+class Checkpointer implements Closeable
+{
+    private static final int VERSION = 1;
+
+    private final KVStore store;
+    private final WriteAheadLog wal;
+    private final Path path;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor((Runnable r) ->
+                                                   {
+                                                       Thread t = new Thread(r, "checkpointer");
+                                                       t.setDaemon(true);
+                                                       return t;
+                                                   });
+    private long checkpoints;
+    private long lastMillis;
+    private long lastBytes;
+    private long totalBytes;
+
+    /**
+     * @param store the store to checkpoint
+     * @param wal the log of the requests applied to the store
+     * @param path the checkpoint file path
+     */
+    Checkpointer(KVStore store, WriteAheadLog wal, String path)
+    {
+        this.store = store;
+        this.wal = wal;
+        this.path = Paths.get(path).toAbsolutePath().normalize();
+    }
+
+    /**
+     * Start checkpointing periodically.
+     */
+    void start()
+    {
+        long interval = Config.checkpointInterval();
+        timer.scheduleWithFixedDelay(() ->
+                                     {
+                                         try
+                                         {
+                                             checkpoint();
+                                         }
+                                         catch (IOException e)
+                                         {
+                                             Logger.warning("Failed to checkpoint the store.", e);
+                                         }
+                                     }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write a checkpoint and discard the log segments it covers.
+     *
+     * @throws IOException if the checkpoint cannot be written.
+     */
+    synchronized void checkpoint() throws IOException
+    {
+        long begin = System.nanoTime();
+        long segment = wal.rotate();
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        long bytes = write(tmp, segment);
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        wal.discard(segment);
+
+        checkpoints++;
+        lastMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        lastBytes = bytes;
+        totalBytes += bytes;
+        Logger.log("Checkpoint " + checkpoints + " wrote " + bytes + " bytes to " + path + " in " + lastMillis + " ms.");
+    }
+
+    private long write(Path file, long segment) throws IOException
+    {
+        try (FileOutputStream fos = new FileOutputStream(file.toFile()))
+        {
+            ThrottledOutputStream throttled = new ThrottledOutputStream(fos, Config.checkpointBytesPerSecond());
+            BufferedOutputStream out = new BufferedOutputStream(throttled);
+            Snapshot.write(store, segment, out);
+            out.flush();
+            fos.getFD().sync();
+            return throttled.written();
+        }
+    }
+
+    /**
+     * @param f a file
+     * @return true if the file is a checkpoint of version 1.
+     */
+    static boolean isCheckpoint(File f)
+    {
+        return Snapshot.version(f) == VERSION;
+    }
+
+    /**
+     * Restore a checkpoint of version 1 into a storage engine.
+     *
+     * @param f the checkpoint file
+     * @param engine the engine to restore the entries into
+     * @return the first log segment to replay on top of the checkpoint.
+     * @throws IOException if the checkpoint cannot be read or is corrupted.
+     */
+    static long restore(File f, StorageEngine engine) throws IOException
+    {
+        long body = f.length() - Integer.BYTES;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f))))
+        {
+            CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+            byte[] buffer = new byte[1 << 16];
+            for (long n = body; n > 0;)
+            {
+                int r = checked.read(buffer, 0, (int) Math.min(buffer.length, n));
+                if (r < 0)
+                {
+                    throw new EOFException();
+                }
+                n -= r;
+            }
+            if (in.readInt() != (int) checked.getChecksum().getValue())
+            {
+                throw new IOException(f.getAbsolutePath() + " is corrupted.");
+            }
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f))))
+        {
+            if (in.readInt() != Snapshot.MAGIC || in.readInt() != VERSION)
+            {
+                throw new IOException(f.getAbsolutePath() + " is incompatible.");
+            }
+
+            long segment = in.readLong();
+            for (int n = in.readInt(); n >= 0; n = in.readInt())
+            {
+                byte[] key = new byte[n];
+                in.readFully(key);
+                byte[] val = new byte[in.readInt()];
+                in.readFully(val);
+                engine.put(new String(key, StandardCharsets.UTF_8), new String(val, StandardCharsets.UTF_8));
+            }
+            return segment;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        timer.shutdown();
+        try
+        {
+            timer.awaitTermination(Config.checkpointInterval(), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "Checkpoints [count=" + checkpoints + ", last duration=" + lastMillis + " ms, last bytes=" + lastBytes
+             + ", total bytes=" + totalBytes + "]";
+    }
+
+    /**
+     * The output stream limiting its write rate.
+     */
+    private static class ThrottledOutputStream extends FilterOutputStream
+    {
+        private final long rate;
+        private final long begin = System.nanoTime();
+        private long written;
+
+        /**
+         * @param out the underlying stream
+         * @param rate the maximum bytes per second; unlimited if not positive.
+         */
+        ThrottledOutputStream(OutputStream out, long rate)
+        {
+            super(out);
+            this.rate = rate;
+        }
+
+        long written()
+        {
+            return written;
+        }
+
+        private void throttle(int n) throws IOException
+        {
+            written += n;
+            if (rate > 0)
+            {
+                long due = begin + (long) (written * 1e9 / rate);
+                long wait = due - System.nanoTime();
+                if (wait > 0)
+                {
+                    try
+                    {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while checkpointing.");
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            throttle(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            throttle(len);
+        }
+    }
+}
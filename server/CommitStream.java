@@ -0,0 +1,185 @@
+package server;
+
+import java.io.Closeable;
+import java.rmi.RemoteException;
+import java.util.concurrent.*;
+import java.util.function.LongUnaryOperator;
+
+import common.*;
+import protocol.Request;
+
+/**
+ * The ordered stream of the commits the coordinator sends a replicated server.
+ *
+ * The coordinator queues every request it commits to the stream of each
+ * server holding the stripes of the keys of the request, so the requests
+ * writing the same key are queued in the order they commit. A single thread
+ * sends them one after another, so a server lagging behind the writes that
+ * completed without it catches up in the same order, while the keys of these
+ * writes stay prepared in its read lease until then. Every call has its own
+ * deadline from the failure detector. Once a call fails, the stream fails all
+ * the requests still queued and reports the server, which has then missed a
+ * write.
+ *
+ * The queue is bounded by Config.commitBacklog(), and the writes wait for room
+ * once a server lags that far behind.
+ */
+class CommitStream implements Closeable
+{
+    private static class Pending
+    {
+        final Request request;
+        final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        Pending(Request request)
+        {
+            this.request = request;
+        }
+    }
+
+    private final EndPoint replica;
+    private final ReplicaService service;
+    private final FailureDetector detector;
+    private final ExecutorService calls;
+    private final LongUnaryOperator lease;
+    private final Runnable failed;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>(Config.commitBacklog());
+    private final Thread sender;
+    private volatile boolean closed;
+
+    /**
+     * @param replica the server
+     * @param service the replica service of the server
+     * @param detector the failure detector timing the calls
+     * @param calls the threads making the calls
+     * @param lease the grant of a read lease from the time given in
+     *        System.nanoTime(), returning its duration in milliseconds
+     * @param failed the action run once a call has failed
+     */
+    CommitStream(EndPoint replica, ReplicaService service, FailureDetector detector, ExecutorService calls, LongUnaryOperator lease, Runnable failed)
+    {
+        this.replica = replica;
+        this.service = service;
+        this.detector = detector;
+        this.calls = calls;
+        this.lease = lease;
+        this.failed = failed;
+        this.sender = new Thread(this::deliver, "commit-" + replica.getPort());
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Queue a committed request, waiting while the backlog of the server is
+     * full.
+     *
+     * @param request the request
+     * @return the future completed once the server has committed the request,
+     *         or completed exceptionally if it hasn't.
+     */
+    CompletableFuture<Void> send(Request request)
+    {
+        final Pending p = new Pending(request);
+        boolean queued = false;
+        try
+        {
+            while (!closed && !(queued = queue.offer(p, 100, TimeUnit.MILLISECONDS)))
+            {
+                // the server is lagging too far behind
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if (!queued || closed && queue.remove(p))
+        {
+            p.committed.completeExceptionally(new RemoteException(replica + " has left the cluster."));
+        }
+        return p.committed;
+    }
+
+    private void deliver()
+    {
+        try
+        {
+            while (!closed)
+            {
+                final Pending p = queue.take();
+                if (!commit(p))
+                {
+                    closed = true;
+                    failed.run();
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // closed
+        }
+        finally
+        {
+            closed = true;
+            for (Pending p = queue.poll(); p != null; p = queue.poll())
+            {
+                p.committed.completeExceptionally(new RemoteException(replica + " has left the cluster."));
+            }
+        }
+    }
+
+    /**
+     * Commit a request on the server within the deadline of the server.
+     *
+     * @return true if committed.
+     */
+    private boolean commit(Pending p) throws InterruptedException
+    {
+        final long begin = System.nanoTime();
+        final Future<Void> call = calls.submit(() ->
+                                               {
+                                                   service.commit(p.request, lease.applyAsLong(System.nanoTime()));
+                                                   return null;
+                                               });
+        try
+        {
+            call.get(detector.timeout(replica), TimeUnit.NANOSECONDS);
+            detector.called(replica, System.nanoTime() - begin);
+            p.committed.complete(null);
+            return true;
+        }
+        catch (TimeoutException e)
+        {
+            call.cancel(true);
+            Logger.warning("Replicated server " + replica + " didn't respond in time.");
+            p.committed.completeExceptionally(e);
+        }
+        catch (ExecutionException e)
+        {
+            Logger.warning("Replicated server " + replica + " didn't respond in time.", e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+            p.committed.completeExceptionally(e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            call.cancel(true);
+            p.committed.completeExceptionally(new RemoteException(replica + " has left the cluster."));
+            throw e;
+        }
+        return false;
+    }
+
+    /**
+     * Stop sending, failing the requests still queued.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        sender.interrupt();
+    }
+
+    @Override
+    public String toString()
+    {
+        return replica + " [backlog=" + queue.size() + (closed ? ", closed" : "") + "]";
+    }
+}
@@ -0,0 +1,56 @@
+package server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import common.*;
+import protocol.PutRequest;
+
+/**
+ * The compression of large values by the server a PUT enters, so that they are
+ * replicated, logged and stored compressed, and only decompressed when a read
+ * returns them.
+ */
+class Compressor
+{
+    private final int threshold = Config.compressionThreshold();
+    private final LongAdder candidates = new LongAdder();
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder rawChars = new LongAdder();
+    private final LongAdder storedChars = new LongAdder();
+
+    /**
+     * Compress the value of a request if it is large enough and compresses well.
+     *
+     * @param r the request entering the server
+     */
+    void compress(PutRequest r)
+    {
+        if (threshold <= 0 || r.val.length() < threshold)
+        {
+            return;
+        }
+
+        candidates.increment();
+        rawChars.add(r.val.length());
+        final String stored = StoredValue.compress(r.val);
+        if (stored == null)
+        {
+            storedChars.add(r.val.length());
+            return;
+        }
+
+        compressed.increment();
+        storedChars.add(stored.length());
+        r.val = stored;
+        r.compressed = true;
+    }
+
+    @Override
+    public String toString()
+    {
+        long raw = rawChars.sum();
+        return "Compression [threshold=" + threshold + ", compressed=" + compressed.sum() + "/" + candidates.sum()
+             + ", raw=" + raw + ", stored=" + storedChars.sum()
+             + ", ratio=" + (raw == 0 ? "n/a" : String.format("%.3f", (double) storedChars.sum() / raw)) + "]";
+    }
+}
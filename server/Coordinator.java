@@ -0,0 +1,1221 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.rmi.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+import common.*;
+import protocol.*;
+import transaction.TransactionId;
+import transaction.UniqueIdService;
+
+/**
+ * The coordinator service.
+ *
+ * Write requests run their two-phase commit concurrently unless they write
+ * keys on a common stripe of the key locks, in which case they run in arrival
+ * order. Membership changes hold the membership lock exclusively, so they wait
+ * for the requests in flight and the requests arriving meanwhile wait for them.
+ * A joining server takes the state of the coordinator while requests keep
+ * being committed, and only holds the lock to connect and to register.
+ */
+class Coordinator implements CoordinatorService
+{
+    private UniqueIdService id;
+    private ServerState state;
+    private final EndPoint local; 
+    private Paxos<Request> logs;
+    private WriteAheadLog wal;
+    private final ExecutorService pool = Executors.newFixedThreadPool(Config.defaultPaxosThreads());
+    private final ExecutorService fanout = Executors.newCachedThreadPool((Runnable r) ->
+                                           {
+                                               Thread t = new Thread(r, "fan-out");
+                                               t.setDaemon(true);
+                                               return t;
+                                           });
+    private final KeyLocks keys = new KeyLocks();
+    private final ReentrantReadWriteLock membership = new ReentrantReadWriteLock(true);
+    private final ConcurrentHashMap<EndPoint, Long> leases = new ConcurrentHashMap<>(); // until when in System.nanoTime()
+    private long fence = System.nanoTime(); // until when the removed servers may still answer reads
+    private final ConcurrentHashMap<EndPoint, Transfer> transfers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<EndPoint, CommitStream> streams = new ConcurrentHashMap<>();
+    private final FailureDetector detector = new FailureDetector();
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor((Runnable r) ->
+                                                        {
+                                                            Thread t = new Thread(r, "heartbeat");
+                                                            t.setDaemon(true);
+                                                            return t;
+                                                        });
+    
+    public Coordinator(UniqueIdService id, 
+                       ServerState state, 
+                       EndPoint local,
+                       WriteAheadLog wal)
+    {
+        this.id = id;
+        this.state = state;
+        this.local = local;
+        this.logs = new Paxos<>(state.paxos);
+        this.wal = wal;
+        state.detector = detector;
+        heartbeats.scheduleWithFixedDelay(this::heartbeat, Config.heartbeatInterval(), Config.heartbeatInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send a heartbeat to every replicated server without waiting for the
+     * answers, and exclude the servers suspected to have failed.
+     */
+    private void heartbeat()
+    {
+        final ArrayList<EndPoint> suspected = new ArrayList<>();
+        state.replicas.forEach((EndPoint p, ReplicaService r) ->
+                               {
+                                   if (detector.suspected(p))
+                                   {
+                                       Logger.warning(String.format("Replicated server %s is suspected to have failed (phi=%.2f).", p, detector.phi(p)));
+                                       suspected.add(p);
+                                   }
+                                   else if (detector.ping(p))
+                                   {
+                                       try
+                                       {
+                                           fanout.execute(() ->
+                                                          {
+                                                              try
+                                                              {
+                                                                  r.heartbeat();
+                                                                  detector.heartbeat(p, true);
+                                                              }
+                                                              catch (RemoteException e)
+                                                              {
+                                                                  detector.heartbeat(p, false);
+                                                              }
+                                                          });
+                                       }
+                                       catch (RejectedExecutionException e)
+                                       {
+                                           // stopped
+                                       }
+                                   }
+                               });
+
+        if (!suspected.isEmpty())
+        {
+            membership.readLock().lock();
+            try
+            {
+                exclude(suspected);
+            }
+            finally
+            {
+                membership.readLock().unlock();
+            }
+        }
+    }
+    
+    /**
+     * A remote call to a replicated server.
+     */
+    @FunctionalInterface
+    private interface Call<T>
+    {
+        T call(EndPoint addr, ReplicaService replica) throws RemoteException;
+    }
+
+    /**
+     * Call replicated servers in parallel and gather the results as the calls
+     * complete, so the broadcast takes as long as the slowest server rather than
+     * all of them together. Every call has to complete within the fan-out
+     * timeout.
+     * 
+     * @param targets the servers to be called
+     * @param call the call
+     * @param unresponsive the list the servers that failed or timed out are added to
+     * @return the results of the servers that responded in time.
+     */
+    private <T> HashMap<EndPoint, T> broadcast(Map<EndPoint, ReplicaService> targets, Call<T> call, List<EndPoint> unresponsive)
+    {
+        final long start = System.nanoTime();
+        final CompletionService<T> calls = new ExecutorCompletionService<>(fanout);
+        final HashMap<Future<T>, EndPoint> pending = new HashMap<>(targets.size());
+        final HashMap<EndPoint, Long> deadlines = new HashMap<>(targets.size());
+        targets.forEach((EndPoint p, ReplicaService r) ->
+                        {
+                            deadlines.put(p, start + detector.timeout(p));
+                            pending.put(calls.submit(() -> 
+                                                     {
+                                                         final long begin = System.nanoTime();
+                                                         final T result = call.call(p, r);
+                                                         detector.called(p, System.nanoTime() - begin);
+                                                         return result;
+                                                     }), 
+                                        p);
+                        });
+
+        final HashMap<EndPoint, T> results = new HashMap<>(targets.size());
+        try
+        {
+            while (!pending.isEmpty())
+            {
+                long deadline = Long.MAX_VALUE;
+                for (EndPoint p : pending.values())
+                {
+                    deadline = Math.min(deadline, deadlines.get(p));
+                }
+
+                final Future<T> f = calls.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (f == null)
+                {
+                    // the calls past their deadlines timed out
+                    final long now = System.nanoTime();
+                    pending.entrySet().removeIf((Map.Entry<Future<T>, EndPoint> e) ->
+                                                {
+                                                    if (deadlines.get(e.getValue()) - now > 0)
+                                                    {
+                                                        return false;
+                                                    }
+                                                    e.getKey().cancel(true);
+                                                    Logger.warning("Replicated server " + e.getValue() + " didn't respond in time.");
+                                                    unresponsive.add(e.getValue());
+                                                    return true;
+                                                });
+                    continue;
+                }
+
+                final EndPoint p = pending.remove(f);
+                if (p == null)
+                {
+                    continue; // timed out already
+                }
+                try
+                {
+                    results.put(p, f.get());
+                }
+                catch (CancellationException e)
+                {
+                    // timed out already
+                }
+                catch (ExecutionException e)
+                {
+                    Logger.warning("Replicated server " + p + " didn't respond in time.", e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                    unresponsive.add(p);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        pending.forEach((Future<T> f, EndPoint p) ->
+                        {
+                            f.cancel(true);
+                            Logger.warning("Replicated server " + p + " didn't respond in time.");
+                            unresponsive.add(p);
+                        });
+        return results;
+    }
+
+    /**
+     * Exclude unresponsive servers from future operations as if they have been
+     * disconnected.
+     * 
+     * @param unresponsive a list of unresponsive servers
+     */
+    private void exclude(ArrayList<EndPoint> unresponsive)
+    {
+        while (unresponsive.size() != 0)
+        {
+            for (EndPoint u : unresponsive)
+            {
+                Logger.log("Removing unresponsive server " + u + " in coordinator.");
+                state.replicas.remove(u);
+                detector.remove(u);
+                close(u);
+                expire(u);
+            }
+
+            final ArrayList<EndPoint> excluded = unresponsive;
+            ArrayList<EndPoint> newUnresponsive = new ArrayList<EndPoint>();
+            broadcast(state.replicas, 
+                      (EndPoint p, ReplicaService r) ->
+                      {
+                          for (EndPoint u : excluded)
+                          {
+                              Logger.log("Removing unresponsive server " + u + " in " + p + ".");
+                              r.remove(u);
+                          }
+                          return true;
+                      }, 
+                      newUnresponsive);
+            unresponsive = newUnresponsive;
+        }
+    }
+
+    /**
+     * Grant a read lease to a replicated server unless it has left the cluster.
+     * The grant is recorded before the server is checked, and the server is
+     * removed before its lease is looked up, so a server is either refused or
+     * waited for.
+     * 
+     * @param replica the server
+     * @param now the time the lease is counted from in System.nanoTime()
+     * @return the duration of the lease in milliseconds; 0 if not granted.
+     */
+    private long grant(EndPoint replica, long now)
+    {
+        final long duration = Config.leaseDuration();
+        if (duration <= 0)
+        {
+            return 0;
+        }
+        leases.merge(replica, now + TimeUnit.MILLISECONDS.toNanos(duration), (Long a, Long b) -> a - b > 0 ? a : b);
+        return state.replicas.containsKey(replica) ? duration : 0;
+    }
+
+    /**
+     * Hold back the writes until the read lease of a server removed from the
+     * cluster runs out, so that it no longer answers reads once the writes it
+     * misses complete. The writes wait in fenced(), outside their stripes.
+     */
+    private void expire(EndPoint replica)
+    {
+        // kept until the server connects again, for the others excluding it meanwhile
+        final Long until = leases.get(replica);
+        if (until == null)
+        {
+            return;
+        }
+        synchronized (leases)
+        {
+            if (until - fence > 0)
+            {
+                fence = until;
+            }
+        }
+        if (until - System.nanoTime() > 0)
+        {
+            Logger.log("Holding back the writes " + TimeUnit.NANOSECONDS.toMillis(until - System.nanoTime()) + " ms for the read lease of " + replica + " to run out.");
+        }
+    }
+
+    /**
+     * Wait for the read leases of the servers removed so far to run out before
+     * a write is acknowledged.
+     */
+    private void fenced()
+    {
+        final long until;
+        synchronized (leases)
+        {
+            until = fence;
+        }
+        final long left = until - System.nanoTime();
+        if (left > 0)
+        {
+            try
+            {
+                TimeUnit.NANOSECONDS.sleep(left);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the commit stream to a replicated server, started on its first
+     *         request.
+     */
+    private CommitStream stream(EndPoint replica, ReplicaService service)
+    {
+        return streams.computeIfAbsent(replica, (EndPoint p) -> new CommitStream(p, 
+                                                                                 service, 
+                                                                                 detector, 
+                                                                                 fanout, 
+                                                                                 (long now) -> grant(p, now), 
+                                                                                 () -> excludeLater(p, service)));
+    }
+
+    /**
+     * Stop the commit stream to a server that has left the cluster.
+     */
+    private void close(EndPoint replica)
+    {
+        final CommitStream s = streams.remove(replica);
+        if (s != null)
+        {
+            s.close();
+        }
+    }
+
+    /**
+     * Exclude a server whose commit stream has failed unless it has left the
+     * cluster already, as nobody may be waiting for the commit that failed.
+     */
+    private void excludeLater(EndPoint replica, ReplicaService service)
+    {
+        try
+        {
+            fanout.execute(() ->
+                           {
+                               membership.readLock().lock();
+                               try
+                               {
+                                   if (state.replicas.get(replica) == service)
+                                   {
+                                       exclude(new ArrayList<>(Arrays.asList(replica)));
+                                   }
+                               }
+                               finally
+                               {
+                                   membership.readLock().unlock();
+                               }
+                           });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // stopped
+        }
+    }
+
+    /**
+     * Wait until a request has been committed on as many servers as its
+     * durability requires, the coordinator included: none else for ONE, a
+     * majority of the cluster for QUORUM and every server for ALL. The servers
+     * that failed to commit it are added to the unresponsive ones; once they
+     * are excluded, the request has been committed on every server left if it
+     * has to.
+     * 
+     * @param request the request applied on the coordinator
+     * @param sent the commits queued to the replicated servers
+     * @param unresponsive the list the servers that failed are added to
+     */
+    private void replicated(Request request, HashMap<EndPoint, CompletableFuture<Void>> sent, List<EndPoint> unresponsive)
+    {
+        final int needed;
+        switch (request.durability())
+        {
+        case ONE:
+            needed = 0;
+            break;
+        case QUORUM:
+            needed = (sent.size() + 1) / 2;
+            break;
+        default:
+            needed = sent.size();
+            break;
+        }
+
+        final LinkedBlockingQueue<EndPoint> done = new LinkedBlockingQueue<>();
+        final ConcurrentHashMap<EndPoint, Boolean> failed = new ConcurrentHashMap<>();
+        sent.forEach((EndPoint p, CompletableFuture<Void> f) ->
+                     {
+                         f.whenComplete((Void v, Throwable e) ->
+                                        {
+                                            if (e != null)
+                                            {
+                                                failed.put(p, true);
+                                            }
+                                            done.add(p);
+                                        });
+                     });
+        try
+        {
+            for (int answered = 0, committed = 0; committed < needed && answered < sent.size(); answered++)
+            {
+                final EndPoint p = done.take();
+                if (failed.containsKey(p))
+                {
+                    unresponsive.add(p);
+                }
+                else
+                {
+                    committed++;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public long lease(EndPoint replica) throws RemoteException
+    {
+        return grant(replica, System.nanoTime());
+    }
+
+    /**
+     * Allow the replicated server to connect and start taking the state the
+     * coordinator currently has, while requests keep being committed. The server
+     * takes the store with transfer and the requests committed since with
+     * catchUp, then has to register its replica service to take part in the
+     * requests.
+     * 
+     * @param replica the replicated server
+     * @return all the currently available servers and the PAXOS state, without
+     *         the store.
+     */
+    @Override
+    public ServerState connect(EndPoint replica) throws RemoteException
+    {
+        membership.writeLock().lock();
+        try
+        {
+            leases.remove(replica);
+            final Transfer previous = transfers.put(replica, new Transfer(state.store, replica));
+            if (previous != null)
+            {
+                previous.cancel();
+            }
+            Logger.log(replica + " has connected.");
+            final ServerState joined = new ServerState(null, state.replicas, state.paxos);
+            joined.shard = state.shard;
+            return joined;
+        }
+        finally
+        {
+            membership.writeLock().unlock();
+        }
+    }
+
+    private Transfer transfer(EndPoint replica, boolean remove) throws RemoteException
+    {
+        final Transfer t = remove ? transfers.remove(replica) : transfers.get(replica);
+        if (t == null)
+        {
+            throw new RemoteException(replica + " isn't joining the cluster.");
+        }
+        return t;
+    }
+
+    @Override
+    public ArrayList<byte[]> transfer(EndPoint replica) throws RemoteException
+    {
+        return transfer(replica, false).next();
+    }
+
+    @Override
+    public ArrayList<Request> catchUp(EndPoint replica) throws RemoteException
+    {
+        return transfer(replica, false).drain();
+    }
+
+    /**
+     * Register the replicated server to the coordinator once it has the state of
+     * the coordinator, replaying there the requests committed since it last
+     * caught up before it takes part in any request. The requests are held
+     * meanwhile, so the server is refused if it has more than
+     * Config.joinBacklog() requests to replay.
+     */
+    @Override
+    public boolean register(EndPoint replica, ReplicaService service) throws RemoteException
+    {
+        membership.writeLock().lock();
+        try
+        {
+            final Transfer t = transfer(replica, false);
+            if (t.backlog() > Config.joinBacklog())
+            {
+                Logger.log(replica + " has to catch up on " + t.backlog() + " requests before registering.");
+                return false;
+            }
+            transfers.remove(replica, t);
+            final ArrayList<Request> rest = t.drain();
+            t.cancel();
+            service.replay(rest);
+            Logger.log(replica + " has replayed the last " + rest.size() + " requests.");
+
+            close(replica);
+            state.replicas.put(replica, service);
+            add(replica, service);
+        }
+        finally
+        {
+            membership.writeLock().unlock();
+        }
+
+        Logger.log(replica + " has registered itself.");
+        return true;
+    }
+
+    /**
+     * Add a registered replicated server to all the others.
+     */
+    private void add(EndPoint replica, ReplicaService service)
+    {
+        HashMap<EndPoint, ReplicaService> others = new HashMap<>(state.replicas);
+        others.remove(replica);
+
+        ArrayList<EndPoint> unresponsive = new ArrayList<EndPoint>();
+        broadcast(others, 
+                  (EndPoint p, ReplicaService r) ->
+                  {
+                      Logger.log("Adding replicated server " + replica + " in " + p + ".");
+                      r.add(replica, service);
+                      return true;
+                  }, 
+                  unresponsive);
+        exclude(unresponsive);
+    }
+
+    @Override
+    public void disconnect(EndPoint replica) throws RemoteException
+    {
+        membership.writeLock().lock();
+        try
+        {
+            remove(replica);
+        }
+        finally
+        {
+            membership.writeLock().unlock();
+        }
+
+        Logger.log(replica + " has been disconnected.");
+    }
+
+    /**
+     * Remove a disconnected replicated server from all the servers.
+     */
+    private void remove(EndPoint replica)
+    {
+        state.replicas.remove(replica);
+        leases.remove(replica);
+        detector.remove(replica);
+        close(replica);
+
+        ArrayList<EndPoint> unresponsive = new ArrayList<EndPoint>();
+        broadcast(state.replicas, 
+                  (EndPoint p, ReplicaService r) ->
+                  {
+                      Logger.log("Removing replicated server " + replica + " in " + p + ".");
+                      r.remove(replica);
+                      return true;
+                  }, 
+                  unresponsive);
+        exclude(unresponsive);
+    }
+
+    @Override
+    public void shutdown() throws RemoteException
+    {
+        membership.writeLock().lock();
+        try
+        {
+            stop();
+        }
+        finally
+        {
+            membership.writeLock().unlock();
+        }
+    }
+
+    private void stop()
+    {
+        broadcast(state.replicas, 
+                  (EndPoint p, ReplicaService r) ->
+                  {
+                      Logger.log("Shutting down replicated server " + p + ".");
+                      r.shutdown();
+                      return true;
+                  }, 
+                  new ArrayList<EndPoint>());
+        heartbeats.shutdown();
+        streams.keySet().forEach(this::close);
+        fanout.shutdown();
+        
+        pool.shutdown();
+        try
+        {
+            while (!pool.awaitTermination(Config.defaultPaxosTimeout(), TimeUnit.MILLISECONDS))
+            {
+                pool.shutdownNow();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean isMajority(int n, int N)
+    {
+        return n > (N / 2);
+    }
+
+    private static class PaxosFailure extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+        
+        PaxosFailure(String msg)
+        {
+            super(msg);
+        }
+    }
+    
+    /**
+     * Propose a value to agree on for a PAXOS round
+     * @param round the PAXOS round
+     * @param value the value to agree on
+     * @return true if the value is actually accepted for the current round.
+     * @throws RemoteException if the id service fails.
+     * @throws PaxosFailure if either the distinguished proposer or learner decides to fail.
+     */
+    private synchronized boolean propose(int round, Request value) throws RemoteException, PaxosFailure
+    {
+        Logger.log(() -> "Running PAXOS round " + round + " with committed request " + value + ".");
+
+        if (Paxos.mightFail())
+        {
+            throw new PaxosFailure("The distinguished proposer decides to fail before phase 1.");
+        }
+        
+        // phase 1
+        final HashMap<EndPoint, Promise<Request>> promises = new HashMap<>(state.replicas.size());
+        final ArrayList<EndPoint> unresponsive = new ArrayList<EndPoint>();
+        while (!isMajority(promises.size(), state.replicas.size()))
+        {
+            final long n = id.next();
+
+            // recollect promises
+            promises.clear();
+            
+            {
+                Promise<Request> p = prepare(round, n);
+                if (p != null)
+                {
+                    Logger.log(() -> "Got " + p + " from " + local + ".");
+                    promises.put(local, p);
+                }
+            }
+            
+            unresponsive.clear();
+            state.replicas.forEach((a, r) -> 
+                                   {
+                                       try
+                                       {
+                                           Promise<Request> p = r.prepare(round, n);
+                                           if (p != null)
+                                           {
+                                               Logger.log(() -> "Got " + p + " from " + a + ".");
+                                               promises.put(a, p);
+                                           }
+                                       }
+                                       catch (RemoteException e)
+                                       {
+                                           Logger.warning("Replicated server " + a + " didn't respond in time.", e);
+                                           unresponsive.add(a);
+                                       }
+                                   });
+            exclude(unresponsive);
+        }
+        
+        if (Paxos.mightFail())
+        {
+            throw new PaxosFailure("The distinguished proposer decides to fail after phase 1 but before phase 2.");
+        }
+        
+        // phase 2
+        final long pid = promises.values().stream().findAny().get().getId(); // promises shouldn't be empty
+        final Optional<Promise<Request>> highest = promises.values().stream()
+                                                  .filter((p) -> { return p.getProposal() != null; })
+                                                  .max((a, b) -> { return Long.compare(a.getProposal().getId(), b.getProposal().getId());});
+        final Request val = highest.isPresent() ? highest.get().getProposal().getValue() : value;
+        final Proposal<Request> proposal = new Proposal<Request>(pid, val);
+
+        // collect accepted values based on promises
+        final ArrayList<Request> accepted = new ArrayList<>(promises.size());
+        while (accepted.isEmpty())
+        {
+            unresponsive.clear();
+            promises.forEach((EndPoint a, Promise<Request> p) -> 
+                             {
+                                 try
+                                 {
+                                     final ReplicaService r = state.replicas.get(a);
+                                     
+                                     final Request v;
+                                     if (r == null) // coordinator
+                                     {
+                                         v = accept(round, proposal);
+                                     }
+                                     else 
+                                     {
+                                         v = r.accept(round, proposal);
+                                     }
+                                     
+                                     if (v != null) 
+                                     {
+                                         Logger.log(() -> "Server " + a + " has accepted " + proposal + ".");
+                                         accepted.add(v);
+                                     }
+                                 }
+                                 catch (PaxosException e)
+                                 {
+                                     Logger.debug(e);
+                                 }
+                                 catch (RemoteException e)
+                                 {
+                                     Logger.warning("Replicated server " + a + " didn't respond in time.", e);
+                                     unresponsive.add(a);
+                                 }
+                             });
+            exclude(unresponsive);
+        }
+        
+        if (Paxos.mightFail())
+        {
+            throw new PaxosFailure("The distinguished learner decides to fail.");
+        }
+        
+        // learn the accepted value
+        Logger.debug(() -> "Accepted values: " + accepted);
+        final Request agreed = accepted.stream().findAny().get(); // note the accepted cannot be empty
+        learn(round, agreed);
+        unresponsive.clear();
+        state.replicas.forEach((EndPoint a, ReplicaService r) ->
+                                {
+                                    try
+                                    {
+                                        r.learn(round, agreed);
+                                        Logger.log(() -> "Server " + a + " has learned value " + agreed + " in round " + round + ".");
+                                    }
+                                    catch (RemoteException e)
+                                    {
+                                        unresponsive.add(a);
+                                    }
+                                });
+        exclude(unresponsive);
+        
+        return !highest.isPresent() || highest.get().getProposal().getValue().equals(value);
+    }
+    
+    @Override
+    public Response process(Request request, TransactionId tid) throws RemoteException
+    {
+        if (state.groupCommit != null && (request instanceof PutRequest || request instanceof DeleteRequest))
+        {
+            return state.groupCommit.submit(request, tid);
+        }
+        else if (request instanceof GetRequest || request instanceof MultiGetRequest)
+        {
+            // reads forwarded by the servers without a lease, answered only once the
+            // writes prepared on their keys have committed
+            if (!state.lease.await(Keys.reads(request), Config.defaultResponseTimeout()))
+            {
+                return new ErrorResponse("Timed out reading " + request + " while its keys are being written.");
+            }
+            return request.accept(new ProcessRequest(state));
+        }
+        else if (request instanceof OpenRequest)
+        {
+            return new TransactionResponse(new TransactionId(id.next()));
+        }
+        else if (request instanceof CommitRequest)
+        {
+            return run((CommitRequest) request);
+        }
+        return run(request, tid);
+    }
+
+    /**
+     * Commit a request on its own.
+     * 
+     * @param request the request
+     * @param tid the transaction Id
+     * @return the response to the request.
+     */
+    Response run(Request request, TransactionId tid)
+    {
+        return locked(request, () ->
+                               {
+                                   if (request instanceof EvictRequest)
+                                   {
+                                       // the keys written since they were chosen are no longer victims
+                                       ((EvictRequest) request).keys.removeIf((String k) -> state.evictor == null || !state.evictor.isVictim(k));
+                                       if (((EvictRequest) request).keys.isEmpty())
+                                       {
+                                           return new ProcessResponse("0");
+                                       }
+                                   }
+                                   try
+                                   {
+                                       return commit(request, () -> request.accept(new ProcessRequest(state)));
+                                   }
+                                   catch (UncheckedIOException e)
+                                   {
+                                       return new ErrorResponse(e.getMessage(), e.getCause());
+                                   }
+                               });
+    }
+
+    /**
+     * Commit the writes of a batch together.
+     * 
+     * @param batch the batch
+     * @return the responses to the writes in order.
+     */
+    ArrayList<Response> run(BatchRequest batch)
+    {
+        return locked(batch, () -> commit(batch, () -> new ProcessRequest(state).apply(batch)));
+    }
+
+    /**
+     * Commit the writes of a transaction together if none of the keys it has
+     * read has changed since, holding the stripes of the keys both read and
+     * written so that they cannot change while being checked and committed.
+     * 
+     * @param request the transaction read and write sets
+     * @return the transaction Id if committed; an error if aborted.
+     */
+    Response run(CommitRequest request)
+    {
+        final ArrayList<String> touched = new ArrayList<>(request.reads.keySet());
+        for (Request w : request.writes)
+        {
+            touched.addAll(Keys.writes(w));
+        }
+        if (touched.isEmpty())
+        {
+            return new TransactionResponse(request.tid);
+        }
+
+        return locked(touched, () ->
+                               {
+                                   for (Map.Entry<String, String> read : request.reads.entrySet())
+                                   {
+                                       if (!Objects.equals(state.store.get(read.getKey()), read.getValue()))
+                                       {
+                                           Logger.log(() -> "Transaction " + request.tid + " has been aborted as key " + read.getKey() + " has changed.");
+                                           return new ErrorResponse("Transaction " + request.tid + " has been aborted as key " + read.getKey() + " has changed since it was read.");
+                                       }
+                                   }
+                                   if (request.writes.isEmpty())
+                                   {
+                                       return new TransactionResponse(request.tid);
+                                   }
+
+                                   final BatchRequest batch = new BatchRequest(request.writes);
+                                   try
+                                   {
+                                       return commit(batch, 
+                                                     () -> 
+                                                     {
+                                                         new ProcessRequest(state).apply(batch);
+                                                         return new TransactionResponse(request.tid);
+                                                     });
+                                   }
+                                   catch (UncheckedIOException e)
+                                   {
+                                       return new ErrorResponse(e.getMessage(), e.getCause());
+                                   }
+                               });
+    }
+
+    /**
+     * Run an action holding the membership lock and the stripes of the keys
+     * written by a request.
+     */
+    private <T> T locked(Request request, Supplier<T> action)
+    {
+        return locked(Keys.writes(request), action);
+    }
+
+    /**
+     * Run an action holding the membership lock and the stripes of some keys,
+     * and return its result once the removed servers can no longer answer reads
+     * that miss it.
+     */
+    private <T> T locked(List<String> touched, Supplier<T> action)
+    {
+        final T result;
+        membership.readLock().lock();
+        try
+        {
+            final int[] held = keys.lock(touched);
+            try
+            {
+                result = action.get();
+            }
+            finally
+            {
+                keys.unlock(held);
+            }
+        }
+        finally
+        {
+            membership.readLock().unlock();
+        }
+        fenced();
+        return result;
+    }
+
+    private static void fixDeadlines(Request request, long now)
+    {
+        if (request instanceof PutRequest)
+        {
+            ((PutRequest) request).fixDeadline(now);
+        }
+        else if (request instanceof BatchRequest)
+        {
+            for (Request r : ((BatchRequest) request).requests)
+            {
+                fixDeadlines(r, now);
+            }
+        }
+    }
+
+    /**
+     * Run the two-phase commit of a request holding the stripes of its keys. The
+     * request is logged before it is sent to the replicas, so that a request
+     * the write-ahead log refuses is aborted everywhere instead.
+     * 
+     * @param request the request
+     * @param apply the action applying the request to the local store
+     * @return the result of apply.
+     * @throws UncheckedIOException if the request cannot be logged.
+     */
+    private <T> T commit(Request request, Supplier<T> apply)
+    {
+        fixDeadlines(request, System.currentTimeMillis());
+
+        // two-phase commit protocol
+
+        // 1. preparing phase, holding the keys in the read leases
+        Logger.log(() -> "Preparing request " + request);
+        final ArrayList<EndPoint> unresponsive = new ArrayList<EndPoint>();
+        broadcast(state.replicas, 
+                  (EndPoint a, ReplicaService r) ->
+                  {
+                      r.prepare(request);
+                      Logger.log(() -> "Prepared request " + request + " on server " + a + ".");
+                      return true;
+                  }, 
+                  unresponsive);
+        exclude(unresponsive);
+
+        // 2. completion phase
+        unresponsive.clear();
+
+        // run PAXOS concurrently
+        Future<Void> f = pool.submit(() -> 
+                                    {
+                                       int round = state.paxos.getNextRound();
+                                       while (true)
+                                       {
+                                           try
+                                           {
+                                               boolean behind = !propose(round, request);
+                                               if (behind)
+                                               {
+                                                   Logger.debug("PAXOS round " + round + " finished but behind.");
+                                                   round++;
+                                               }
+                                               else
+                                               {
+                                                   Logger.debug("PAXOS round " + round + " finished.");
+                                                   return null;
+                                               }
+                                           }   
+                                           catch (PaxosFailure e)
+                                           {
+                                               Logger.warning(e);
+                                               // retry current round
+                                           }
+                                       }
+                                    });
+        
+        Logger.log(() -> "Committing request " + request + " with durability " + request.durability());
+        final T response;
+        state.lease.prepare(request);
+        try
+        {
+            // queued in commit order, and committed by the servers lagging behind later
+            final HashMap<EndPoint, CompletableFuture<Void>> sent = new HashMap<>(state.replicas.size());
+            try
+            {
+                response = wal.commit(request, 
+                                      () ->
+                                      {
+                                          state.replicas.forEach((EndPoint p, ReplicaService r) ->
+                                                                 {
+                                                                     Logger.log(() -> "Committing request " + request + " on server " + p + ".");
+                                                                     sent.put(p, stream(p, r).send(request));
+                                                                 });
+                                          return apply.get();
+                                      });
+            }
+            catch (IOException e)
+            {
+                f.cancel(true);
+                abort(request);
+                throw new UncheckedIOException("Request " + request + " has been refused as it cannot be logged.", e);
+            }
+            transfers.forEach((EndPoint p, Transfer t) ->
+                              {
+                                  if (t.stale())
+                                  {
+                                      Logger.warning("Dropping the stale state transfer to " + p + ".");
+                                      t.cancel();
+                                      transfers.remove(p, t);
+                                  }
+                                  else
+                                  {
+                                      t.log(request);
+                                  }
+                              });
+
+            replicated(request, sent, unresponsive);
+            exclude(unresponsive);
+        }
+        finally
+        {
+            state.lease.resolve(request, 0);
+        }
+        Logger.log(() -> "Request " + request + " has been committed.");
+        committed(request);
+        
+        // run PAXOS concurrently
+        pool.submit(() -> 
+                    {
+                        try
+                        {
+                            f.get(Config.defaultPaxosTimeout(), TimeUnit.MILLISECONDS);
+                        }
+                        catch (TimeoutException e)
+                        {
+                            Logger.warning("PAXOS didn't complete in time.");
+                            f.cancel(true);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                        catch (ExecutionException e)
+                        {
+                            Logger.warning("PAXOS didn't complete properly.", e);
+                        }
+                    });
+        
+        return response;
+    }
+
+    /**
+     * Release the keys of a prepared request on the replicas without committing
+     * it.
+     */
+    private void abort(Request request)
+    {
+        final ArrayList<EndPoint> unresponsive = new ArrayList<EndPoint>();
+        broadcast(state.replicas, 
+                  (EndPoint a, ReplicaService r) ->
+                  {
+                      r.abort(request);
+                      Logger.log(() -> "Aborted request " + request + " on server " + a + ".");
+                      return true;
+                  }, 
+                  unresponsive);
+        exclude(unresponsive);
+    }
+
+    /**
+     * Keep the expiry and the eviction of keys up to date with a committed request.
+     */
+    private void committed(Request request)
+    {
+        if (request instanceof BatchRequest)
+        {
+            ((BatchRequest) request).requests.forEach(this::committed);
+        }
+        else if (request instanceof MultiPutRequest)
+        {
+            ((MultiPutRequest) request).puts.forEach(this::committed);
+        }
+        else if (request instanceof PutRequest)
+        {
+            final PutRequest put = (PutRequest) request;
+            if (put.deadline > 0 && state.expirer != null)
+            {
+                state.expirer.schedule(put.key, put.deadline);
+            }
+            if (state.evictor != null)
+            {
+                state.evictor.written(put.key, StoredValue.encode(put.val, put.compressed, put.deadline));
+            }
+        }
+        else if (state.evictor == null)
+        {
+            return;
+        }
+        else if (request instanceof DeleteRequest)
+        {
+            state.evictor.removed(((DeleteRequest) request).key);
+        }
+        else if (request instanceof EvictRequest)
+        {
+            ((EvictRequest) request).keys.forEach(state.evictor::removed);
+        }
+        else if (request instanceof MultiDeleteRequest)
+        {
+            ((MultiDeleteRequest) request).keys.forEach(state.evictor::removed);
+        }
+        else if (request instanceof ExpireRequest)
+        {
+            for (String k : ((ExpireRequest) request).keys)
+            {
+                if (state.store.get(k) == null)
+                {
+                    state.evictor.removed(k);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the coordinator followed by the replicated servers.
+     */
+    @Override
+    public ArrayList<EndPoint> members() throws RemoteException
+    {
+        final ArrayList<EndPoint> members = new ArrayList<>(state.replicas.size() + 1);
+        members.add(local);
+        members.addAll(state.replicas.keySet());
+        return members;
+    }
+
+    @Override
+    public void touch(ArrayList<String> keys) throws RemoteException
+    {
+        if (state.evictor != null)
+        {
+            state.evictor.touch(keys);
+        }
+    }
+
+    @Override
+    public Promise<Request> prepare(int round, long id) throws RemoteException
+    {
+        return logs.prepare(round, id);
+    }
+
+    @Override
+    public Request accept(int round, Proposal<Request> proposal) throws RemoteException
+    {
+        return logs.accept(round, proposal);
+    }
+
+    @Override
+    public void learn(int round, Request value) throws RemoteException
+    {
+        logs.learn(round, value);
+    }
+}
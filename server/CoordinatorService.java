@@ -1,6 +1,7 @@
 package server;
 
 import java.rmi.*;
+import java.util.ArrayList;
 import common.EndPoint;
 import protocol.*;
 import transaction.TransactionId;
@@ -19,14 +20,38 @@ public interface CoordinatorService extends PaxosService<Request>
      */
     ServerState connect(EndPoint replica) throws RemoteException;
 
+    /**
+     * Take the next chunk of the store of the coordinator as of when a
+     * replicated server connected. Chunks can be taken in parallel.
+     * 
+     * @param replica the endpoint location for the server
+     * @return the keys in UTF-8 and the stored values as their bytes of the
+     *         chunk, alternately; null once the whole store has been taken.
+     * @throws RemoteException
+     */
+    ArrayList<byte[]> transfer(EndPoint replica) throws RemoteException;
+
+    /**
+     * Take the requests committed since a replicated server connected or last
+     * caught up.
+     * 
+     * @param replica the endpoint location for the server
+     * @return the requests in commit order.
+     * @throws RemoteException
+     */
+    ArrayList<Request> catchUp(EndPoint replica) throws RemoteException;
+
     /**
      * Register the replica/participant service in the coordinator.
      * 
      * @param replica the endpoint location for the server
      * @param service the replica service
+     * @return true if registered; false if more than Config.joinBacklog()
+     *         requests have been committed since the server last caught up,
+     *         in which case it has to catch up again.
      * @throws RemoteException
      */
-    void register(EndPoint replica, ReplicaService service) throws RemoteException;
+    boolean register(EndPoint replica, ReplicaService service) throws RemoteException;
 
     /**
      * Disconnect a replicated server.
@@ -52,4 +77,25 @@ public interface CoordinatorService extends PaxosService<Request>
      * @throws RemoteException 
      */
     Response process(Request request, TransactionId tid) throws RemoteException;
+
+    /**
+     * Grant a replicated server a read lease counted from before it asked, if
+     * it is still in the cluster.
+     * 
+     * @param replica the endpoint location for the server
+     * @return the duration of the lease in milliseconds; 0 if none is granted.
+     * @throws RemoteException
+     */
+    long lease(EndPoint replica) throws RemoteException;
+
+    /**
+     * Report the keys read on a server to the eviction policy of the coordinator
+     * in cache mode.
+     * 
+     * @param keys the keys read
+     * @throws RemoteException
+     */
+    void touch(ArrayList<String> keys) throws RemoteException;
+
+    ArrayList<EndPoint> members() throws RemoteException;
 }
@@ -0,0 +1,125 @@
+package server;
+
+import java.io.Closeable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import common.*;
+import protocol.*;
+
+/**
+ * The eviction of keys on the coordinator in cache mode.
+ *
+ * The coordinator feeds every committed write and every reported read to a
+ * W-TinyLFU policy bounded by the byte budget of the store. The keys it
+ * chooses to evict are removed on all the servers by EVICT requests committed
+ * like any other write. A victim written again before its eviction commits is
+ * kept, since the coordinator drops the keys which are no longer victims from
+ * an EVICT request before preparing it.
+ */
+class Evictor implements Closeable
+{
+    private static final int MAX_BATCH = 10000;
+    private static final long INTERVAL = 50;
+
+    private final KVStore store;
+    private final CoordinatorService coordinator;
+    private final CachePolicy policy = new CachePolicy(Config.cacheBytes());
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor((Runnable r) ->
+                                                   {
+                                                       Thread t = new Thread(r, "evictor");
+                                                       t.setDaemon(true);
+                                                       return t;
+                                                   });
+    private long batches;
+
+    /**
+     * @param store the store of the coordinator
+     * @param coordinator the coordinator committing the evictions
+     */
+    Evictor(KVStore store, CoordinatorService coordinator)
+    {
+        this.store = store;
+        this.coordinator = coordinator;
+    }
+
+    /**
+     * Admit all the keys of the store and start evicting.
+     */
+    void start()
+    {
+        store.forEach((String k, String v) -> policy.write(k, CachePolicy.bytes(k, v)));
+        Logger.log("Admitted the store in cache mode: " + policy + ".");
+        timer.scheduleWithFixedDelay(this::evict, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param keys the keys read on any server
+     */
+    void touch(List<String> keys)
+    {
+        for (String k : keys)
+        {
+            policy.touch(k);
+        }
+    }
+
+    /**
+     * @param key the key of a committed write
+     * @param stored the stored value
+     */
+    void written(String key, String stored)
+    {
+        policy.write(key, CachePolicy.bytes(key, stored));
+    }
+
+    /**
+     * @param key the key removed from the store
+     */
+    void removed(String key)
+    {
+        policy.remove(key);
+    }
+
+    /**
+     * @return true if the key is still to be evicted.
+     */
+    boolean isVictim(String key)
+    {
+        return policy.isVictim(key);
+    }
+
+    private void evict()
+    {
+        for (List<String> keys = policy.victims(MAX_BATCH); !keys.isEmpty(); keys = policy.victims(MAX_BATCH))
+        {
+            try
+            {
+                coordinator.process(new EvictRequest(new ArrayList<>(keys)), null);
+                synchronized (this)
+                {
+                    batches++;
+                }
+            }
+            catch (RemoteException | RuntimeException e)
+            {
+                Logger.warning("Failed to evict " + keys.size() + " keys.", e);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        timer.shutdownNow();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "Eviction [" + policy + ", batches=" + batches + "]";
+    }
+}
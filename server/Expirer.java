@@ -0,0 +1,132 @@
+package server;
+
+import java.io.Closeable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import common.*;
+import protocol.*;
+
+/**
+ * The active expiry of keys on the coordinator.
+ *
+ * Keys written with a TTL are scheduled on a timer wheel. Every tick, the keys
+ * whose deadlines have passed are removed on all the servers by a single
+ * EXPIRE request committed like any other write. Keys rewritten since they
+ * were scheduled are left alone, since EXPIRE only removes the keys whose
+ * stored deadline has passed.
+ */
+class Expirer implements Closeable
+{
+    private static final int MAX_BATCH = 10000;
+
+    private final KVStore store;
+    private final CoordinatorService coordinator;
+    private final long tick = Config.expiryTick();
+    private final TimerWheel wheel = new TimerWheel(tick, System.currentTimeMillis());
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor((Runnable r) ->
+                                                   {
+                                                       Thread t = new Thread(r, "expirer");
+                                                       t.setDaemon(true);
+                                                       return t;
+                                                   });
+    private long batches;
+    private long expired;
+
+    /**
+     * @param store the store of the coordinator
+     * @param coordinator the coordinator committing the expirations
+     */
+    Expirer(KVStore store, CoordinatorService coordinator)
+    {
+        this.store = store;
+        this.coordinator = coordinator;
+    }
+
+    /**
+     * Schedule all the expiring keys of the store and start expiring them.
+     */
+    void start()
+    {
+        store.forEach((String k, String v) ->
+                      {
+                          long deadline = StoredValue.deadline(v);
+                          if (deadline > 0)
+                          {
+                              wheel.schedule(k, deadline);
+                          }
+                      });
+        Logger.log("Scheduled " + wheel.size() + " expiring keys.");
+        timer.scheduleWithFixedDelay(this::expire, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param key the key
+     * @param deadline the time the key expires at in milliseconds since the epoch
+     */
+    void schedule(String key, long deadline)
+    {
+        wheel.schedule(key, deadline);
+    }
+
+    private void expire()
+    {
+        long now = System.currentTimeMillis();
+        ArrayList<String> keys = new ArrayList<>();
+        for (String k : wheel.advance(now))
+        {
+            long deadline = StoredValue.deadline(store.get(k));
+            if (deadline <= 0)
+            {
+                continue; // removed or rewritten without a TTL
+            }
+            if (deadline > now || keys.size() == MAX_BATCH)
+            {
+                wheel.schedule(k, Math.max(deadline, now + tick)); // rewritten with a later deadline or left for the next tick
+                continue;
+            }
+            keys.add(k);
+        }
+        if (keys.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            coordinator.process(new ExpireRequest(keys, now), null);
+            synchronized (this)
+            {
+                batches++;
+                expired += keys.size();
+            }
+        }
+        catch (RemoteException | RuntimeException e)
+        {
+            Logger.warning("Failed to expire " + keys.size() + " keys.", e);
+            reschedule(keys, now + tick);
+        }
+    }
+
+    private void reschedule(List<String> keys, long deadline)
+    {
+        for (String k : keys)
+        {
+            wheel.schedule(k, deadline);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        timer.shutdownNow();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "Expiry [scheduled=" + wheel.size() + ", batches=" + batches + ", expired=" + expired + "]";
+    }
+}
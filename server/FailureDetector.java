@@ -0,0 +1,206 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import common.*;
+
+/**
+ * The phi accrual failure detector of the coordinator over the replicated
+ * servers, which also estimates how long the calls to each server take.
+ *
+ * The coordinator sends every server a heartbeat at a fixed interval, and the
+ * detector keeps the intervals between the last heartbeats answered by a
+ * server. The suspicion of a server, phi, is -log10 of the probability that a
+ * heartbeat is still answered that late given the normal distribution of the
+ * intervals, with some slack for the pauses of a live server. A server is
+ * suspected once phi exceeds Config.phiThreshold().
+ *
+ * The time of every call to a server feeds a smoothed mean and deviation, as
+ * TCP does for its round trips, giving the timeout of the next calls to that
+ * server within [Config.minCallTimeout(), Config.fanoutTimeout()].
+ */
+class FailureDetector
+{
+    private static final int WINDOW = 100;
+    private static final long MIN_DEVIATION = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long PAUSE = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private static class History
+    {
+        final ArrayDeque<Long> intervals = new ArrayDeque<>(WINDOW);
+        double sum;
+        double squares;
+        long last;
+        double rtt = -1; // smoothed in nanoseconds; negative until the first call
+        double deviation;
+        volatile boolean pinging;
+
+        History(long now)
+        {
+            last = now;
+        }
+    }
+
+    private final ConcurrentHashMap<EndPoint, History> histories = new ConcurrentHashMap<>();
+    private final long interval = TimeUnit.MILLISECONDS.toNanos(Config.heartbeatInterval());
+    private final double threshold = Config.phiThreshold();
+
+    private History history(EndPoint replica)
+    {
+        return histories.computeIfAbsent(replica, (EndPoint p) -> new History(System.nanoTime()));
+    }
+
+    /**
+     * Start a heartbeat unless the previous one to the server is still pending.
+     *
+     * @param replica the server
+     * @return true if a heartbeat should be sent.
+     */
+    boolean ping(EndPoint replica)
+    {
+        final History h = history(replica);
+        synchronized (h)
+        {
+            if (h.pinging)
+            {
+                return false;
+            }
+            h.pinging = true;
+            return true;
+        }
+    }
+
+    /**
+     * Record the answer to a heartbeat.
+     *
+     * @param replica the server
+     * @param answered true if the server answered
+     */
+    void heartbeat(EndPoint replica, boolean answered)
+    {
+        final History h = history(replica);
+        final long now = System.nanoTime();
+        synchronized (h)
+        {
+            h.pinging = false;
+            if (!answered)
+            {
+                return;
+            }
+            final long i = now - h.last;
+            h.last = now;
+            if (h.intervals.size() == WINDOW)
+            {
+                final long old = h.intervals.poll();
+                h.sum -= old;
+                h.squares -= (double) old * old;
+            }
+            h.intervals.add(i);
+            h.sum += i;
+            h.squares += (double) i * i;
+        }
+    }
+
+    /**
+     * @param replica the server
+     * @return the suspicion of the server as of now.
+     */
+    double phi(EndPoint replica)
+    {
+        final History h = history(replica);
+        final double mean;
+        final double deviation;
+        final long since;
+        synchronized (h)
+        {
+            final int n = h.intervals.size();
+            mean = (n == 0 ? interval : h.sum / n) + PAUSE;
+            deviation = Math.max(MIN_DEVIATION, n < 2 ? 0 : Math.sqrt(Math.max(0, h.squares / n - (h.sum / n) * (h.sum / n))));
+            since = System.nanoTime() - h.last;
+        }
+
+        // logistic approximation of the normal distribution
+        final double y = (since - mean) / deviation;
+        final double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        return since > mean ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+    }
+
+    /**
+     * @param replica the server
+     * @return true if the server is suspected to have failed.
+     */
+    boolean suspected(EndPoint replica)
+    {
+        return phi(replica) > threshold;
+    }
+
+    /**
+     * Record how long a call to a server took.
+     *
+     * @param replica the server
+     * @param nanos the time taken in nanoseconds
+     */
+    void called(EndPoint replica, long nanos)
+    {
+        final History h = history(replica);
+        synchronized (h)
+        {
+            if (h.rtt < 0)
+            {
+                h.rtt = nanos;
+                h.deviation = nanos / 2.0;
+            }
+            else
+            {
+                h.deviation = 0.75 * h.deviation + 0.25 * Math.abs(h.rtt - nanos);
+                h.rtt = 0.875 * h.rtt + 0.125 * nanos;
+            }
+        }
+    }
+
+    /**
+     * @param replica the server
+     * @return the timeout of the next call to the server in nanoseconds.
+     */
+    long timeout(EndPoint replica)
+    {
+        final long max = TimeUnit.MILLISECONDS.toNanos(Config.fanoutTimeout());
+        final History h = histories.get(replica);
+        if (h == null)
+        {
+            return max;
+        }
+        synchronized (h)
+        {
+            if (h.rtt < 0)
+            {
+                return max;
+            }
+            final long min = TimeUnit.MILLISECONDS.toNanos(Config.minCallTimeout());
+            return Math.min(max, Math.max(min, (long) (h.rtt + 4 * h.deviation)));
+        }
+    }
+
+    /**
+     * Forget a server that has left the cluster.
+     *
+     * @param replica the server
+     */
+    void remove(EndPoint replica)
+    {
+        histories.remove(replica);
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder s = new StringBuilder("Failure detector:");
+        histories.forEach((EndPoint p, History h) ->
+                          {
+                              s.append(String.format(" %s [phi=%.2f, timeout=%d ms]", p, phi(p), TimeUnit.NANOSECONDS.toMillis(timeout(p))));
+                          });
+        return s.toString();
+    }
+}
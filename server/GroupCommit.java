@@ -0,0 +1,211 @@
+package server;
+
+import java.io.Closeable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+
+import common.*;
+import protocol.*;
+import transaction.TransactionId;
+
+/**
+ * The group commit of client writes on the coordinator.
+ *
+ * Writes are queued and a single thread gathers them into batches, each
+ * committed by one two-phase commit and one PAXOS round and applied as one
+ * version of the store, while every client still gets its own response. At
+ * most a few batches are committed at a time, so the writes arriving meanwhile
+ * pile up into the next batch. A write arriving while nothing is being
+ * committed is committed right away, and the gathering thread only waits for
+ * more writes while other batches are in flight, for a window that doubles
+ * whenever batches fill up and halves whenever they don't grow.
+ */
+class GroupCommit implements Closeable
+{
+    private static final int MAX_IN_FLIGHT = 4;
+    private static final long MIN_WINDOW = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static class Pending
+    {
+        final Request request;
+        final TransactionId tid;
+        final CompletableFuture<Response> response = new CompletableFuture<>();
+
+        Pending(Request request, TransactionId tid)
+        {
+            this.request = request;
+            this.tid = tid;
+        }
+    }
+
+    private final Coordinator coordinator;
+    private final int maxBatch = Config.batchSize();
+    private final long maxWindow = TimeUnit.MICROSECONDS.toNanos(Config.batchWindow());
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final ExecutorService committers = Executors.newFixedThreadPool(MAX_IN_FLIGHT, (Runnable r) ->
+                                               {
+                                                   Thread t = new Thread(r, "group-commit");
+                                                   t.setDaemon(true);
+                                                   return t;
+                                               });
+    private final Thread gatherer = new Thread(this::gather, "group-commit-gatherer");
+    private volatile long window; // in nanoseconds
+    private long batches;
+    private long writes;
+
+    /**
+     * @param coordinator the coordinator committing the batches
+     */
+    GroupCommit(Coordinator coordinator)
+    {
+        this.coordinator = coordinator;
+        gatherer.setDaemon(true);
+        gatherer.start();
+    }
+
+    /**
+     * Commit a write with the writes arriving around the same time.
+     *
+     * @param request the write
+     * @param tid the transaction Id
+     * @return the response to the write.
+     * @throws RemoteException if the write cannot be committed.
+     */
+    Response submit(Request request, TransactionId tid) throws RemoteException
+    {
+        final Pending p = new Pending(request, tid);
+        queue.add(p);
+        try
+        {
+            return p.response.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while committing " + request + ".");
+        }
+        catch (ExecutionException e)
+        {
+            throw new RemoteException("Failed to commit " + request + ".", e.getCause());
+        }
+    }
+
+    private void gather()
+    {
+        try
+        {
+            while (true)
+            {
+                final Pending first = queue.take();
+                inFlight.acquire();
+
+                final ArrayList<Pending> batch = new ArrayList<>();
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+
+                // linger only if other batches are being committed
+                if (window > 0 && batch.size() < maxBatch && inFlight.availablePermits() < MAX_IN_FLIGHT - 1)
+                {
+                    final long deadline = System.nanoTime() + window;
+                    for (long left = window; left > 0 && batch.size() < maxBatch; left = deadline - System.nanoTime())
+                    {
+                        final Pending p = queue.poll(left, TimeUnit.NANOSECONDS);
+                        if (p == null)
+                        {
+                            break;
+                        }
+                        batch.add(p);
+                        queue.drainTo(batch, maxBatch - batch.size());
+                    }
+                }
+                adapt(batch.size());
+
+                committers.execute(() ->
+                                   {
+                                       try
+                                       {
+                                           commit(batch);
+                                       }
+                                       finally
+                                       {
+                                           inFlight.release();
+                                       }
+                                   });
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // closed
+        }
+        catch (RejectedExecutionException e)
+        {
+            // closed
+        }
+    }
+
+    private void adapt(int size)
+    {
+        if (size * 2 >= maxBatch)
+        {
+            window = Math.min(maxWindow, Math.max(MIN_WINDOW, window * 2));
+        }
+        else if (size == 1)
+        {
+            window = window / 2 < MIN_WINDOW ? 0 : window / 2;
+        }
+    }
+
+    private void commit(ArrayList<Pending> batch)
+    {
+        try
+        {
+            if (batch.size() == 1)
+            {
+                final Pending p = batch.get(0);
+                p.response.complete(coordinator.run(p.request, p.tid));
+            }
+            else
+            {
+                final ArrayList<Request> requests = new ArrayList<>(batch.size());
+                for (Pending p : batch)
+                {
+                    requests.add(p.request);
+                }
+                final ArrayList<Response> responses = coordinator.run(new BatchRequest(requests));
+                for (int i = 0; i < batch.size(); i++)
+                {
+                    batch.get(i).response.complete(responses.get(i));
+                }
+            }
+
+            synchronized (this)
+            {
+                batches++;
+                writes += batch.size();
+            }
+        }
+        catch (RuntimeException e)
+        {
+            Logger.warning("Failed to commit a batch of " + batch.size() + " writes.", e);
+            for (Pending p : batch)
+            {
+                p.response.completeExceptionally(e);
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        gatherer.interrupt();
+        committers.shutdown();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "Group commit [batches=" + batches + ", writes=" + writes + ", window=" + TimeUnit.NANOSECONDS.toMicros(window) + " us]";
+    }
+}
@@ -0,0 +1,90 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * The default storage engine keeping all entries in a concurrent skip list on
+ * the heap, ordered by key. Reads never block and writes never lock.
+ */
+class HeapEngine implements StorageEngine
+{
+    private final ConcurrentSkipListMap<String, String> store = new ConcurrentSkipListMap<>();
+    private final AtomicInteger size = new AtomicInteger(); // the skip list counts by walking
+
+    @Override
+    public String get(String key)
+    {
+        return store.get(key);
+    }
+
+    @Override
+    public String put(String key, String val)
+    {
+        String prev = store.put(key, val);
+        if (prev == null)
+        {
+            size.incrementAndGet();
+        }
+        return prev;
+    }
+
+    @Override
+    public String delete(String key)
+    {
+        String prev = store.remove(key);
+        if (prev != null)
+        {
+            size.decrementAndGet();
+        }
+        return prev;
+    }
+
+    @Override
+    public int size()
+    {
+        return size.get();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action)
+    {
+        store.forEach(action);
+    }
+
+    @Override
+    public void scan(String from, String to, int limit, BiConsumer<String, String> action)
+    {
+        if (to != null && from.compareTo(to) >= 0)
+        {
+            return;
+        }
+
+        ConcurrentNavigableMap<String, String> range = to == null ? store.tailMap(from, true) : store.subMap(from, true, to, false);
+        int n = 0;
+        for (Map.Entry<String, String> e : range.entrySet())
+        {
+            if (n++ == limit)
+            {
+                break;
+            }
+            action.accept(e.getKey(), e.getValue());
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        store.clear();
+        size.set(0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "store=" + store;
+    }
+}
@@ -2,21 +2,107 @@ package server;
 
 import java.io.*;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 import common.*;
 
 /**
- * The key value store.
+ * The key value store. The entries are kept by a storage engine, which is
+ * either the concurrent heap map, the off-heap arena or the LSM tree on disk
+ * depending on Config.kvStoreEngine().
+ * 
+ * A store restored from a snapshot serves reads straight from the mapped
+ * snapshot for the keys its engine doesn't have yet, until the snapshot has
+ * been materialized into the engine in the background.
+ * 
+ * Each write request applied to the store is a new version, and the reads
+ * between beginRead and endRead see the store as of the version current when
+ * they began, however many requests are applied meanwhile. Scans and the
+ * other visits see the latest values.
  */
-public class KVStore implements Serializable
+public class KVStore implements Serializable, Closeable
 {
     private static final long serialVersionUID = 1L;
+    private static final int PAGE = 1 << 12; // the entries scanned at a time by orderedSnapshot
 
-    private HashMap<String, String> store;
+    private transient StorageEngine store;
+    private transient Overlay overlay;
+    private transient long segment;
+    private transient Versions versions = new Versions();
+
+    /**
+     * The snapshot underneath the storage engine and the keys deleted from it.
+     */
+    private static class Overlay
+    {
+        private volatile Snapshot base;
+        private final Set<String> deleted = ConcurrentHashMap.newKeySet();
+        private final Object[] locks = new Object[64];
+
+        Overlay(Snapshot base)
+        {
+            this.base = base;
+            for (int i = 0; i < locks.length; i++)
+            {
+                locks[i] = new Object();
+            }
+        }
+
+        /**
+         * @return the lock ordering the writes and the materialization of a key.
+         */
+        Object lock(String key)
+        {
+            return locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length];
+        }
+    }
+
+    /**
+     * @return the storage engine named by Config.kvStoreEngine().
+     * @throws IllegalArgumentException if there is no such engine, so that the
+     *         server doesn't start on another engine than the one asked for.
+     */
+    private static StorageEngine createEngine()
+    {
+        final String name = Config.kvStoreEngine();
+        switch (name)
+        {
+        case "heap":
+            return new HeapEngine();
+        case "offheap":
+            return new OffHeapEngine();
+        case "lsm":
+            return new LSMEngine();
+        default:
+            try
+            {
+                return Class.forName(name).asSubclass(StorageEngine.class).getConstructor().newInstance();
+            }
+            catch (ReflectiveOperationException | ClassCastException e)
+            {
+                throw new IllegalArgumentException("Unknown storage engine " + name + ": expected heap, offheap, lsm or the class name of a server.StorageEngine.", e);
+            }
+        }
+    }
+
+    /**
+     * Create an empty key value store.
+     */
+    public KVStore()
+    {
+        store = createEngine();
+    }
 
     /**
      * Create a key value Store by first trying to load a predefined store file
-     * specified by the searchPath parameter. If the file cannot be loaded, then an
-     * empty store will be created.
+     * specified by the searchPath parameter, which is either a snapshot, a
+     * checkpoint or a serialized map. If the file cannot be loaded, then an empty
+     * store will be created.
      * 
      * @param path the predefined store file path.
      */
@@ -24,23 +110,89 @@ public class KVStore implements Serializable
     public KVStore(String path)
     {
         File f = new File(path);
-        store = (HashMap<String, String>) Utils.restore(f);
-        if (store != null)
+        store = createEngine();
+
+        int version = Snapshot.version(f);
+        if (version == Snapshot.VERSION)
         {
-            if (!store.isEmpty())
+            try
             {
-                Logger.log("Predefined key value store read:\n" + this.toString());
+                Snapshot base = new Snapshot(f);
+                segment = base.segment();
+                overlay = new Overlay(base);
+                Logger.log("Opened " + base + ".");
+                if (Config.materializeSnapshot())
+                {
+                    materialize();
+                }
+                return;
             }
-            else
+            catch (IOException e)
             {
-                Logger.log("Predefined key value store is empty.");
+                Logger.warning("Failed to open the snapshot " + f.getAbsolutePath() + ".", e);
+            }
+        }
+        else if (Checkpointer.isCheckpoint(f))
+        {
+            try
+            {
+                segment = Checkpointer.restore(f, store);
+                Logger.log("Predefined key value store read with " + store.size() + " entries.");
+                return;
+            }
+            catch (IOException e)
+            {
+                Logger.warning("Failed to restore the checkpoint " + f.getAbsolutePath() + ".", e);
+                try
+                {
+                    store.close();
+                }
+                catch (IOException e1)
+                {
+                    Logger.warning("Failed to close the storage engine.", e1);
+                }
+                store = createEngine();
             }
         }
         else
         {
-            Logger.warning("Failed to restore the key value store from " + path + ".");
-            store = new HashMap<String, String>();
+            Object saved = Utils.restore(f);
+            if (saved instanceof Map)
+            {
+                ((Map<String, String>) saved).forEach(store::put);
+                Logger.log("Predefined key value store read with " + store.size() + " entries.");
+                return;
+            }
         }
+
+        Logger.warning("Failed to restore the key value store from " + path + ".");
+    }
+
+    /**
+     * Load the snapshot into the storage engine in the background, in parallel,
+     * without overriding the keys written or deleted since the store was opened.
+     */
+    private void materialize()
+    {
+        final Overlay o = overlay;
+        Thread t = new Thread(() ->
+                              {
+                                  long begin = System.nanoTime();
+                                  o.base.forEachParallel((String k, String v) ->
+                                                         {
+                                                             synchronized (o.lock(k))
+                                                             {
+                                                                 if (!o.deleted.contains(k) && store.get(k) == null)
+                                                                 {
+                                                                     store.put(k, v);
+                                                                 }
+                                                             }
+                                                         });
+                                  o.base = null;
+                                  Logger.log("Materialized the snapshot in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) + " ms.");
+                              }, "snapshot-loader");
+        t.setDaemon(true);
+        t.start();
     }
 
     /**
@@ -51,27 +203,312 @@ public class KVStore implements Serializable
     public KVStore(KVStore store)
     {
         this.store = store.store;
+        this.overlay = store.overlay;
+        this.segment = store.segment;
+        this.versions = store.versions;
+    }
+
+    /**
+     * @return the snapshot not materialized yet; null if there is none.
+     */
+    private Snapshot base()
+    {
+        final Overlay o = overlay;
+        return o == null ? null : o.base;
     }
 
     @Override
     public String toString()
     {
-        return "KV Store [store=" + store + "]";
+        final Snapshot base = base();
+        return "KV Store [" + store + (base == null ? "" : ", " + base) + ", " + versions + "]";
     }
 
-    public synchronized String get(String key)
+    /**
+     * Apply the mutations of a write request as a single version. A mutation
+     * applied outside of this is a version of its own.
+     * 
+     * @param mutations the mutations
+     * @return the result of the mutations.
+     */
+    public <T> T write(Supplier<T> mutations)
     {
-        return store.get(key);
+        return versions.write(mutations);
     }
 
-    public synchronized String put(String key, String val)
+    /**
+     * Begin reading the store as of the current version, until endRead.
+     * 
+     * @return the version read.
+     */
+    public long beginRead()
     {
-        return store.put(key, val);
+        return versions.pin();
     }
 
-    public synchronized String delete(String key)
+    /**
+     * End reading the version returned by beginRead.
+     */
+    public void endRead()
     {
-        return store.remove(key);
+        versions.unpin();
+    }
+
+    /**
+     * @param key the key
+     * @param version the version returned by beginRead
+     * @return the value of the key as of the version.
+     */
+    public String get(String key, long version)
+    {
+        return versions.read(key, get(key), version);
+    }
+
+    public String get(String key)
+    {
+        final Snapshot base = base();
+        final String v = store.get(key);
+        if (v != null || base == null || overlay.deleted.contains(key))
+        {
+            return v;
+        }
+        return base.get(key);
+    }
+
+    public String put(String key, String val)
+    {
+        if (!versions.isWriting())
+        {
+            return write(() -> put(key, val));
+        }
+
+        // the previous value returned by the engine is the value superseded
+        return versions.supersede(key, 
+                                  () ->
+                                  {
+                                      if (base() == null)
+                                      {
+                                          return store.put(key, val);
+                                      }
+
+                                      synchronized (overlay.lock(key))
+                                      {
+                                          final Snapshot base = base();
+                                          final String prev = store.put(key, val);
+                                          final boolean deleted = overlay.deleted.remove(key);
+                                          return prev != null || deleted || base == null ? prev : base.get(key);
+                                      }
+                                  });
+    }
+
+    public String delete(String key)
+    {
+        if (!versions.isWriting())
+        {
+            return write(() -> delete(key));
+        }
+
+        return versions.supersede(key, 
+                                  () ->
+                                  {
+                                      if (base() == null)
+                                      {
+                                          return store.delete(key);
+                                      }
+
+                                      synchronized (overlay.lock(key))
+                                      {
+                                          final Snapshot base = base();
+                                          final String prev = store.delete(key);
+                                          final boolean deleted = !overlay.deleted.add(key);
+                                          return prev != null || deleted || base == null ? prev : base.get(key);
+                                      }
+                                  });
+    }
+
+    /**
+     * @return the number of entries, which is overestimated until the snapshot
+     *         has been materialized.
+     */
+    public int size()
+    {
+        final Snapshot base = base();
+        return store.size() + (base == null ? 0 : (int) base.size());
+    }
+
+    /**
+     * Visit every entry without blocking concurrent reads and writes. Entries
+     * written during the visit may or may not be visited, and an entry may be
+     * visited more than once, in which case the later visit is the newer value.
+     * 
+     * @param action the action applied to every key value pair
+     */
+    public void forEach(BiConsumer<String, String> action)
+    {
+        final Snapshot base = base();
+        store.forEach(action);
+        if (base != null)
+        {
+            base.forEach((String k, String v) ->
+                         {
+                             if (!overlay.deleted.contains(k))
+                             {
+                                 final String current = store.get(k);
+                                 action.accept(k, current == null ? v : current);
+                             }
+                         });
+        }
+    }
+
+    /**
+     * Visit every entry as of the current version, whatever the writes applied
+     * during the visit. An entry may be visited more than once, always with the
+     * same value.
+     * 
+     * @param action the action applied to every key value pair
+     */
+    public void snapshot(BiConsumer<String, String> action)
+    {
+        final long version = beginRead();
+        try
+        {
+            forEach((String k, String v) ->
+                    {
+                        final String val = versions.read(k, v, version);
+                        if (val != null)
+                        {
+                            action.accept(k, val);
+                        }
+                    });
+            // the keys removed or rewritten meanwhile might have been missed
+            versions.forEachKey((String k) ->
+                                {
+                                    final String val = get(k, version);
+                                    if (val != null)
+                                    {
+                                        action.accept(k, val);
+                                    }
+                                });
+        }
+        finally
+        {
+            endRead();
+        }
+    }
+
+    /**
+     * Visit every entry as of the current version in ascending key order,
+     * whatever the writes applied during the visit, scanning a page of the
+     * store at a time. The keys removed since the version are visited in their
+     * place from their superseded values.
+     * 
+     * @param action the action applied to every key value pair
+     */
+    public void orderedSnapshot(BiConsumer<String, String> action)
+    {
+        final long version = beginRead();
+        try
+        {
+            String from = "";
+            while (from != null)
+            {
+                final TreeMap<String, String> page = new TreeMap<>();
+                final String[] last = new String[1];
+                final int[] scanned = new int[1];
+                scan(from, null, PAGE, (String k, String v) ->
+                                       {
+                                           last[0] = k;
+                                           scanned[0]++;
+                                           final String val = versions.read(k, v, version);
+                                           if (val != null)
+                                           {
+                                               page.put(k, val);
+                                           }
+                                       });
+
+                // the page ends at the last key scanned unless the store has no more
+                final String start = from;
+                final String end = scanned[0] == PAGE ? last[0] : null;
+                versions.forEachKey((String k) ->
+                                    {
+                                        if (k.compareTo(start) >= 0 && (end == null || k.compareTo(end) <= 0) && !page.containsKey(k))
+                                        {
+                                            final String val = get(k, version);
+                                            if (val != null)
+                                            {
+                                                page.put(k, val);
+                                            }
+                                        }
+                                    });
+                page.forEach(action);
+                from = end == null ? null : end + "\0";
+            }
+        }
+        finally
+        {
+            endRead();
+        }
+    }
+
+    /**
+     * Remove a key if its stored value has expired at a time.
+     *
+     * @param key the key
+     * @param time the time in milliseconds since the epoch
+     * @return true if the key has been removed.
+     */
+    public boolean expire(String key, long time)
+    {
+        final long deadline = StoredValue.deadline(get(key));
+        return deadline > 0 && deadline <= time && delete(key) != null;
+    }
+
+    /**
+     * Visit the entries with keys in [from, to) in ascending key order, up to a
+     * limit, merging the engine with the snapshot not materialized yet.
+     *
+     * @param from the first key, inclusive
+     * @param to the last key, exclusive; null for no upper bound
+     * @param limit the maximum number of entries to visit
+     * @param action the action applied to every key value pair
+     */
+    public void scan(String from, String to, int limit, BiConsumer<String, String> action)
+    {
+        final Snapshot base = base();
+        if (base == null)
+        {
+            store.scan(from, to, limit, action);
+            return;
+        }
+
+        TreeMap<String, String> page = new TreeMap<>();
+        store.scan(from, to, limit, page::put);
+        base.scan(from, to, (String k, String v) ->
+                            {
+                                if (page.size() == limit && k.compareTo(page.lastKey()) > 0)
+                                {
+                                    return false;
+                                }
+                                if (!overlay.deleted.contains(k) && store.get(k) == null)
+                                {
+                                    page.put(k, v);
+                                    if (page.size() > limit)
+                                    {
+                                        page.pollLastEntry();
+                                    }
+                                }
+                                return true;
+                            });
+        page.forEach(action);
+    }
+
+    /**
+     * @return the first write-ahead log segment to replay on top of the restored
+     *         store.
+     */
+    public long segment()
+    {
+        return segment;
     }
 
     /**
@@ -81,6 +518,57 @@ public class KVStore implements Serializable
      */
     public void save(String path)
     {
-        Utils.save(store, new File(path));
+        HashMap<String, String> copy = new HashMap<>();
+        snapshot(copy::put);
+        Utils.save(copy, new File(path));
+    }
+
+    /**
+     * Write the entries one by one followed by a null key, since the engine itself
+     * might not live on the heap.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        out.defaultWriteObject();
+        try
+        {
+            snapshot((String k, String v) ->
+                          {
+                              try
+                              {
+                                  out.writeObject(k);
+                                  out.writeObject(v);
+                              }
+                              catch (IOException e)
+                              {
+                                  throw new UncheckedIOException(e);
+                              }
+                          });
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+        out.writeObject(null);
+    }
+
+    /**
+     * Close the storage engine.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        store.close();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        store = createEngine();
+        versions = new Versions();
+        for (String k = (String) in.readObject(); k != null; k = (String) in.readObject())
+        {
+            store.put(k, (String) in.readObject());
+        }
     }
 }
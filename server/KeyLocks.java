@@ -0,0 +1,74 @@
+package server;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The locks ordering the write requests of the coordinator by key, kept in a
+ * fixed array of stripes indexed by key hash.
+ *
+ * A request holds the stripes of all the keys it writes, acquired in ascending
+ * order so that requests never deadlock, from its preparing phase until it
+ * has committed on as many servers as its durability requires, the others
+ * committing it later in the same order. Requests writing the same key thus
+ * run one after another in arrival order, while requests on different stripes
+ * run concurrently. A request writing no key holds every stripe.
+ */
+class KeyLocks
+{
+    private static final int STRIPES = 1 << 10;
+
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    KeyLocks()
+    {
+        for (int i = 0; i < STRIPES; i++)
+        {
+            stripes[i] = new ReentrantLock(true);
+        }
+    }
+
+    private static int stripe(String key)
+    {
+        final int h = key.hashCode() * 0x85EBCA6B;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Acquire the stripes of some keys, waiting for the requests holding them.
+     *
+     * @param keys the keys written by a request
+     * @return the stripes held, to be released by unlock.
+     */
+    int[] lock(List<String> keys)
+    {
+        final int[] held;
+        if (keys.isEmpty())
+        {
+            held = new int[STRIPES];
+            Arrays.setAll(held, (int i) -> i);
+        }
+        else
+        {
+            held = keys.stream().mapToInt(KeyLocks::stripe).sorted().distinct().toArray();
+        }
+
+        for (int i = 0; i < held.length; i++)
+        {
+            stripes[held[i]].lock();
+        }
+        return held;
+    }
+
+    /**
+     * @param held the stripes returned by lock
+     */
+    void unlock(int[] held)
+    {
+        for (int i = held.length - 1; i >= 0; i--)
+        {
+            stripes[held[i]].unlock();
+        }
+    }
+}
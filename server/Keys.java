@@ -0,0 +1,82 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import protocol.*;
+
+/**
+ * The keys read and written by the requests.
+ */
+final class Keys
+{
+    private Keys()
+    {
+    }
+
+    /**
+     * @param request the request
+     * @return the keys written by the request.
+     */
+    static List<String> writes(Request request)
+    {
+        if (request instanceof ExpireRequest)
+        {
+            return ((ExpireRequest) request).keys;
+        }
+        else if (request instanceof EvictRequest)
+        {
+            return ((EvictRequest) request).keys;
+        }
+        else if (request instanceof DeleteRequest)
+        {
+            return Collections.singletonList(((DeleteRequest) request).key);
+        }
+        else if (request instanceof PutRequest)
+        {
+            return Collections.singletonList(((PutRequest) request).key);
+        }
+        else if (request instanceof MultiPutRequest)
+        {
+            return ((MultiPutRequest) request).keys();
+        }
+        else if (request instanceof MultiDeleteRequest)
+        {
+            return ((MultiDeleteRequest) request).keys;
+        }
+        else if (request instanceof BatchRequest)
+        {
+            final ArrayList<String> keys = new ArrayList<>();
+            for (Request r : ((BatchRequest) request).requests)
+            {
+                keys.addAll(writes(r));
+            }
+            return keys;
+        }
+        else
+        {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * @param request the request
+     * @return the keys read by the request.
+     */
+    static List<String> reads(Request request)
+    {
+        if (request instanceof GetRequest)
+        {
+            return Collections.singletonList(((GetRequest) request).key);
+        }
+        else if (request instanceof MultiGetRequest)
+        {
+            return ((MultiGetRequest) request).keys;
+        }
+        else
+        {
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,899 @@
+package server;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+import common.*;
+
+/**
+ * A log-structured merge-tree storage engine for datasets larger than the
+ * heap.
+ *
+ * Writes go to a concurrent skip-list memtable, which is frozen once it holds
+ * Config.lsmMemtableBytes() and flushed in the background into an immutable
+ * table on level 0. Level 0 tables may overlap each other, while every deeper
+ * level is a single sorted run of non-overlapping tables, ten times larger than
+ * the level above it. Compactions merge a level into the overlapping tables of
+ * the next one on their own thread pool, dropping shadowed entries, and
+ * dropping deletions once nothing older is left underneath. Reads check the
+ * memtables, then the tables newest first, skipping the tables whose bloom
+ * filter rules the key out.
+ *
+ * The tables are scratch space: durability still comes from the write-ahead log
+ * and the checkpoints, so every engine starts empty in its own directory, which
+ * is removed on close or by the next engine started after a crash.
+ */
+class LSMEngine implements StorageEngine
+{
+    private static final String TOMBSTONE = SSTable.TOMBSTONE;
+    private static final int MAX_LEVELS = 7;
+    private static final int LEVEL0_TABLES = 4;
+    private static final int LEVEL_RATIO = 10;
+    private static final int MAX_FROZEN = 2;
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final String LOCK = "LOCK";
+
+    private final Path dir;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final long memtableBytes;
+    private final long tableBytes;
+    private final BlockCache cache;
+    private final ScheduledExecutorService flusher;
+    private final ExecutorService compactor;
+    private final ReentrantReadWriteLock freezing = new ReentrantReadWriteLock();
+    private final Object[] locks = new Object[64];
+    private final AtomicLong memBytes = new AtomicLong();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong ids = new AtomicLong();
+    private volatile Version version;
+
+    // guarded by this
+    private final boolean[] busy = new boolean[MAX_LEVELS];
+    private final String[] pointers = new String[MAX_LEVELS];
+    private boolean closed;
+    private long flushes;
+    private long compactions;
+    private long compactedBytes;
+
+    /**
+     * The memtables and tables readers see at one point in time. A version is
+     * never modified, only replaced.
+     */
+    private static class Version
+    {
+        final ConcurrentSkipListMap<String, String> memtable;
+        final List<ConcurrentSkipListMap<String, String>> frozen; // newest first
+        final List<List<SSTable>> levels; // level 0 newest first, others by key
+
+        Version(ConcurrentSkipListMap<String, String> memtable, List<ConcurrentSkipListMap<String, String>> frozen,
+                List<List<SSTable>> levels)
+        {
+            this.memtable = memtable;
+            this.frozen = frozen;
+            this.levels = levels;
+        }
+    }
+
+    /**
+     * Create an empty engine in a new directory under Config.lsmDirectory().
+     *
+     * @throws UncheckedIOException if the directory cannot be created.
+     */
+    LSMEngine()
+    {
+        memtableBytes = Config.lsmMemtableBytes();
+        tableBytes = Config.lsmTableBytes();
+        cache = new BlockCache(Config.lsmBlockCacheBytes());
+        for (int i = 0; i < locks.length; i++)
+        {
+            locks[i] = new Object();
+        }
+
+        List<List<SSTable>> levels = new ArrayList<>();
+        for (int l = 0; l < MAX_LEVELS; l++)
+        {
+            levels.add(Collections.emptyList());
+        }
+        version = new Version(new ConcurrentSkipListMap<>(), Collections.emptyList(), Collections.unmodifiableList(levels));
+
+        try
+        {
+            Path root = Files.createDirectories(Paths.get(Config.lsmDirectory()).toAbsolutePath().normalize());
+            purge(root);
+            dir = Files.createTempDirectory(root, "lsm-");
+            lockChannel = FileChannel.open(dir.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lock = lockChannel.lock();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(daemon("lsm-flusher"));
+        compactor = Executors.newFixedThreadPool(Config.lsmCompactionThreads(), daemon("lsm-compactor"));
+    }
+
+    private static ThreadFactory daemon(String name)
+    {
+        AtomicInteger n = new AtomicInteger();
+        return (Runnable r) ->
+               {
+                   Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+                   t.setDaemon(true);
+                   return t;
+               };
+    }
+
+    /**
+     * Remove the directories left behind by the engines of crashed processes,
+     * which no longer hold their lock.
+     */
+    private static void purge(Path root) throws IOException
+    {
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root, "lsm-*"))
+        {
+            for (Path d : dirs)
+            {
+                try (FileChannel c = FileChannel.open(d.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+                {
+                    FileLock l = c.tryLock();
+                    if (l == null)
+                    {
+                        continue;
+                    }
+                    l.release();
+                }
+                catch (OverlappingFileLockException e)
+                {
+                    continue; // held by another engine of this process
+                }
+                delete(d);
+            }
+        }
+    }
+
+    private static void delete(Path d) throws IOException
+    {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(d))
+        {
+            for (Path f : files)
+            {
+                Files.deleteIfExists(f);
+            }
+        }
+        Files.deleteIfExists(d);
+    }
+
+    private Object lock(String key)
+    {
+        return locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    private SSTable.Writer writer(long expected) throws IOException
+    {
+        long id = ids.incrementAndGet();
+        return new SSTable.Writer(id, dir.resolve(id + ".sst"), expected);
+    }
+
+    /**
+     * @return the value of the key, TOMBSTONE if it has been deleted or null if
+     *         it has never been written.
+     */
+    private String lookup(String key) throws IOException
+    {
+        retry: while (true)
+        {
+            final Version v = version;
+            String val = v.memtable.get(key);
+            if (val != null)
+            {
+                return val;
+            }
+            for (ConcurrentSkipListMap<String, String> m : v.frozen)
+            {
+                val = m.get(key);
+                if (val != null)
+                {
+                    return val;
+                }
+            }
+
+            List<SSTable> candidates = new ArrayList<>(v.levels.get(0));
+            for (int l = 1; l < MAX_LEVELS; l++)
+            {
+                SSTable t = find(v.levels.get(l), key);
+                if (t != null)
+                {
+                    candidates.add(t);
+                }
+            }
+
+            for (SSTable t : candidates)
+            {
+                if (!t.retain())
+                {
+                    continue retry; // compacted away meanwhile
+                }
+                try
+                {
+                    val = t.get(key, cache);
+                }
+                finally
+                {
+                    t.release();
+                }
+                if (val != null)
+                {
+                    return val;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return the table of a sorted run whose key range covers the key; null if
+     *         there is none.
+     */
+    private static SSTable find(List<SSTable> tables, String key)
+    {
+        int lo = 0;
+        int hi = tables.size() - 1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            SSTable t = tables.get(mid);
+            if (t.last().compareTo(key) < 0)
+            {
+                lo = mid + 1;
+            }
+            else if (t.first().compareTo(key) > 0)
+            {
+                hi = mid - 1;
+            }
+            else
+            {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String get(String key)
+    {
+        try
+        {
+            String val = lookup(key);
+            return val == TOMBSTONE ? null : val;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String put(String key, String val)
+    {
+        synchronized (lock(key))
+        {
+            String prev = get(key);
+            write(key, val);
+            if (prev == null)
+            {
+                size.incrementAndGet();
+            }
+            return prev;
+        }
+    }
+
+    @Override
+    public String delete(String key)
+    {
+        synchronized (lock(key))
+        {
+            String prev = get(key);
+            if (prev != null)
+            {
+                write(key, TOMBSTONE);
+                size.decrementAndGet();
+            }
+            return prev;
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        return size.get();
+    }
+
+    private void write(String key, String val)
+    {
+        freezing.readLock().lock();
+        try
+        {
+            version.memtable.put(key, val);
+        }
+        finally
+        {
+            freezing.readLock().unlock();
+        }
+
+        if (memBytes.addAndGet(ENTRY_OVERHEAD + 2L * (key.length() + val.length())) >= memtableBytes)
+        {
+            freeze();
+        }
+    }
+
+    /**
+     * Replace a full memtable by an empty one and flush it in the background.
+     * Writers stall while too many frozen memtables wait to be flushed.
+     */
+    private void freeze()
+    {
+        freezing.writeLock().lock();
+        try
+        {
+            synchronized (this)
+            {
+                while (version.frozen.size() >= MAX_FROZEN && !closed)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+
+                if (memBytes.get() < memtableBytes || closed)
+                {
+                    return; // frozen by another writer
+                }
+                memBytes.set(0);
+
+                final Version v = version;
+                List<ConcurrentSkipListMap<String, String>> frozen = new ArrayList<>();
+                frozen.add(v.memtable);
+                frozen.addAll(v.frozen);
+                version = new Version(new ConcurrentSkipListMap<>(), Collections.unmodifiableList(frozen), v.levels);
+                flusher.execute(this::flush);
+            }
+        }
+        finally
+        {
+            freezing.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write the oldest frozen memtable to a level 0 table.
+     */
+    private void flush()
+    {
+        final ConcurrentSkipListMap<String, String> m;
+        synchronized (this)
+        {
+            List<ConcurrentSkipListMap<String, String>> frozen = version.frozen;
+            if (frozen.isEmpty() || closed)
+            {
+                return;
+            }
+            m = frozen.get(frozen.size() - 1);
+        }
+
+        SSTable table = null;
+        try
+        {
+            if (!m.isEmpty())
+            {
+                try (SSTable.Writer w = writer(m.size()))
+                {
+                    for (Map.Entry<String, String> e : m.entrySet())
+                    {
+                        w.add(e.getKey(), e.getValue());
+                    }
+                    table = w.finish();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            Logger.error("Failed to flush a memtable to " + dir + ", retrying.", e);
+            flusher.schedule(this::flush, 1, TimeUnit.SECONDS);
+            return;
+        }
+
+        synchronized (this)
+        {
+            final Version v = version;
+            List<ConcurrentSkipListMap<String, String>> frozen = new ArrayList<>(v.frozen);
+            frozen.remove(frozen.size() - 1);
+            List<List<SSTable>> levels = new ArrayList<>(v.levels);
+            if (table != null)
+            {
+                List<SSTable> level0 = new ArrayList<>();
+                level0.add(table);
+                level0.addAll(v.levels.get(0));
+                levels.set(0, Collections.unmodifiableList(level0));
+            }
+            version = new Version(v.memtable, Collections.unmodifiableList(frozen), Collections.unmodifiableList(levels));
+            flushes++;
+            notifyAll();
+        }
+        compact();
+    }
+
+    private long limit(int level)
+    {
+        long limit = tableBytes;
+        for (int l = 0; l < level; l++)
+        {
+            limit *= LEVEL_RATIO;
+        }
+        return limit;
+    }
+
+    private static long bytes(List<SSTable> tables)
+    {
+        long bytes = 0;
+        for (SSTable t : tables)
+        {
+            bytes += t.bytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Schedule a compaction of every level over its limit whose tables and
+     * those of the next level aren't being compacted already.
+     */
+    private synchronized void compact()
+    {
+        if (closed)
+        {
+            return;
+        }
+
+        final Version v = version;
+        for (int l = 0; l < MAX_LEVELS - 1; l++)
+        {
+            List<SSTable> tables = v.levels.get(l);
+            boolean due = l == 0 ? tables.size() >= LEVEL0_TABLES : bytes(tables) > limit(l);
+            if (due && !busy[l] && !busy[l + 1])
+            {
+                busy[l] = true;
+                busy[l + 1] = true;
+                final int level = l;
+                compactor.execute(() -> compact(level));
+            }
+        }
+    }
+
+    /**
+     * Merge all level 0 tables, or the next table of a deeper level in round
+     * robin order, into the overlapping tables of the next level.
+     */
+    private void compact(int level)
+    {
+        final List<SSTable> inputs;
+        final List<SSTable> overlapping = new ArrayList<>();
+        final boolean bottom;
+        synchronized (this)
+        {
+            final Version v = version;
+            List<SSTable> tables = v.levels.get(level);
+            if (level == 0)
+            {
+                inputs = new ArrayList<>(tables);
+            }
+            else
+            {
+                SSTable next = tables.get(0);
+                for (SSTable t : tables)
+                {
+                    if (pointers[level] == null || t.first().compareTo(pointers[level]) > 0)
+                    {
+                        next = t;
+                        break;
+                    }
+                }
+                pointers[level] = next.last();
+                inputs = Collections.singletonList(next);
+            }
+
+            String from = null;
+            String to = null;
+            for (SSTable t : inputs)
+            {
+                from = from == null || t.first().compareTo(from) < 0 ? t.first() : from;
+                to = to == null || t.last().compareTo(to) > 0 ? t.last() : to;
+            }
+            for (SSTable t : v.levels.get(level + 1))
+            {
+                if (t.overlaps(from, to))
+                {
+                    overlapping.add(t);
+                }
+            }
+
+            boolean empty = true;
+            for (int l = level + 2; l < MAX_LEVELS; l++)
+            {
+                empty &= v.levels.get(l).isEmpty();
+            }
+            bottom = empty;
+        }
+
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+        long entries = 0;
+        long bytes = 0;
+        for (SSTable t : inputs)
+        {
+            sources.add(t.iterator(null, null));
+            entries += t.entries();
+            bytes += t.bytes();
+        }
+        sources.add(new RunIterator(overlapping, null, null));
+        for (SSTable t : overlapping)
+        {
+            entries += t.entries();
+            bytes += t.bytes();
+        }
+
+        List<SSTable> outputs = new ArrayList<>();
+        try
+        {
+            long expected = Math.min(entries, (long) (1.1 * tableBytes / Math.max(1, bytes / Math.max(1, entries))) + 1);
+            MergingIterator merged = new MergingIterator(sources);
+            SSTable.Writer w = null;
+            try
+            {
+                while (merged.hasNext())
+                {
+                    Map.Entry<String, String> e = merged.next();
+                    if (bottom && e.getValue() == TOMBSTONE)
+                    {
+                        continue;
+                    }
+                    if (w == null)
+                    {
+                        w = writer(expected);
+                    }
+                    w.add(e.getKey(), e.getValue());
+                    if (w.size() >= tableBytes)
+                    {
+                        outputs.add(w.finish());
+                        w = null;
+                    }
+                }
+                if (w != null)
+                {
+                    outputs.add(w.finish());
+                    w = null;
+                }
+            }
+            finally
+            {
+                if (w != null)
+                {
+                    w.close();
+                }
+            }
+        }
+        catch (IOException | UncheckedIOException e)
+        {
+            Logger.error("Failed to compact level " + level + " of " + dir + ".", e);
+            for (SSTable t : outputs)
+            {
+                t.release();
+            }
+            synchronized (this)
+            {
+                busy[level] = false;
+                busy[level + 1] = false;
+            }
+            return;
+        }
+
+        synchronized (this)
+        {
+            final Version v = version;
+            List<SSTable> upper = new ArrayList<>(v.levels.get(level));
+            upper.removeAll(inputs);
+            List<SSTable> lower = new ArrayList<>(v.levels.get(level + 1));
+            lower.removeAll(overlapping);
+            lower.addAll(outputs);
+            lower.sort((SSTable a, SSTable b) -> a.first().compareTo(b.first()));
+
+            List<List<SSTable>> levels = new ArrayList<>(v.levels);
+            levels.set(level, Collections.unmodifiableList(upper));
+            levels.set(level + 1, Collections.unmodifiableList(lower));
+            version = new Version(v.memtable, v.frozen, Collections.unmodifiableList(levels));
+
+            compactions++;
+            compactedBytes += bytes;
+            busy[level] = false;
+            busy[level + 1] = false;
+        }
+
+        for (SSTable t : inputs)
+        {
+            t.release();
+        }
+        for (SSTable t : overlapping)
+        {
+            t.release();
+        }
+        compact();
+    }
+
+    /**
+     * Visit the entries in key order, bypassing the block cache so that a full
+     * visit doesn't evict the blocks of point reads.
+     */
+    @Override
+    public void forEach(BiConsumer<String, String> action)
+    {
+        visit("", null, Long.MAX_VALUE, null, action);
+    }
+
+    @Override
+    public void scan(String from, String to, int limit, BiConsumer<String, String> action)
+    {
+        visit(from, to, limit, cache, action);
+    }
+
+    /**
+     * Visit the entries with keys in [from, to) in key order, merging the
+     * memtables and the tables as of the start of the visit. The tables are kept
+     * open until the visit ends even if they get compacted meanwhile.
+     */
+    private void visit(String from, String to, long limit, BlockCache cache, BiConsumer<String, String> action)
+    {
+        Version v;
+        List<SSTable> retained = new ArrayList<>();
+        retry: while (true)
+        {
+            v = version;
+            for (List<SSTable> tables : v.levels)
+            {
+                for (SSTable t : tables)
+                {
+                    if (!t.retain())
+                    {
+                        for (SSTable r : retained)
+                        {
+                            r.release();
+                        }
+                        retained.clear();
+                        continue retry;
+                    }
+                    retained.add(t);
+                }
+            }
+            break;
+        }
+
+        try
+        {
+            List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+            sources.add(v.memtable.tailMap(from).entrySet().iterator());
+            for (ConcurrentSkipListMap<String, String> m : v.frozen)
+            {
+                sources.add(m.tailMap(from).entrySet().iterator());
+            }
+            for (SSTable t : v.levels.get(0))
+            {
+                sources.add(t.iterator(from, cache));
+            }
+            for (int l = 1; l < MAX_LEVELS; l++)
+            {
+                sources.add(new RunIterator(v.levels.get(l), from, cache));
+            }
+
+            MergingIterator merged = new MergingIterator(sources);
+            for (long n = 0; n < limit && merged.hasNext();)
+            {
+                Map.Entry<String, String> e = merged.next();
+                if (to != null && e.getKey().compareTo(to) >= 0)
+                {
+                    break;
+                }
+                if (e.getValue() != TOMBSTONE)
+                {
+                    action.accept(e.getKey(), e.getValue());
+                    n++;
+                }
+            }
+        }
+        finally
+        {
+            for (SSTable t : retained)
+            {
+                t.release();
+            }
+        }
+    }
+
+    /**
+     * Stop flushing and compacting, and delete all the tables.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (this)
+        {
+            closed = true;
+            notifyAll();
+        }
+        flusher.shutdown();
+        compactor.shutdown();
+        try
+        {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        for (List<SSTable> tables : version.levels)
+        {
+            for (SSTable t : tables)
+            {
+                t.release();
+            }
+        }
+        lock.release();
+        lockChannel.close();
+        delete(dir);
+    }
+
+    @Override
+    public String toString()
+    {
+        final Version v = version;
+        StringBuilder s = new StringBuilder("entries=" + size() + ", memtables=" + (1 + v.frozen.size()) + ", levels=[");
+        for (int l = 0; l < MAX_LEVELS; l++)
+        {
+            List<SSTable> tables = v.levels.get(l);
+            s.append(l == 0 ? "" : ", ").append(tables.size()).append(" tables/").append(bytes(tables)).append(" bytes");
+        }
+        synchronized (this)
+        {
+            s.append("], flushes=").append(flushes).append(", compactions=").append(compactions)
+             .append(", compacted bytes=").append(compactedBytes);
+        }
+        return s.append(", ").append(cache).toString();
+    }
+
+    /**
+     * Iterate a sorted run of non-overlapping tables in key order.
+     */
+    private static class RunIterator implements Iterator<Map.Entry<String, String>>
+    {
+        private final Iterator<SSTable> tables;
+        private final String from;
+        private final BlockCache cache;
+        private Iterator<Map.Entry<String, String>> current = Collections.emptyIterator();
+
+        RunIterator(List<SSTable> tables, String from, BlockCache cache)
+        {
+            this.tables = tables.iterator();
+            this.from = from;
+            this.cache = cache;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            while (!current.hasNext())
+            {
+                if (!tables.hasNext())
+                {
+                    return false;
+                }
+                SSTable t = tables.next();
+                if (from == null || t.last().compareTo(from) >= 0)
+                {
+                    current = t.iterator(from, cache);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<String, String> next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+    }
+
+    /**
+     * Merge sorted sources given newest first, yielding every key once with its
+     * newest value, deletions included.
+     */
+    private static class MergingIterator implements Iterator<Map.Entry<String, String>>
+    {
+        private static class Source
+        {
+            final Iterator<Map.Entry<String, String>> entries;
+            final int rank;
+            Map.Entry<String, String> head;
+
+            Source(Iterator<Map.Entry<String, String>> entries, int rank)
+            {
+                this.entries = entries;
+                this.rank = rank;
+            }
+        }
+
+        private final PriorityQueue<Source> heads = new PriorityQueue<>((Source a, Source b) ->
+                                                                        {
+                                                                            int c = a.head.getKey().compareTo(b.head.getKey());
+                                                                            return c != 0 ? c : Integer.compare(a.rank, b.rank);
+                                                                        });
+
+        MergingIterator(List<Iterator<Map.Entry<String, String>>> sources)
+        {
+            for (int i = 0; i < sources.size(); i++)
+            {
+                advance(new Source(sources.get(i), i));
+            }
+        }
+
+        private void advance(Source s)
+        {
+            if (s.entries.hasNext())
+            {
+                s.head = s.entries.next();
+                heads.add(s);
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<String, String> next()
+        {
+            Source s = heads.poll();
+            if (s == null)
+            {
+                throw new NoSuchElementException();
+            }
+
+            Map.Entry<String, String> e = s.head;
+            advance(s);
+            while (!heads.isEmpty() && heads.peek().head.getKey().equals(e.getKey()))
+            {
+                advance(heads.poll());
+            }
+            return e;
+        }
+    }
+}
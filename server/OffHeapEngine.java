@@ -0,0 +1,485 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * A storage engine keeping keys and values as UTF-8 bytes in off-heap slabs.
+ *
+ * Every entry is appended to the current slab as [key length][value length]
+ * [key][value] and located through an off-heap open-addressing index with
+ * linear probing, where every slot holds the entry address and the key hash.
+ * Overwritten and deleted entries leave dead bytes behind, which are reclaimed
+ * by copying the live entries into fresh slabs once they outweigh the live
+ * ones.
+ */
+class OffHeapEngine implements StorageEngine
+{
+    private static final int SLAB_SIZE = 1 << 20;
+    private static final int SLOT_SIZE = Long.BYTES + Integer.BYTES;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    private static final int BATCH_SLOTS = 1 << 10;
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private ArrayList<ByteBuffer> slabs = new ArrayList<>();
+    private ByteBuffer index;
+    private int capacity;
+    private int size;
+    private int used; // live and deleted slots
+    private long live;
+    private long dead;
+    private long resizes;
+
+    OffHeapEngine()
+    {
+        capacity = INITIAL_CAPACITY;
+        index = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+    }
+
+    private static byte[] encode(String s)
+    {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int hash(byte[] k)
+    {
+        int h = 1;
+        for (byte b : k)
+        {
+            h = 31 * h + b;
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static long address(int slab, int offset)
+    {
+        return ((long) (slab + 1) << 32) | offset;
+    }
+
+    private ByteBuffer slab(long addr)
+    {
+        return slabs.get((int) (addr >>> 32) - 1);
+    }
+
+    private static int offset(long addr)
+    {
+        return (int) addr;
+    }
+
+    private long slotAddress(int slot)
+    {
+        return index.getLong(slot * SLOT_SIZE);
+    }
+
+    private int slotHash(int slot)
+    {
+        return index.getInt(slot * SLOT_SIZE + Long.BYTES);
+    }
+
+    private void setSlot(int slot, long addr, int hash)
+    {
+        index.putLong(slot * SLOT_SIZE, addr);
+        index.putInt(slot * SLOT_SIZE + Long.BYTES, hash);
+    }
+
+    private int recordSize(long addr)
+    {
+        ByteBuffer s = slab(addr);
+        int o = offset(addr);
+        return HEADER_SIZE + s.getInt(o) + s.getInt(o + Integer.BYTES);
+    }
+
+    private boolean matches(long addr, byte[] k)
+    {
+        ByteBuffer s = slab(addr);
+        int o = offset(addr);
+        if (s.getInt(o) != k.length)
+        {
+            return false;
+        }
+
+        o += HEADER_SIZE;
+        for (int i = 0; i < k.length; i++)
+        {
+            if (s.get(o + i) != k[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String key(long addr)
+    {
+        ByteBuffer s = slab(addr);
+        int o = offset(addr);
+        byte[] k = new byte[s.getInt(o)];
+        s.get(o + HEADER_SIZE, k);
+        return new String(k, StandardCharsets.UTF_8);
+    }
+
+    private String value(long addr)
+    {
+        ByteBuffer s = slab(addr);
+        int o = offset(addr);
+        int klen = s.getInt(o);
+        byte[] v = new byte[s.getInt(o + Integer.BYTES)];
+        s.get(o + HEADER_SIZE + klen, v);
+        return StoredValue.of(v);
+    }
+
+    /**
+     * Find the slot of a key.
+     *
+     * @return the slot holding the key; otherwise -(slot + 1) where slot is the
+     *         first free slot the key can be inserted at.
+     */
+    private int probe(byte[] k, int h)
+    {
+        int mask = capacity - 1;
+        int free = -1;
+        for (int i = h & mask;; i = (i + 1) & mask)
+        {
+            long addr = slotAddress(i);
+            if (addr == EMPTY)
+            {
+                return -((free < 0 ? i : free) + 1);
+            }
+            else if (addr == DELETED)
+            {
+                if (free < 0)
+                {
+                    free = i;
+                }
+            }
+            else if (slotHash(i) == h && matches(addr, k))
+            {
+                return i;
+            }
+        }
+    }
+
+    private long append(byte[] k, byte[] v)
+    {
+        int need = HEADER_SIZE + k.length + v.length;
+        ByteBuffer current = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+        if (current == null || current.remaining() < need)
+        {
+            current = ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, need));
+            slabs.add(current);
+        }
+
+        int o = current.position();
+        current.putInt(k.length).putInt(v.length).put(k).put(v);
+        live += need;
+        return address(slabs.size() - 1, o);
+    }
+
+    private void free(long addr)
+    {
+        int n = recordSize(addr);
+        live -= n;
+        dead += n;
+    }
+
+    private void resize(int newCapacity)
+    {
+        ByteBuffer old = index;
+        int oldCapacity = capacity;
+
+        index = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+        capacity = newCapacity;
+        int mask = capacity - 1;
+        for (int slot = 0; slot < oldCapacity; slot++)
+        {
+            long addr = old.getLong(slot * SLOT_SIZE);
+            if (addr != EMPTY && addr != DELETED)
+            {
+                int h = old.getInt(slot * SLOT_SIZE + Long.BYTES);
+                int i = h & mask;
+                while (slotAddress(i) != EMPTY)
+                {
+                    i = (i + 1) & mask;
+                }
+                setSlot(i, addr, h);
+            }
+        }
+        used = size;
+        resizes++;
+    }
+
+    /**
+     * Copy all live entries into fresh slabs so that the old ones, including their
+     * dead bytes, can be released.
+     */
+    private void compact()
+    {
+        ArrayList<ByteBuffer> old = slabs;
+        slabs = new ArrayList<>();
+        live = 0;
+        dead = 0;
+
+        for (int slot = 0; slot < capacity; slot++)
+        {
+            long addr = slotAddress(slot);
+            if (addr != EMPTY && addr != DELETED)
+            {
+                ByteBuffer s = old.get((int) (addr >>> 32) - 1);
+                int o = offset(addr);
+                byte[] k = new byte[s.getInt(o)];
+                byte[] v = new byte[s.getInt(o + Integer.BYTES)];
+                s.get(o + HEADER_SIZE, k);
+                s.get(o + HEADER_SIZE + k.length, v);
+                setSlot(slot, append(k, v), slotHash(slot));
+            }
+        }
+    }
+
+    private void maintain()
+    {
+        if (used >= capacity - (capacity >>> 2))
+        {
+            resize(size >= capacity >>> 1 ? capacity << 1 : capacity);
+        }
+
+        if (dead > live && dead > SLAB_SIZE)
+        {
+            compact();
+        }
+    }
+
+    @Override
+    public String get(String key)
+    {
+        byte[] k = encode(key);
+        int h = hash(k);
+
+        lock.readLock().lock();
+        try
+        {
+            int slot = probe(k, h);
+            return slot < 0 ? null : value(slotAddress(slot));
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String put(String key, String val)
+    {
+        byte[] k = encode(key);
+        byte[] v = StoredValue.bytes(val);
+        int h = hash(k);
+
+        lock.writeLock().lock();
+        try
+        {
+            int slot = probe(k, h);
+            final String prev;
+            if (slot >= 0)
+            {
+                long addr = slotAddress(slot);
+                prev = value(addr);
+                free(addr);
+            }
+            else
+            {
+                slot = -slot - 1;
+                if (slotAddress(slot) == EMPTY)
+                {
+                    used++;
+                }
+                size++;
+                prev = null;
+            }
+
+            setSlot(slot, append(k, v), h);
+            maintain();
+            return prev;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String delete(String key)
+    {
+        byte[] k = encode(key);
+        int h = hash(k);
+
+        lock.writeLock().lock();
+        try
+        {
+            int slot = probe(k, h);
+            if (slot < 0)
+            {
+                return null;
+            }
+
+            long addr = slotAddress(slot);
+            String prev = value(addr);
+            free(addr);
+            setSlot(slot, DELETED, 0);
+            size--;
+            maintain();
+            return prev;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return size;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visit the entries a batch of slots at a time, so that writes only wait for
+     * one batch. Entries moved by a resize might be skipped, so the visit starts
+     * over whenever the index has been resized in between.
+     */
+    @Override
+    public void forEach(BiConsumer<String, String> action)
+    {
+        ArrayList<String> batch = new ArrayList<>();
+        long epoch = -1;
+        int slot = 0;
+        boolean done = false;
+        while (!done)
+        {
+            batch.clear();
+            lock.readLock().lock();
+            try
+            {
+                if (epoch != resizes)
+                {
+                    epoch = resizes;
+                    slot = 0;
+                }
+
+                int end = Math.min(capacity, slot + BATCH_SLOTS);
+                for (; slot < end; slot++)
+                {
+                    long addr = slotAddress(slot);
+                    if (addr != EMPTY && addr != DELETED)
+                    {
+                        batch.add(key(addr));
+                        batch.add(value(addr));
+                    }
+                }
+                done = slot == capacity;
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+
+            for (int i = 0; i < batch.size(); i += 2)
+            {
+                action.accept(batch.get(i), batch.get(i + 1));
+            }
+        }
+    }
+
+    /**
+     * Walk the whole index, since it is hashed, keeping only the smallest keys in
+     * range on the heap.
+     */
+    @Override
+    public void scan(String from, String to, int limit, BiConsumer<String, String> action)
+    {
+        TreeMap<String, String> page = new TreeMap<>();
+        forEach((String k, String v) ->
+                {
+                    if (k.compareTo(from) >= 0 && (to == null || k.compareTo(to) < 0)
+                        && (page.size() < limit || k.compareTo(page.lastKey()) < 0))
+                    {
+                        page.put(k, v);
+                        if (page.size() > limit)
+                        {
+                            page.pollLastEntry();
+                        }
+                    }
+                });
+        page.forEach(action);
+    }
+
+    /**
+     * Drop the slabs and the index, whose memory is freed once they are collected.
+     */
+    @Override
+    public void close()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            slabs = new ArrayList<>();
+            index = ByteBuffer.allocateDirect(0);
+            capacity = 0;
+            size = 0;
+            used = 0;
+            live = 0;
+            dead = 0;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the average number of off-heap bytes used per entry, including the
+     *         index and the dead bytes not compacted yet.
+     */
+    public double bytesPerEntry()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return size == 0 ? 0 : (double) (live + dead + (long) capacity * SLOT_SIZE) / size;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return "entries=" + size + ", live bytes=" + live + ", dead bytes=" + dead
+                 + ", slabs=" + slabs.size() + ", index slots=" + capacity
+                 + String.format(", bytes/entry=%.1f", bytesPerEntry());
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+}
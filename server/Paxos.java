@@ -0,0 +1,107 @@
+package server;
+
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.Random;
+
+import common.*;
+
+/**
+ * Generic PAXOS service.
+ */
+class Paxos<V extends Serializable> implements PaxosService<V>
+{
+    private final static Random rand = new Random();
+    private PaxosState<V> state;
+    
+    Paxos()
+    {
+        this(new PaxosState<>());
+    }
+    
+    Paxos(PaxosState<V> state)
+    {
+        this.state = state;
+    }
+    
+    public static boolean mightFail()
+    {
+        return rand.nextInt(100) <= Config.defaultPaxosFailureRate(); 
+    }
+    
+    @Override
+    public synchronized Promise<V> prepare(int round, long id) throws RemoteException
+    {
+        if (mightFail())
+        {
+            Logger.debug("Acceptor decides to fail.");
+            return null;
+        }
+        
+        Pair<Long, Proposal<V>> p = state.get(round);
+        if (p == null)
+        {
+            state.init(round, id);            
+            return new Promise<>(id);
+        }
+        else // round existed
+        {
+            if (id <= p.getFirst())
+            {
+                return null;
+            }
+            else 
+            {                
+                p.setFirst(id);
+                if (p.getSecond() == null) // no accepted proposal yet
+                {
+                    return new Promise<>(id);
+                }
+                else // some accepted proposal
+                {
+                    return new Promise<>(id, p.getSecond());                    
+                }
+            }
+        }
+    }
+    
+    @Override
+    public synchronized V accept(int round, Proposal<V> proposal) throws RemoteException
+    {
+        if (mightFail()) 
+        {
+            Logger.debug("Acceptor decides to fail.");
+            return null;
+        }
+        
+        Pair<Long, Proposal<V>> p = state.get(round);
+        if (p == null)
+        {
+            throw new PaxosException("Failed to accept " + proposal + ". It hasn't been proposed yet.");
+        }
+        else // round existed
+        {
+            if (proposal.getId() == p.getFirst())
+            {
+                p.setSecond(proposal);
+                return proposal.getValue();
+            }
+            else
+            {
+                return null;
+            }
+        }
+    }
+    
+    @Override
+    public void learn(int round, V value) throws RemoteException 
+    {
+        if (mightFail())
+        {
+            Logger.debug("Learner decides to fail.");
+            return;
+        }
+        
+        Logger.log(() -> "Paxos round " + round + " has learned value " + value + ".");
+    }
+}
@@ -0,0 +1,221 @@
+package server;
+
+import java.util.ArrayList;
+
+import common.*;
+import protocol.*;
+
+/**
+ * Visitor to update the store.
+ */
+class ProcessRequest implements RequestVisitor<Response, NoThrow>
+{
+    private ServerState state;
+
+    public ProcessRequest(ServerState s)
+    {
+        state = s;
+    }
+
+    @Override
+    public Response visit(DeleteRequest r)
+    {
+        return new ProcessResponse(StoredValue.live(state.store.delete(r.key), System.currentTimeMillis()));
+    }
+
+    @Override
+    public Response visit(PutRequest r)
+    {
+        final String prev = state.store.put(r.key, StoredValue.encode(r.val, r.compressed, r.deadline));
+        return new ProcessResponse(StoredValue.live(prev, System.currentTimeMillis()));
+    }
+
+    @Override
+    public Response visit(GetRequest r) throws NoThrow
+    {
+        final long version = state.store.beginRead();
+        try
+        {
+            return new ProcessResponse(read(r.key, version, System.currentTimeMillis()));
+        }
+        finally
+        {
+            state.store.endRead();
+        }
+    }
+
+    @Override
+    public Response visit(MultiGetRequest r) throws NoThrow
+    {
+        final MultiGetResponse response = new MultiGetResponse();
+        final long now = System.currentTimeMillis();
+        final long version = state.store.beginRead();
+        try
+        {
+            for (String key : r.keys)
+            {
+                response.add(key, read(key, version, now));
+            }
+        }
+        finally
+        {
+            state.store.endRead();
+        }
+        return response;
+    }
+
+    private String read(String key, long version, long now)
+    {
+        final String val = StoredValue.live(state.store.get(key, version), now);
+        if (state.tracker != null)
+        {
+            state.tracker.read(key, val != null);
+        }
+        return val;
+    }
+
+    @Override
+    public Response visit(PrintRequest r) throws NoThrow
+    {
+        Logger.log(state.toString());
+        return new ProcessResponse();
+    }
+
+    @Override
+    public Response visit(ScanRequest r) throws NoThrow
+    {
+        final ScanResponse response = new ScanResponse();
+        final long now = System.currentTimeMillis();
+        final String[] last = new String[1];
+        final int[] scanned = new int[1];
+        state.store.scan(r.from(), r.to(), r.limit, (String k, String v) ->
+                                                    {
+                                                        final String live = StoredValue.live(v, now);
+                                                        if (live != null)
+                                                        {
+                                                            response.add(k, live);
+                                                        }
+                                                        last[0] = k;
+                                                        scanned[0]++;
+                                                    });
+        // expired entries still count toward a full page
+        if (scanned[0] == r.limit)
+        {
+            response.cursor = last[0];
+        }
+        return response;
+    }
+
+    @Override
+    public Response visit(ExpireRequest r) throws NoThrow
+    {
+        return state.store.write(() ->
+                                 {
+                                     int removed = 0;
+                                     for (String key : r.keys)
+                                     {
+                                         if (state.store.expire(key, r.time))
+                                         {
+                                             removed++;
+                                         }
+                                     }
+                                     return new ProcessResponse(String.valueOf(removed));
+                                 });
+    }
+
+    @Override
+    public Response visit(EvictRequest r) throws NoThrow
+    {
+        return state.store.write(() ->
+                                 {
+                                     int removed = 0;
+                                     for (String key : r.keys)
+                                     {
+                                         if (state.store.delete(key) != null)
+                                         {
+                                             removed++;
+                                         }
+                                     }
+                                     if (state.tracker != null)
+                                     {
+                                         state.tracker.evicted(removed);
+                                     }
+                                     return new ProcessResponse(String.valueOf(removed));
+                                 });
+    }
+
+    @Override
+    public Response visit(MultiPutRequest r) throws NoThrow
+    {
+        return state.store.write(() ->
+                                 {
+                                     final MultiWriteResponse response = new MultiWriteResponse();
+                                     final long now = System.currentTimeMillis();
+                                     for (PutRequest put : r.puts)
+                                     {
+                                         final String prev = state.store.put(put.key, StoredValue.encode(put.val, put.compressed, put.deadline));
+                                         response.add(put.key, StoredValue.live(prev, now));
+                                     }
+                                     return response;
+                                 });
+    }
+
+    @Override
+    public Response visit(MultiDeleteRequest r) throws NoThrow
+    {
+        return state.store.write(() ->
+                                 {
+                                     final MultiWriteResponse response = new MultiWriteResponse();
+                                     final long now = System.currentTimeMillis();
+                                     for (String key : r.keys)
+                                     {
+                                         response.add(key, StoredValue.live(state.store.delete(key), now));
+                                     }
+                                     return response;
+                                 });
+    }
+
+    @Override
+    public Response visit(BatchRequest r) throws NoThrow
+    {
+        return new ProcessResponse(String.valueOf(apply(r).size()));
+    }
+
+    /**
+     * Apply the writes of a batch in order as a single version of the store.
+     * 
+     * @param r the batch
+     * @return the responses to the writes in order.
+     */
+    public ArrayList<Response> apply(BatchRequest r)
+    {
+        return state.store.write(() ->
+                                 {
+                                     final ArrayList<Response> responses = new ArrayList<>(r.requests.size());
+                                     for (Request request : r.requests)
+                                     {
+                                         responses.add(request.accept(this));
+                                     }
+                                     return responses;
+                                 });
+    }
+
+    // transactions are buffered by the store service and committed as batches
+    @Override
+    public Response visit(OpenRequest r) throws NoThrow
+    {
+        return new ErrorResponse("OPEN is only handled by the store service.");
+    }
+
+    @Override
+    public Response visit(CommitRequest r) throws NoThrow
+    {
+        return new ErrorResponse("COMMIT is only handled by the store service.");
+    }
+
+    @Override
+    public Response visit(AbortRequest r) throws NoThrow
+    {
+        return new ErrorResponse("ABORT is only handled by the store service.");
+    }
+}
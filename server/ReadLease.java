@@ -0,0 +1,194 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import protocol.Request;
+
+/**
+ * The read lease of a server, allowing its store service to answer reads
+ * locally while being sure that it hasn't missed any completed write.
+ *
+ * A write completes only once every server in the cluster has prepared it,
+ * and its keys stay prepared on a server until the server has applied it, so
+ * a server still in the cluster never answers a read from behind a completed
+ * write, even if the write completed before the server applied it. The
+ * coordinator grants a replicated server a lease with every write it commits
+ * there, and on request, and waits for the lease of a server to run out before
+ * excluding it from a write. A lease is counted on the server from before it
+ * was granted, from when the write was prepared or the request was sent, and
+ * runs out a tenth early to allow for clock drift, so it always runs out
+ * before the coordinator stops waiting for it.
+ *
+ * The keys of the writes prepared but not yet committed are counted in a
+ * fixed array of stripes indexed by key hash, and reads of those keys wait
+ * until the writes have committed, so that a read never returns an
+ * older value than a read already answered by another server.
+ */
+class ReadLease
+{
+    private static final int STRIPES = 1 << 12;
+
+    private final boolean authoritative;
+    private final AtomicIntegerArray prepared = new AtomicIntegerArray(STRIPES);
+    private final ConcurrentHashMap<Request, Long> started = new ConcurrentHashMap<>();
+    private volatile long expiry = System.nanoTime(); // in System.nanoTime()
+    private int waiting; // guarded by this
+
+    /**
+     * @param authoritative true if the lease never runs out, as on the
+     *        coordinator
+     */
+    ReadLease(boolean authoritative)
+    {
+        this.authoritative = authoritative;
+    }
+
+    private static int stripe(String key)
+    {
+        final int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Extend the lease.
+     *
+     * @param start the time the lease is counted from in System.nanoTime()
+     * @param duration the duration granted in milliseconds
+     */
+    void grant(long start, long duration)
+    {
+        final long until = start + TimeUnit.MILLISECONDS.toNanos(duration - duration / 10);
+        synchronized (this)
+        {
+            if (until - expiry > 0)
+            {
+                expiry = until;
+            }
+        }
+    }
+
+    /**
+     * @return true if the lease hasn't run out.
+     */
+    boolean valid()
+    {
+        return authoritative || expiry - System.nanoTime() > 0;
+    }
+
+    /**
+     * Mark the keys of a write that has been prepared.
+     *
+     * @param request the write
+     */
+    void prepare(Request request)
+    {
+        started.putIfAbsent(request, System.nanoTime());
+        for (String key : Keys.writes(request))
+        {
+            prepared.incrementAndGet(stripe(key));
+        }
+    }
+
+    /**
+     * Unmark the keys of a write that has committed, and extend the lease from
+     * when it was prepared.
+     *
+     * @param request the write
+     * @param duration the duration of the lease granted with the write in
+     *        milliseconds; 0 if none
+     */
+    void resolve(Request request, long duration)
+    {
+        final Long start = started.remove(request);
+        if (start != null && duration > 0)
+        {
+            grant(start, duration);
+        }
+
+        boolean resolved = false;
+        for (String key : Keys.writes(request))
+        {
+            resolved |= prepared.decrementAndGet(stripe(key)) == 0;
+        }
+        if (resolved)
+        {
+            synchronized (this)
+            {
+                if (waiting > 0)
+                {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private boolean pending(List<String> keys)
+    {
+        for (String key : keys)
+        {
+            if (prepared.get(stripe(key)) != 0)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wait until none of the keys is being written, as long as the lease holds.
+     *
+     * @param keys the keys to be read
+     * @param timeout the longest time to wait in milliseconds
+     * @return true if the keys can be read locally.
+     */
+    boolean await(List<String> keys, long timeout)
+    {
+        if (!valid())
+        {
+            return false;
+        }
+        else if (!pending(keys))
+        {
+            return true;
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized (this)
+        {
+            waiting++;
+            try
+            {
+                while (pending(keys))
+                {
+                    final long until = authoritative || deadline - expiry < 0 ? deadline : expiry;
+                    final long left = until - System.nanoTime();
+                    if (left <= 0)
+                    {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            finally
+            {
+                waiting--;
+            }
+        }
+        return valid();
+    }
+
+    @Override
+    public String toString()
+    {
+        final long left = expiry - System.nanoTime();
+        return "Read lease: " + (authoritative ? "authoritative" : left > 0 ? TimeUnit.NANOSECONDS.toMillis(left) + " ms left" : "expired") + ", " + started.size() + " writes prepared";
+    }
+}
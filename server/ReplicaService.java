@@ -1,6 +1,7 @@
 package server;
 
 import java.rmi.*;
+import java.util.ArrayList;
 import common.EndPoint;
 import protocol.Request;
 
@@ -35,28 +36,45 @@ public interface ReplicaService extends PaxosService<Request>
     void shutdown() throws RemoteException;
 
     /**
-     * Validate the request to see if the write set of the request conflicts with
-     * the read set.
+     * Answer a heartbeat of the coordinator's failure detector.
      * 
-     * @param request the request to be validated.
-     * @return true if there is no conflict.
      * @throws RemoteException
      */
-    boolean validate(Request request) throws RemoteException;
+    void heartbeat() throws RemoteException;
+
+    /**
+     * Prepare the request to be committed, holding the keys it writes in the
+     * read lease until it commits.
+     * 
+     * @param request the request to be prepared.
+     * @throws RemoteException
+     */
+    void prepare(Request request) throws RemoteException;
 
     /**
      * Commit the request and update the store.
      * 
      * @param request the request to be committed.
+     * @param lease the read lease granted with the request in milliseconds,
+     *        counted from when the request was prepared; 0 if none.
      * @throws RemoteException
      */
-    void commit(Request request) throws RemoteException;
+    void commit(Request request, long lease) throws RemoteException;
 
     /**
-     * Abort the request.
+     * Abort a prepared request that the coordinator has failed to log, releasing
+     * its keys without updating the store.
      * 
      * @param request the request to be aborted.
      * @throws RemoteException
      */
     void abort(Request request) throws RemoteException;
+
+    /**
+     * Apply the requests committed while the server was joining the cluster.
+     * 
+     * @param requests the requests in commit order.
+     * @throws RemoteException
+     */
+    void replay(ArrayList<Request> requests) throws RemoteException;
 }
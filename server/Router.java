@@ -0,0 +1,354 @@
+package server;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import common.*;
+import protocol.*;
+
+/**
+ * The router of the requests across the shards of the key space, each shard
+ * being owned by an independent group of a coordinator and its replicated
+ * servers, with its own two-phase commit and PAXOS state.
+ *
+ * The shards are the coordinators listed by Config.shards(), in the same
+ * order on every server, and a key belongs to a shard by consistent hashing
+ * on a HashRing. A request whose keys all belong
+ * to another shard is forwarded to the store service of its coordinator, an
+ * MGET reading several shards is split into one MGET per shard, and a SCAN
+ * reads every shard and merges their pages in key order. An MPUT or MDEL
+ * writing several shards is refused as it couldn't be atomic, and so is any
+ * key of another shard within a transaction.
+ */
+class Router
+{
+    /**
+     * The processing of a request by the local shard.
+     */
+    @FunctionalInterface
+    interface Local
+    {
+        Response process(Request request) throws RemoteException;
+    }
+
+    private final String[] shards;
+    private final int local;
+    private final HashRing ring;
+    private final AtomicReferenceArray<StoreService> stores;
+    private final AtomicReferenceArray<CoordinatorService> coordinators;
+    private final ExecutorService pool = Executors.newCachedThreadPool((Runnable r) ->
+                                         {
+                                             Thread t = new Thread(r, "router");
+                                             t.setDaemon(true);
+                                             return t;
+                                         });
+
+    /**
+     * @param shards the endpoints of the coordinators of the shards
+     * @param local the index of the shard of this server
+     */
+    Router(String[] shards, int local)
+    {
+        this.shards = shards;
+        this.local = local;
+        this.ring = new HashRing(shards);
+        this.stores = new AtomicReferenceArray<>(shards.length);
+        this.coordinators = new AtomicReferenceArray<>(shards.length);
+    }
+
+    /**
+     * Find the shard of a coordinator among the shards of Config.shards().
+     *
+     * @param coordinator the endpoint of the coordinator
+     * @return the index of its shard; -1 if not listed.
+     * @throws CmdLineParserException if a shard isn't a valid endpoint.
+     */
+    static int find(EndPoint coordinator) throws CmdLineParserException
+    {
+        final String[] shards = Config.shards();
+        for (int s = 0; s < shards.length; s++)
+        {
+            final EndPoint p = CmdLineParser.parseEndPoint(shards[s], Config.defaultServerPortNumber());
+            if (p.getPort() == coordinator.getPort() && (p.getHost().equals(coordinator.getHost()) || isLocal(p.getHost())))
+            {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isLocal(InetAddress host)
+    {
+        try
+        {
+            return host.isLoopbackAddress() || host.isAnyLocalAddress() || NetworkInterface.getByInetAddress(host) != null;
+        }
+        catch (SocketException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @param key a key
+     * @return the index of the shard of the key.
+     */
+    int shard(String key)
+    {
+        return ring.shard(key);
+    }
+
+    /**
+     * @return the keys of a request, null if it isn't about keys.
+     */
+    private static List<String> keys(Request request)
+    {
+        if (request instanceof GetRequest || request instanceof MultiGetRequest)
+        {
+            return Keys.reads(request);
+        }
+        else if (request instanceof PutRequest || request instanceof DeleteRequest || request instanceof MultiPutRequest || request instanceof MultiDeleteRequest)
+        {
+            return Keys.writes(request);
+        }
+        return null;
+    }
+
+    /**
+     * @param request a request
+     * @return true if the request only concerns the shard of this server.
+     */
+    boolean isLocal(Request request)
+    {
+        if (request instanceof ScanRequest)
+        {
+            return shards.length == 1 || ((ScanRequest) request).shard == local;
+        }
+        final List<String> keys = keys(request);
+        if (keys != null)
+        {
+            for (String key : keys)
+            {
+                if (shard(key) != local)
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Route a request concerning other shards than the shard of this server.
+     *
+     * @param request the request
+     * @param here the processing of the requests concerning only this shard
+     * @return the response to the request.
+     * @throws RemoteException if a shard fails.
+     */
+    Response route(Request request, Local here) throws RemoteException
+    {
+        if (request instanceof ScanRequest)
+        {
+            return scan((ScanRequest) request, here);
+        }
+
+        // group the keys by shard in order
+        final TreeMap<Integer, ArrayList<String>> owned = new TreeMap<>();
+        for (String key : keys(request))
+        {
+            owned.computeIfAbsent(shard(key), (Integer s) -> new ArrayList<>()).add(key);
+        }
+        if (owned.size() == 1)
+        {
+            return process(owned.firstKey(), request, here);
+        }
+        else if (!(request instanceof MultiGetRequest))
+        {
+            return new ErrorResponse((request instanceof MultiPutRequest ? "MPUT" : "MDEL") + " cannot write the keys of several shards atomically.");
+        }
+
+        final HashMap<Integer, Future<Response>> parts = new HashMap<>(owned.size());
+        for (Map.Entry<Integer, ArrayList<String>> e : owned.entrySet())
+        {
+            final MultiGetRequest part;
+            try
+            {
+                part = new MultiGetRequest(e.getValue());
+            }
+            catch (InvalidRequestException x)
+            {
+                throw new IllegalStateException(x); // validated already
+            }
+            parts.put(e.getKey(), pool.submit(() -> process(e.getKey(), part, here)));
+        }
+
+        // the values in the order of the keys asked
+        final HashMap<String, String> values = new HashMap<>();
+        for (Future<Response> f : parts.values())
+        {
+            final Response r = get(f);
+            if (!(r instanceof MultiGetResponse))
+            {
+                return r;
+            }
+            final MultiGetResponse m = (MultiGetResponse) r;
+            for (int i = 0; i < m.keys.size(); i++)
+            {
+                values.put(m.keys.get(i), m.values.get(i));
+            }
+        }
+        final MultiGetResponse response = new MultiGetResponse();
+        for (String key : ((MultiGetRequest) request).keys)
+        {
+            response.add(key, values.get(key));
+        }
+        return response;
+    }
+
+    /**
+     * Scan every shard for a page and merge the pages in key order.
+     */
+    private Response scan(ScanRequest request, Local here) throws RemoteException
+    {
+        final ArrayList<Future<Response>> pages = new ArrayList<>(shards.length);
+        for (int s = 0; s < shards.length; s++)
+        {
+            final ScanRequest part = request.next(request.cursor);
+            part.shard = s;
+            final int shard = s;
+            pages.add(pool.submit(() -> process(shard, part, here)));
+        }
+
+        final TreeMap<String, String> merged = new TreeMap<>();
+        boolean more = false;
+        for (Future<Response> f : pages)
+        {
+            final Response r = get(f);
+            if (!(r instanceof ScanResponse))
+            {
+                return r;
+            }
+            final ScanResponse page = (ScanResponse) r;
+            for (int i = 0; i < page.keys.size(); i++)
+            {
+                merged.put(page.keys.get(i), page.values.get(i));
+            }
+            more |= page.cursor != null;
+        }
+
+        final ScanResponse response = new ScanResponse();
+        for (Map.Entry<String, String> e : merged.entrySet())
+        {
+            if (response.keys.size() == request.limit)
+            {
+                more = true;
+                break;
+            }
+            response.add(e.getKey(), e.getValue());
+        }
+        // the keys after the last one of the page are in the next pages of their shards
+        response.cursor = more && !response.keys.isEmpty() ? response.keys.get(response.keys.size() - 1) : null;
+        return response;
+    }
+
+    private static Response get(Future<Response> f) throws RemoteException
+    {
+        try
+        {
+            return f.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while routing a request.");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RemoteException)
+            {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RemoteException("Failed to route a request.", e.getCause());
+        }
+    }
+
+    /**
+     * A remote call to the coordinator of a shard.
+     */
+    @FunctionalInterface
+    private interface Call<S, T>
+    {
+        T call(S service) throws RemoteException;
+    }
+
+    /**
+     * Process a request on a shard.
+     */
+    private Response process(int shard, Request request, Local here) throws RemoteException
+    {
+        if (shard == local)
+        {
+            return here.process(request);
+        }
+
+        Logger.debug(() -> "Forwarding " + request + " to shard " + shard + " at " + shards[shard] + ".");
+        return call(shard, stores, StoreService.class, (StoreService store) -> store.process(request, null));
+    }
+
+    /**
+     * @param shard another shard
+     * @return the coordinator of the shard followed by its replicated servers.
+     * @throws RemoteException if the coordinator fails.
+     */
+    ArrayList<EndPoint> members(int shard) throws RemoteException
+    {
+        return call(shard, coordinators, CoordinatorService.class, CoordinatorService::members);
+    }
+
+    /**
+     * Call a service of the coordinator of a shard, connecting again once if
+     * the call fails.
+     */
+    private <S extends Remote, T> T call(int shard, AtomicReferenceArray<S> services, Class<S> type, Call<S, T> call) throws RemoteException
+    {
+        final S cached = services.get(shard);
+        if (cached != null)
+        {
+            try
+            {
+                return call.call(cached);
+            }
+            catch (RemoteException e)
+            {
+                services.compareAndSet(shard, cached, null);
+                Logger.warning("Shard " + shard + " at " + shards[shard] + " failed. Connecting again.", e);
+            }
+        }
+
+        final S service;
+        try
+        {
+            service = ServiceRegistry.connect(CmdLineParser.parseEndPoint(shards[shard], Config.defaultServerPortNumber()), type);
+        }
+        catch (NotBoundException | CmdLineParserException e)
+        {
+            throw new RemoteException("Failed to find the " + type.getSimpleName() + " of shard " + shard + " at " + shards[shard] + ".", e);
+        }
+        services.set(shard, service);
+        return call.call(service);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Router: shard " + local + " of " + Arrays.toString(shards);
+    }
+}
@@ -0,0 +1,644 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * An immutable sorted table of an LSM engine.
+ *
+ * A table file is laid out as
+ * <pre>
+ * block*  where block := [entry count]([key length][key][value length][value])*
+ * meta    := [entry count][key length][first key][key length][last key]
+ *            [bloom hashes][bloom words][bloom bits]
+ *            ([block offset][block length][block CRC32][key length][first key])*
+ * footer  := [meta offset][meta length][meta CRC32][magic]
+ * </pre>
+ * with keys and values in UTF-8, entries sorted by key and a value length of
+ * -1 marking a deleted key. The meta section is kept in memory while blocks are
+ * read on demand through a shared block cache.
+ */
+class SSTable
+{
+    /**
+     * The value marking a deleted key, compared by identity.
+     */
+    static final String TOMBSTONE = new String();
+
+    private static final int MAGIC = 0x4B56534C;
+    private static final int FOOTER_SIZE = Long.BYTES + 3 * Integer.BYTES;
+    private static final int BLOCK_SIZE = 1 << 12;
+
+    private final long id;
+    private final Path path;
+    private final FileChannel channel;
+    private final long entries;
+    private final long bytes;
+    private final String first;
+    private final String last;
+    private final BloomFilter bloom;
+    private final String[] firstKeys;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final int[] crcs;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    /**
+     * Write a key of any length as its length followed by its bytes in UTF-8.
+     */
+    private static void writeKey(DataOutputStream out, String key) throws IOException
+    {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(k.length);
+        out.write(k);
+    }
+
+    private static String readKey(DataInputStream in) throws IOException
+    {
+        byte[] k = new byte[in.readInt()];
+        in.readFully(k);
+        return new String(k, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The writer of a new table.
+     */
+    static class Writer implements Closeable
+    {
+        private final long id;
+        private final Path path;
+        private final DataOutputStream out;
+        private final BloomFilter bloom;
+        private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        private final DataOutputStream iout = new DataOutputStream(index);
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(2 * BLOCK_SIZE);
+        private final DataOutputStream bout = new DataOutputStream(block);
+        private long offset;
+        private long entries;
+        private int count;
+        private String first;
+        private String last;
+        private String blockFirst;
+        private boolean finished;
+
+        /**
+         * @param id the unique table id
+         * @param path the table file path
+         * @param expected the expected number of entries used to size the bloom
+         *                 filter
+         * @throws IOException if the file cannot be created.
+         */
+        Writer(long id, Path path, long expected) throws IOException
+        {
+            this.id = id;
+            this.path = path;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+            this.bloom = new BloomFilter(expected);
+        }
+
+        /**
+         * Add an entry. Keys must be added in ascending order.
+         *
+         * @param key the key
+         * @param val the value or TOMBSTONE
+         * @throws IOException if the entry cannot be written.
+         */
+        void add(String key, String val) throws IOException
+        {
+            byte[] k = key.getBytes(StandardCharsets.UTF_8);
+            if (count == 0)
+            {
+                blockFirst = key;
+            }
+            if (first == null)
+            {
+                first = key;
+            }
+            last = key;
+            bloom.add(key);
+
+            bout.writeInt(k.length);
+            bout.write(k);
+            if (val == TOMBSTONE)
+            {
+                bout.writeInt(-1);
+            }
+            else
+            {
+                byte[] v = StoredValue.bytes(val);
+                bout.writeInt(v.length);
+                bout.write(v);
+            }
+            count++;
+            entries++;
+
+            if (block.size() >= BLOCK_SIZE)
+            {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException
+        {
+            if (count == 0)
+            {
+                return;
+            }
+
+            byte[] body = block.toByteArray();
+            ByteBuffer b = ByteBuffer.allocate(Integer.BYTES + body.length).putInt(count).put(body);
+            CRC32 crc = new CRC32();
+            crc.update(b.array());
+            out.write(b.array());
+
+            iout.writeLong(offset);
+            iout.writeInt(b.capacity());
+            iout.writeInt((int) crc.getValue());
+            writeKey(iout, blockFirst);
+
+            offset += b.capacity();
+            block.reset();
+            count = 0;
+        }
+
+        /**
+         * @return the number of bytes written so far.
+         */
+        long size()
+        {
+            return offset + block.size();
+        }
+
+        /**
+         * @return the number of entries added so far.
+         */
+        long entries()
+        {
+            return entries;
+        }
+
+        /**
+         * Write the meta section and open the finished table.
+         *
+         * @return the table.
+         * @throws IOException if the table cannot be written.
+         */
+        SSTable finish() throws IOException
+        {
+            flush();
+
+            ByteArrayOutputStream meta = new ByteArrayOutputStream();
+            DataOutputStream mout = new DataOutputStream(meta);
+            mout.writeLong(entries);
+            writeKey(mout, first == null ? "" : first);
+            writeKey(mout, last == null ? "" : last);
+            bloom.write(mout);
+            mout.write(index.toByteArray());
+
+            byte[] m = meta.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(m);
+            out.write(m);
+            out.writeLong(offset);
+            out.writeInt(m.length);
+            out.writeInt((int) crc.getValue());
+            out.writeInt(MAGIC);
+            out.flush();
+            out.close();
+            finished = true;
+            return new SSTable(id, path);
+        }
+
+        /**
+         * Close the writer, deleting the file of an unfinished table.
+         */
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+            if (!finished)
+            {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Open a table and read its meta section.
+     *
+     * @param id the unique table id
+     * @param path the table file path
+     * @throws IOException if the table cannot be opened or is corrupted.
+     */
+    SSTable(long id, Path path) throws IOException
+    {
+        this.id = id;
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.bytes = channel.size();
+
+        ByteBuffer footer = read(bytes - FOOTER_SIZE, FOOTER_SIZE);
+        long metaOffset = footer.getLong();
+        int metaLength = footer.getInt();
+        int metaCrc = footer.getInt();
+        if (footer.getInt() != MAGIC)
+        {
+            throw new IOException(path + " is not a table.");
+        }
+
+        ByteBuffer meta = read(metaOffset, metaLength);
+        CRC32 crc = new CRC32();
+        crc.update(meta.duplicate());
+        if ((int) crc.getValue() != metaCrc)
+        {
+            throw new IOException(path + " has a corrupted meta section.");
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta.array()));
+        entries = in.readLong();
+        first = readKey(in);
+        last = readKey(in);
+        bloom = BloomFilter.read(in);
+
+        ArrayList<String> keys = new ArrayList<>();
+        ArrayList<long[]> blocks = new ArrayList<>();
+        while (in.available() > 0)
+        {
+            long offset = in.readLong();
+            int length = in.readInt();
+            int c = in.readInt();
+            blocks.add(new long[] { offset, length, c });
+            keys.add(readKey(in));
+        }
+
+        firstKeys = keys.toArray(new String[0]);
+        offsets = new long[blocks.size()];
+        lengths = new int[blocks.size()];
+        crcs = new int[blocks.size()];
+        for (int b = 0; b < blocks.size(); b++)
+        {
+            offsets[b] = blocks.get(b)[0];
+            lengths[b] = (int) blocks.get(b)[1];
+            crcs[b] = (int) blocks.get(b)[2];
+        }
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException
+    {
+        ByteBuffer b = ByteBuffer.allocate(length);
+        while (b.hasRemaining())
+        {
+            if (channel.read(b, offset + b.position()) < 0)
+            {
+                throw new EOFException(path + " is truncated.");
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    long id()
+    {
+        return id;
+    }
+
+    long entries()
+    {
+        return entries;
+    }
+
+    long bytes()
+    {
+        return bytes;
+    }
+
+    String first()
+    {
+        return first;
+    }
+
+    String last()
+    {
+        return last;
+    }
+
+    /**
+     * @return true if the key range of the table overlaps [from, to].
+     */
+    boolean overlaps(String from, String to)
+    {
+        return entries > 0 && first.compareTo(to) <= 0 && last.compareTo(from) >= 0;
+    }
+
+    /**
+     * Keep the table open for a reader.
+     *
+     * @return false if the table has already been released for good.
+     */
+    boolean retain()
+    {
+        for (int n = refs.get(); n > 0; n = refs.get())
+        {
+            if (refs.compareAndSet(n, n + 1))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Release a reference, closing and deleting the table with the last one.
+     */
+    void release()
+    {
+        if (refs.decrementAndGet() == 0)
+        {
+            try
+            {
+                channel.close();
+                Files.deleteIfExists(path);
+            }
+            catch (IOException e)
+            {
+                common.Logger.warning("Failed to delete the table " + path + ".", e);
+            }
+        }
+    }
+
+    /**
+     * A decoded block.
+     */
+    static class Block
+    {
+        final String[] keys;
+        final String[] vals;
+        final int bytes;
+
+        Block(String[] keys, String[] vals, int bytes)
+        {
+            this.keys = keys;
+            this.vals = vals;
+            this.bytes = bytes;
+        }
+    }
+
+    private Block decode(int b) throws IOException
+    {
+        ByteBuffer buf = read(offsets[b], lengths[b]);
+        CRC32 crc = new CRC32();
+        crc.update(buf.duplicate());
+        if ((int) crc.getValue() != crcs[b])
+        {
+            throw new IOException(path + " has a corrupted block " + b + ".");
+        }
+
+        int n = buf.getInt();
+        String[] keys = new String[n];
+        String[] vals = new String[n];
+        for (int i = 0; i < n; i++)
+        {
+            byte[] k = new byte[buf.getInt()];
+            buf.get(k);
+            keys[i] = new String(k, StandardCharsets.UTF_8);
+            int vlen = buf.getInt();
+            if (vlen < 0)
+            {
+                vals[i] = TOMBSTONE;
+            }
+            else
+            {
+                byte[] v = new byte[vlen];
+                buf.get(v);
+                vals[i] = StoredValue.of(v);
+            }
+        }
+        return new Block(keys, vals, lengths[b]);
+    }
+
+    private Block block(int b, BlockCache cache) throws IOException
+    {
+        if (cache == null)
+        {
+            return decode(b);
+        }
+
+        Block block = cache.get(id, b);
+        if (block == null)
+        {
+            block = decode(b);
+            cache.put(id, b, block);
+        }
+        return block;
+    }
+
+    /**
+     * @return the last block whose first key is not greater than the key; -1 if
+     *         there is none.
+     */
+    private int floor(String key)
+    {
+        int lo = 0;
+        int hi = firstKeys.length - 1;
+        int b = -1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (firstKeys[mid].compareTo(key) <= 0)
+            {
+                b = mid;
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid - 1;
+            }
+        }
+        return b;
+    }
+
+    /**
+     * @param key the key
+     * @param cache the block cache
+     * @return the value of the key, TOMBSTONE if it has been deleted or null if
+     *         the table doesn't have it.
+     * @throws IOException if the table cannot be read.
+     */
+    String get(String key, BlockCache cache) throws IOException
+    {
+        if (entries == 0 || key.compareTo(first) < 0 || key.compareTo(last) > 0 || !bloom.mightContain(key))
+        {
+            return null;
+        }
+
+        int b = floor(key);
+        if (b < 0)
+        {
+            return null;
+        }
+
+        Block block = block(b, cache);
+        int i = Arrays.binarySearch(block.keys, key);
+        return i < 0 ? null : block.vals[i];
+    }
+
+    /**
+     * Iterate the entries, including the deleted ones, from a key in ascending
+     * order.
+     *
+     * @param from the first key to iterate; null to iterate all
+     * @param cache the block cache; null to bypass it
+     * @return the iterator, which throws UncheckedIOException if the table cannot
+     *         be read.
+     */
+    Iterator<Map.Entry<String, String>> iterator(String from, BlockCache cache)
+    {
+        return new Iterator<Map.Entry<String, String>>()
+               {
+                   private int b = from == null ? 0 : Math.max(0, floor(from));
+                   private Block block;
+                   private int i;
+
+                   private boolean advance()
+                   {
+                       try
+                       {
+                           while (block == null || i >= block.keys.length)
+                           {
+                               if (b >= firstKeys.length)
+                               {
+                                   return false;
+                               }
+                               block = block(b++, cache);
+                               i = 0;
+                               if (from != null)
+                               {
+                                   while (i < block.keys.length && block.keys[i].compareTo(from) < 0)
+                                   {
+                                       i++;
+                                   }
+                               }
+                           }
+                           return true;
+                       }
+                       catch (IOException e)
+                       {
+                           throw new UncheckedIOException(e);
+                       }
+                   }
+
+                   @Override
+                   public boolean hasNext()
+                   {
+                       return advance();
+                   }
+
+                   @Override
+                   public Map.Entry<String, String> next()
+                   {
+                       if (!advance())
+                       {
+                           throw new NoSuchElementException();
+                       }
+                       Map.Entry<String, String> e = new AbstractMap.SimpleImmutableEntry<>(block.keys[i], block.vals[i]);
+                       i++;
+                       return e;
+                   }
+               };
+    }
+
+    @Override
+    public String toString()
+    {
+        return path.getFileName() + " [" + entries + " entries, " + bytes + " bytes]";
+    }
+}
+
+/**
+ * A bloom filter over string keys using double hashing.
+ */
+class BloomFilter
+{
+    private static final int BITS_PER_KEY = 10;
+
+    private final int hashes;
+    private final long[] bits;
+
+    BloomFilter(long expected)
+    {
+        this(7, new long[(int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, (expected * BITS_PER_KEY + 63) / 64))]);
+    }
+
+    private BloomFilter(int hashes, long[] bits)
+    {
+        this.hashes = hashes;
+        this.bits = bits;
+    }
+
+    private static int hash(String key, int seed)
+    {
+        int h = seed;
+        for (int i = 0; i < key.length(); i++)
+        {
+            h = (h ^ key.charAt(i)) * 0x01000193;
+        }
+        h ^= h >>> 15;
+        h *= 0x2C1B3C6D;
+        return h ^ (h >>> 12);
+    }
+
+    void add(String key)
+    {
+        long n = (long) bits.length * 64;
+        int h1 = hash(key, 0x811C9DC5);
+        int h2 = hash(key, 0x9747B28C);
+        for (int i = 0; i < hashes; i++)
+        {
+            long bit = Math.floorMod(h1 + (long) i * h2, n);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(String key)
+    {
+        long n = (long) bits.length * 64;
+        int h1 = hash(key, 0x811C9DC5);
+        int h2 = hash(key, 0x9747B28C);
+        for (int i = 0; i < hashes; i++)
+        {
+            long bit = Math.floorMod(h1 + (long) i * h2, n);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void write(DataOutputStream out) throws IOException
+    {
+        out.writeInt(hashes);
+        out.writeInt(bits.length);
+        for (long w : bits)
+        {
+            out.writeLong(w);
+        }
+    }
+
+    static BloomFilter read(DataInputStream in) throws IOException
+    {
+        int hashes = in.readInt();
+        long[] bits = new long[in.readInt()];
+        for (int i = 0; i < bits.length; i++)
+        {
+            bits[i] = in.readLong();
+        }
+        return new BloomFilter(hashes, bits);
+    }
+}
@@ -3,7 +3,7 @@
  */
 package server;
 
-import java.io.Serializable;
+import java.io.IOException;
 import java.net.*;
 import java.rmi.*;
 import java.rmi.server.RemoteServer;
@@ -15,258 +15,6 @@ import protocol.*;
 import transaction.TransactionId;
 import transaction.UniqueIdService;
 
-/**
- * The local read set.
- */
-class ReadSet
-{
-    private HashMap<String, Integer> readings;
-
-    /**
-     * Construct an empty read set.
-     */
-    public ReadSet()
-    {
-        readings = new HashMap<String, Integer>();
-    }
-
-    /**
-     * Mark a key as reading key.
-     * 
-     * @param key the key to be marked. It should be not null.
-     */
-    public synchronized void mark(String key)
-    {
-        Logger.debug("Before marking, " + readings.toString());
-        readings.merge(key, 1, (Integer o, Integer n) ->
-        {
-            return o + 1;
-        });
-        Logger.debug("After marking, " + readings.toString());
-    }
-
-    /**
-     * Unmark a key as reading key.
-     * 
-     * @param key the key to be unmarked. It should be marked already.
-     */
-    public synchronized void unmark(String key)
-    {
-        Logger.debug("Before unmarking, " + readings.toString());
-        readings.merge(key, 0, (Integer o, Integer n) ->
-        {
-            Integer v = o - 1;
-            return v == 0 ? null : v;
-        });
-        Logger.debug("After marking, " + readings.toString());
-    }
-
-    /**
-     * Check if the write key conflicts with any of the on-going read keys
-     * 
-     * @param writing the key that will be written. If null, then there is no
-     *                conflict.
-     * @return true if there is a conflict
-     */
-    private synchronized boolean conflict(String writing)
-    {
-        return readings.keySet().stream().anyMatch((String key) ->
-        {
-            return key.equals(writing);
-        });
-    }
-
-    /**
-     * Check if there is no conflict between the write set of the request and the
-     * read set.
-     * 
-     * @param request the request to be checked.
-     * @return true if there is no conflict.
-     */
-    public boolean validate(Request request)
-    {
-        final String writing;
-        
-        if (request instanceof DeleteRequest)
-        {
-            writing = ((DeleteRequest) request).key;
-        }
-        else if (request instanceof PutRequest)
-        {
-            writing = ((PutRequest) request).key;
-        }
-        else
-        {
-            writing = null;
-        }
-       
-        return !conflict(writing);
-    }
-
-    @Override
-    public String toString()
-    {
-        return "Read set: " + readings.toString();
-    }
-}
-
-/**
- * Visitor to update the store.
- */
-class ProcessRequest implements RequestVisitor<Response, NoThrow>
-{
-    private ServerState state;
-
-    public ProcessRequest(ServerState s)
-    {
-        state = s;
-    }
-
-    @Override
-    public Response visit(DeleteRequest r)
-    {
-        return new ProcessResponse(state.store.delete(r.key));
-    }
-
-    @Override
-    public Response visit(PutRequest r)
-    {
-        return new ProcessResponse(state.store.put(r.key, r.val));
-    }
-
-    @Override
-    public Response visit(GetRequest r) throws NoThrow
-    {
-        return new ProcessResponse(state.store.get(r.key));
-    }
-
-    @Override
-    public Response visit(PrintRequest r) throws NoThrow
-    {
-        Logger.log(state.toString());
-        return new ProcessResponse();
-    }
-
-    // TODO error those out
-    @Override
-    public Response visit(OpenRequest r) throws NoThrow
-    {
-        return null;
-    }
-
-    @Override
-    public Response visit(CommitRequest r) throws NoThrow
-    {
-        return null;
-    }
-
-    @Override
-    public Response visit(AbortRequest r) throws NoThrow
-    {
-        return null;
-    }
-}
-
-/**
- * Generic PAXOS service.
- */
-class Paxos<V extends Serializable> implements PaxosService<V>
-{
-    private final static Random rand = new Random();
-    private PaxosState<V> state;
-    
-    Paxos()
-    {
-        this(new PaxosState<>());
-    }
-    
-    Paxos(PaxosState<V> state)
-    {
-        this.state = state;
-    }
-    
-    public static boolean mightFail()
-    {
-        return rand.nextInt(100) <= Config.defaultPaxosFailureRate(); 
-    }
-    
-    @Override
-    public synchronized Promise<V> prepare(int round, long id) throws RemoteException
-    {
-        if (mightFail())
-        {
-            Logger.debug("Acceptor decides to fail.");
-            return null;
-        }
-        
-        Pair<Long, Proposal<V>> p = state.get(round);
-        if (p == null)
-        {
-            state.init(round, id);            
-            return new Promise<>(id);
-        }
-        else // round existed
-        {
-            if (id <= p.getFirst())
-            {
-                return null;
-            }
-            else 
-            {                
-                p.setFirst(id);
-                if (p.getSecond() == null) // no accepted proposal yet
-                {
-                    return new Promise<>(id);
-                }
-                else // some accepted proposal
-                {
-                    return new Promise<>(id, p.getSecond());                    
-                }
-            }
-        }
-    }
-    
-    @Override
-    public synchronized V accept(int round, Proposal<V> proposal) throws RemoteException
-    {
-        if (mightFail()) 
-        {
-            Logger.debug("Acceptor decides to fail.");
-            return null;
-        }
-        
-        Pair<Long, Proposal<V>> p = state.get(round);
-        if (p == null)
-        {
-            throw new PaxosException("Failed to accept " + proposal + ". It hasn't been proposed yet.");
-        }
-        else // round existed
-        {
-            if (proposal.getId() == p.getFirst())
-            {
-                p.setSecond(proposal);
-                return proposal.getValue();
-            }
-            else
-            {
-                return null;
-            }
-        }
-    }
-    
-    @Override
-    public void learn(int round, V value) throws RemoteException 
-    {
-        if (mightFail())
-        {
-            Logger.debug("Learner decides to fail.");
-            return;
-        }
-        
-        Logger.log("Paxos round " + round + " has learned value " + value + ".");
-    }
-}
-
 /**
  * The participant event listener.
  */
@@ -276,7 +24,7 @@ interface ParticipantListener
 
     public void onRemove(EndPoint addr);
 
-    public void onValidate(Request request);
+    public void onPrepare(Request request);
 
     public void onCommit(Request request);
 
@@ -291,14 +39,12 @@ interface ParticipantListener
 class Replica implements ReplicaService
 {
     private ServerState state;
-    private ReadSet readset;
     private ParticipantListener listener;
     private Paxos<Request> logs;
 
-    Replica(ServerState state, ReadSet readset, ParticipantListener listener)
+    Replica(ServerState state, ParticipantListener listener)
     {
         this.state = state;
-        this.readset = readset;
         this.listener = listener;
         this.logs = new Paxos<>(state.paxos);
     }
@@ -324,32 +70,45 @@ class Replica implements ReplicaService
     }
 
     @Override
-    public boolean validate(Request request) throws RemoteException
+    public void prepare(Request request) throws RemoteException
     {
-        boolean result = readset.validate(request);
-        if (result)
+        listener.onPrepare(request);
+        state.lease.prepare(request);
+    }
+
+    @Override
+    public synchronized void commit(Request request, long lease) throws RemoteException
+    {
+        listener.onCommit(request);
+        try
         {
-            Logger.log("Ready to commit request " + request);
-            return true;
+            request.accept(new ProcessRequest(state));
         }
-        else
+        finally
         {
-            Logger.log("Conflict occurred. Need to abort request " + request);
-            return false;
+            state.lease.resolve(request, lease);
         }
     }
 
     @Override
-    public synchronized void commit(Request request) throws RemoteException
+    public void abort(Request request) throws RemoteException
     {
-        listener.onCommit(request);
-        request.accept(new ProcessRequest(state));
+        listener.onAbort(request);
+        state.lease.resolve(request, 0);
     }
 
     @Override
-    public synchronized void abort(Request request) throws RemoteException
+    public void heartbeat() throws RemoteException
     {
-        listener.onAbort(request);
+    }
+
+    @Override
+    public synchronized void replay(ArrayList<Request> requests) throws RemoteException
+    {
+        for (Request request : requests)
+        {
+            request.accept(new ProcessRequest(state));
+        }
     }
 
     @Override
@@ -372,524 +131,215 @@ class Replica implements ReplicaService
 }
 
 /**
- * The coordinator service.
+ * The store service.
  */
-class Coordinator implements CoordinatorService
+class Store implements StoreService
 {
-    private UniqueIdService id;
-    private ServerState state;
-    private ReadSet readset;
-    private final EndPoint local; 
-    private HashSet<EndPoint> partial;
-    private Paxos<Request> logs;
-    private final ExecutorService pool = Executors.newFixedThreadPool(Config.defaultPaxosThreads());
-    
-    public Coordinator(UniqueIdService id, 
-                       ServerState state, 
-                       ReadSet readset, 
-                       EndPoint local)
+    private final CoordinatorService coordinator;
+    private final ServerState state;
+    private final EndPoint local;
+    private final ConcurrentHashMap<TransactionId, Transaction> transactions = new ConcurrentHashMap<>();
+
+    public Store(CoordinatorService coordinator, ServerState state, EndPoint local)
     {
-        this.id = id;
+        this.coordinator = coordinator;
         this.state = state;
-        this.readset = readset;
         this.local = local;
-        this.partial = new HashSet<>();
-        this.logs = new Paxos<>(state.paxos);
-    }
-    
-    /**
-     * Wait until all replicated servers have been fully initialized.
-     */
-    private void waitForServices()
-    {
-        while (!partial.isEmpty())
-        {
-            try
-            {
-                Logger.debug("Thread " + Thread.currentThread() + " waits.");
-                wait();
-            }
-            catch (InterruptedException e)
-            {
-                Thread.currentThread().interrupt();
-                Logger.debug("Thread " + Thread.currentThread() + " has been waken up.");
-            }
-        }
     }
 
     /**
-     * Exclude unresponsive servers from future operations as if they have been
-     * disconnected.
+     * Answer a read locally if the server holds a read lease, asking the
+     * coordinator for one if not, and have the coordinator answer it otherwise.
      * 
-     * @param unresponsive a list of unresponsive servers
+     * @param request the GET or MGET request
+     * @return the response to the read.
+     * @throws RemoteException
      */
-    private void exclude(ArrayList<EndPoint> unresponsive)
+    private Response read(Request request) throws RemoteException
     {
-        while (unresponsive.size() != 0)
+        if (Config.leaseDuration() > 0)
         {
-            for (EndPoint u : unresponsive)
+            final List<String> keys = Keys.reads(request);
+            if (!state.lease.await(keys, Config.fanoutTimeout()))
             {
-                Logger.log("Removing unresponsive server " + u + " in coordinator.");
-                state.replicas.remove(u);
-            }
-
-            ArrayList<EndPoint> newUnresponsive = new ArrayList<EndPoint>();
-            for (EndPoint u : unresponsive)
-            {
-                state.replicas.forEach((EndPoint p, ReplicaService r) ->
-                                        {
-                                            try
-                                            {
-                                                Logger.log("Removing unresponsive server " + u + " in " + p + ".");
-                                                r.remove(u);
-                                            }
-                                            catch (RemoteException e)
-                                            {
-                                                Logger.warning("Replicated server " + p + " has lost contact.", e);
-                                                newUnresponsive.add(p);
-                                            }
-                                        });
+                final long start = System.nanoTime();
+                final long granted = coordinator.lease(local);
+                state.lease.grant(start, granted);
+                if (granted == 0 || !state.lease.await(keys, Config.fanoutTimeout()))
+                {
+                    Logger.debug(() -> "Forwarding " + request + " to the coordinator without a read lease.");
+                    return coordinator.process(request, null);
+                }
             }
-            unresponsive = newUnresponsive;
         }
+        // reads a version of the store, so writers never wait for it
+        return request.accept(new ProcessRequest(state));
     }
 
     /**
-     * Allow the replicated server to connect and initialize itself with the state
-     * the coordinator currently has. The client has to register its replica service
-     * to fully initialized itself in the coordinator. All subsequent service calls
-     * (except connect and register) have to wait until all partially initialized
-     * services have been fully initialized.
-     * 
-     * @param replica the replicated server
-     * @return the local key value store and all the currently available servers.
+     * Take a PUT from a client, resetting the fields only the servers set
+     * before compressing its value.
      */
-    @Override
-    public synchronized ServerState connect(EndPoint replica) throws RemoteException
+    private void enter(PutRequest r)
     {
-        partial.add(replica);
-        Logger.log(replica + " has connected.");
-        return state;
+        r.compressed = false;
+        r.deadline = 0;
+        state.compressor.compress(r);
     }
 
     /**
-     * Register the replicated server to the coordinator so that it will be fully
-     * initialized. Notify other blocked operations.
+     * Open a transaction with an Id from the coordinator, dropping the
+     * transactions left idle by their clients.
      */
-    @Override
-    public synchronized void register(EndPoint replica, ReplicaService service) throws RemoteException
-    {
-        partial.remove(replica);
-        state.replicas.put(replica, service);
-        notifyAll();
-
-        waitForServices();
-
-        ArrayList<EndPoint> unresponsive = new ArrayList<EndPoint>();
-        state.replicas.forEach((EndPoint p, ReplicaService r) ->
-                        {
-                            if (!p.equals(replica))
-                            {
-                                try
-                                {
-                                    Logger.log("Adding replicated server " + replica + " in " + p + ".");
-                                    r.add(replica, service);
-                                }
-                                catch (RemoteException e)
-                                {
-                                    Logger.warning("Replicated server " + p + " didn't respond in time.", e);
-                                    unresponsive.add(p);
-                                }
-                            }
-                        });
-        exclude(unresponsive);
-
-        Logger.log(replica + " has registered itself.");
-    }
-
-    @Override
-    public synchronized void disconnect(EndPoint replica) throws RemoteException
-    {
-        waitForServices();
-
-        state.replicas.remove(replica);
-
-        ArrayList<EndPoint> unresponsive = new ArrayList<EndPoint>();
-        state.replicas.forEach((EndPoint p, ReplicaService r) ->
-                        {
-                            try
-                            {
-                                Logger.log("Removing replicated server " + replica + " in " + p + ".");
-                                r.remove(replica);
-                            }
-                            catch (RemoteException e)
-                            {
-                                Logger.warning("Replicated server " + p + " didn't respond in time.", e);
-                                unresponsive.add(p);
-                            }
-                        });
-        exclude(unresponsive);
-
-        Logger.log(replica + " has been disconnected.");
-    }
-
-    @Override
-    public synchronized void shutdown() throws RemoteException
+    private Response open() throws RemoteException
     {
-        waitForServices();
+        final long timeout = Config.transactionTimeout();
+        transactions.values().removeIf((Transaction t) -> t.idle(timeout));
 
-        state.replicas.forEach((EndPoint p, ReplicaService r) ->
-                        {
-                            try
-                            {
-                                Logger.log("Shutting down replicated server " + p + ".");
-                                r.shutdown();
-                            }
-                            catch (RemoteException e)
-                            {
-                                Logger.warning("Replicated server " + p + " didn't respond in time.", e);
-                            }
-                        });
-        
-        pool.shutdown();
-        try
-        {
-            while (!pool.awaitTermination(Config.defaultPaxosTimeout(), TimeUnit.MILLISECONDS))
-            {
-                pool.shutdownNow();
-            }
-        }
-        catch (InterruptedException e)
+        final Response response = coordinator.process(new OpenRequest(), null);
+        if (response instanceof TransactionResponse)
         {
-            pool.shutdownNow();
-            Thread.currentThread().interrupt();
+            final TransactionId tid = ((TransactionResponse) response).tid;
+            transactions.put(tid, new Transaction(tid));
         }
+        return response;
     }
 
-    private static boolean isMajority(int n, int N)
-    {
-        return n > (N / 2);
-    }
-
-    private static class PaxosFailure extends Exception
-    {
-        private static final long serialVersionUID = 1L;
-        
-        PaxosFailure(String msg)
-        {
-            super(msg);
-        }
-    }
-    
     /**
-     * Propose a value to agree on for a PAXOS round
-     * @param round the PAXOS round
-     * @param value the value to agree on
-     * @return true if the value is actually accepted for the current round.
-     * @throws RemoteException if the id service fails.
-     * @throws PaxosFailure if either the distinguished proposer or learner decides to fail.
+     * Process a request within an open transaction, buffering its writes and
+     * reading through them.
      */
-    private synchronized boolean propose(int round, Request value) throws RemoteException, PaxosFailure
+    private Response process(Request request, Transaction t)
     {
-        Logger.log("Running PAXOS round " + round + " with committed request " + value + ".");
-
-        if (Paxos.mightFail())
-        {
-            throw new PaxosFailure("The distinguished proposer decides to fail before phase 1.");
-        }
-        
-        // phase 1
-        final HashMap<EndPoint, Promise<Request>> promises = new HashMap<>(state.replicas.size());
-        final ArrayList<EndPoint> unresponsive = new ArrayList<EndPoint>();
-        while (!isMajority(promises.size(), state.replicas.size()))
-        {
-            final long n = id.next();
-
-            // recollect promises
-            promises.clear();
-            
-            {
-                Promise<Request> p = prepare(round, n);
-                if (p != null)
-                {
-                    Logger.log("Got " + p + " from " + local + ".");
-                    promises.put(local, p);
-                }
-            }
-            
-            unresponsive.clear();
-            state.replicas.forEach((a, r) -> 
-                                   {
-                                       try
-                                       {
-                                           Promise<Request> p = r.prepare(round, n);
-                                           if (p != null)
-                                           {
-                                               Logger.log("Got " + p + " from " + a + ".");
-                                               promises.put(a, p);
-                                           }
-                                       }
-                                       catch (RemoteException e)
-                                       {
-                                           Logger.warning("Replicated server " + a + " didn't respond in time.", e);
-                                           unresponsive.add(a);
-                                       }
-                                   });
-            exclude(unresponsive);
-        }
-        
-        if (Paxos.mightFail())
-        {
-            throw new PaxosFailure("The distinguished proposer decides to fail after phase 1 but before phase 2.");
-        }
-        
-        // phase 2
-        final long pid = promises.values().stream().findAny().get().getId(); // promises shouldn't be empty
-        final Optional<Promise<Request>> highest = promises.values().stream()
-                                                  .filter((p) -> { return p.getProposal() != null; })
-                                                  .max((a, b) -> { return Long.compare(a.getProposal().getId(), b.getProposal().getId());});
-        final Request val = highest.isPresent() ? highest.get().getProposal().getValue() : value;
-        final Proposal<Request> proposal = new Proposal<Request>(pid, val);
-
-        // collect accepted values based on promises
-        final ArrayList<Request> accepted = new ArrayList<>(promises.size());
-        while (accepted.isEmpty())
-        {
-            unresponsive.clear();
-            promises.forEach((EndPoint a, Promise<Request> p) -> 
-                             {
-                                 try
-                                 {
-                                     final ReplicaService r = state.replicas.get(a);
-                                     
-                                     final Request v;
-                                     if (r == null) // coordinator
-                                     {
-                                         v = accept(round, proposal);
-                                     }
-                                     else 
-                                     {
-                                         v = r.accept(round, proposal);
-                                     }
-                                     
-                                     if (v != null) 
-                                     {
-                                         Logger.log("Server " + a + " has accepted " + proposal + ".");
-                                         accepted.add(v);
-                                     }
-                                 }
-                                 catch (PaxosException e)
-                                 {
-                                     Logger.debug(e);
-                                 }
-                                 catch (RemoteException e)
-                                 {
-                                     Logger.warning("Replicated server " + a + " didn't respond in time.", e);
-                                     unresponsive.add(a);
-                                 }
-                             });
-            exclude(unresponsive);
-        }
-        
-        if (Paxos.mightFail())
-        {
-            throw new PaxosFailure("The distinguished learner decides to fail.");
-        }
-        
-        // learn the accepted value
-        Logger.debug("Accepted values: " + accepted);
-        final Request agreed = accepted.stream().findAny().get(); // note the accepted cannot be empty
-        learn(round, agreed);
-        unresponsive.clear();
-        state.replicas.forEach((EndPoint a, ReplicaService r) ->
-                                {
-                                    try
+        final long now = System.currentTimeMillis();
+        return request.accept(new RequestVisitor<Response, NoThrow>()
+                              {
+                                    @Override
+                                    public Response visit(GetRequest r)
                                     {
-                                        r.learn(round, agreed);
-                                        Logger.log("Server " + a + " has learned value " + agreed + " in round " + round + ".");
+                                        return new ProcessResponse(StoredValue.live(t.read(r.key, state.store), now));
                                     }
-                                    catch (RemoteException e)
+
+                                    @Override
+                                    public Response visit(MultiGetRequest r)
                                     {
-                                        unresponsive.add(a);
+                                        final MultiGetResponse response = new MultiGetResponse();
+                                        for (String key : r.keys)
+                                        {
+                                            response.add(key, StoredValue.live(t.read(key, state.store), now));
+                                        }
+                                        return response;
                                     }
-                                });
-        exclude(unresponsive);
-        
-        return !highest.isPresent() || highest.get().getProposal().getValue().equals(value);
-    }
-    
-    @Override
-    public synchronized Response process(Request request, TransactionId tid) throws RemoteException
-    {
-        waitForServices();
 
-        // two-phase commit protocol
+                                    @Override
+                                    public Response visit(DeleteRequest r)
+                                    {
+                                        return new ProcessResponse(StoredValue.live(t.write(r.key, r, state.store), now));
+                                    }
 
-        // 1. voting phase
-        Logger.log("Validating request " + request);
-        final HashMap<EndPoint, Boolean> votes = new HashMap<EndPoint, Boolean>(state.replicas.size());
-        {
-            boolean vote = readset.validate(request);
-            if (vote)
-            {
-                votes.put(local, vote);
-                Logger.log("Validated request " + request + " on coordinator with result " + vote + ".");
-            }
-        }
+                                    @Override
+                                    public Response visit(PutRequest r)
+                                    {
+                                        enter(r);
+                                        return new ProcessResponse(StoredValue.live(t.write(r.key, r, state.store), now));
+                                    }
 
-        final ArrayList<EndPoint> unresponsive = new ArrayList<EndPoint>();
-        state.replicas.forEach((a, r) -> 
-                               {
-                                   try
-                                   {
-                                       boolean vote = r.validate(request);
-                                       Logger.log("Validated request " + request + " on server " + a + " with result " + vote + ".");
-                                       votes.put(a, vote);
-                                   }
-                                   catch (RemoteException e)
-                                   {
-                                       Logger.warning("Replicated server " + a + " didn't respond in time.", e);
-                                       unresponsive.add(a);
-                                   } 
-                               });
-        exclude(unresponsive);
-
-        // 2. completion phase
-        unresponsive.clear();
-        if (votes.values().stream().allMatch((Boolean b) -> { return b; }))
-        {
-            // run PAXOS concurrently
-            Future<Void> f = pool.submit(() -> 
+                                    @Override
+                                    public Response visit(MultiPutRequest r)
+                                    {
+                                        final MultiWriteResponse response = new MultiWriteResponse();
+                                        for (PutRequest put : r.puts)
                                         {
-                                           int round = state.paxos.getNextRound();
-                                           while (true)
-                                           {
-                                               try
-                                               {
-                                                   boolean behind = !propose(round, request);
-                                                   if (behind)
-                                                   {
-                                                       Logger.debug("PAXOS round " + round + " finished but behind.");
-                                                       round++;
-                                                   }
-                                                   else
-                                                   {
-                                                       Logger.debug("PAXOS round " + round + " finished.");
-                                                       return null;
-                                                   }
-                                               }   
-                                               catch (PaxosFailure e)
-                                               {
-                                                   Logger.warning(e);
-                                                   // retry current round
-                                               }
-                                           }
-                                        });
-            
-            Logger.log("Committing request " + request);
-            state.replicas.forEach((EndPoint p, ReplicaService r) ->
+                                            enter(put);
+                                            response.add(put.key, StoredValue.live(t.write(put.key, put.with(r.durability()), state.store), now));
+                                        }
+                                        return response;
+                                    }
+
+                                    @Override
+                                    public Response visit(MultiDeleteRequest r) throws NoThrow
                                     {
+                                        final MultiWriteResponse response = new MultiWriteResponse();
                                         try
                                         {
-                                            Logger.log("Committing request " + request + " on server " + p + ".");
-                                            r.commit(request);
+                                            for (String key : r.keys)
+                                            {
+                                                response.add(key, StoredValue.live(t.write(key, new DeleteRequest(key).with(r.durability()), state.store), now));
+                                            }
                                         }
-                                        catch (RemoteException e)
+                                        catch (InvalidRequestException e)
                                         {
-                                            Logger.warning("Replicated server " + p + " didn't respond in time.", e);
-                                            unresponsive.add(p);
+                                            return new ErrorResponse(e);
                                         }
-                                    });
-            exclude(unresponsive);
+                                        return response;
+                                    }
 
-            final Response response = request.accept(new ProcessRequest(state));
-            Logger.log("Request " + request + " has been committed.");
-            
-            // run PAXOS concurrently
-            pool.submit(() -> 
-                        {
-                            try
-                            {
-                                f.get(Config.defaultPaxosTimeout(), TimeUnit.MILLISECONDS);
-                            }
-                            catch (TimeoutException e)
-                            {
-                                Logger.warning("PAXOS didn't complete in time.");
-                                f.cancel(true);
-                            }
-                            catch (InterruptedException e)
-                            {
-                                Thread.currentThread().interrupt();
-                            }
-                            catch (ExecutionException e)
-                            {
-                                Logger.warning("PAXOS didn't complete properly.", e);
-                            }
-                        });
-            
-            return response;
-        }
-        else
-        {
-            Logger.log("Aborting request " + request);
-            votes.forEach((EndPoint p, Boolean v) ->
-                          {
-                              final ReplicaService r = state.replicas.get(p);
-                              if (r != null) // replicas
-                              { 
-                                  if (v.booleanValue() == true)
-                                  {
-                                      try
-                                      {
-                                          state.replicas.get(p).abort(request);
-                                      }
-                                      catch (RemoteException e)
-                                      {
-                                          Logger.warning("Replicated server " + p + " didn't respond in time.", e);
-                                          unresponsive.add(p);
-                                      }
-                                   }
-                              }
-                          });
-            exclude(unresponsive);
-            Logger.log("Request " + request + " has been aborted.");
-            return new TransactionResponse(tid);
-        }
-    }
+                                    @Override
+                                    public Response visit(ScanRequest r)
+                                    {
+                                        return new ErrorResponse("SCAN is not supported within a transaction.");
+                                    }
 
-    @Override
-    public Promise<Request> prepare(int round, long id) throws RemoteException
-    {
-        return logs.prepare(round, id);
-    }
+                                    @Override
+                                    public Response visit(PrintRequest r)
+                                    {
+                                        return new ErrorResponse("PRINT is not part of a transaction.");
+                                    }
 
-    @Override
-    public Request accept(int round, Proposal<Request> proposal) throws RemoteException
-    {
-        return logs.accept(round, proposal);
-    }
+                                    @Override
+                                    public Response visit(OpenRequest r)
+                                    {
+                                        return new ErrorResponse("Transaction " + t.tid + " is already open.");
+                                    }
 
-    @Override
-    public void learn(int round, Request value) throws RemoteException
-    {
-        logs.learn(round, value);
-    }
-}
+                                    @Override
+                                    public Response visit(CommitRequest r)
+                                    {
+                                        return new ErrorResponse("COMMIT is not part of a transaction.");
+                                    }
 
-/**
- * The store service.
- */
-class Store implements StoreService
-{
-    private final CoordinatorService coordinator;
-    private final ServerState state;
-    private final ReadSet readset;
+                                    @Override
+                                    public Response visit(AbortRequest r)
+                                    {
+                                        return new ErrorResponse("ABORT is not part of a transaction.");
+                                    }
+
+                                    @Override
+                                    public Response visit(ExpireRequest r)
+                                    {
+                                        return new ErrorResponse("EXPIRE is only issued by the coordinator.");
+                                    }
+
+                                    @Override
+                                    public Response visit(EvictRequest r)
+                                    {
+                                        return new ErrorResponse("EVICT is only issued by the coordinator.");
+                                    }
+
+                                    @Override
+                                    public Response visit(BatchRequest r)
+                                    {
+                                        return new ErrorResponse("BATCH is only issued by the coordinator.");
+                                    }
+                              });
+    }
 
-    public Store(CoordinatorService coordinator, ServerState state, ReadSet readset)
+    @Override
+    public Topology topology() throws RemoteException
     {
-        this.coordinator = coordinator;
-        this.state = state;
-        this.readset = readset;
+        final ArrayList<ArrayList<EndPoint>> groups = new ArrayList<>();
+        if (state.router == null)
+        {
+            groups.add(coordinator.members());
+        }
+        else
+        {
+            for (int s = 0; s < Config.shards().length; s++)
+            {
+                groups.add(s == state.shard ? coordinator.members() : state.router.members(s));
+            }
+        }
+        return new Topology(state.router == null ? new String[0] : Config.shards(), groups);
     }
 
     /**
@@ -903,15 +353,40 @@ class Store implements StoreService
     @Override
     public Response process(Request request, TransactionId tid) throws RemoteException
     {
+        if (state.router != null && !state.router.isLocal(request))
+        {
+            if (tid == null)
+            {
+                return state.router.route(request, (Request r) -> process(r, (TransactionId) null));
+            }
+            else if (!(request instanceof ScanRequest))
+            {
+                return new ErrorResponse("Transaction " + tid + " can only touch the keys of the shard of the server it is open on.");
+            }
+        }
+
+        if (tid != null && !(request instanceof CommitRequest || request instanceof AbortRequest || request instanceof PrintRequest))
+        {
+            final Transaction t = transactions.get(tid);
+            if (t == null)
+            {
+                return new ErrorResponse("Transaction " + tid + " isn't open on this server.");
+            }
+            return process(request, t);
+        }
+
         return request.accept(new RequestVisitor<Response, RemoteException>()
                               {
                                     @Override
-                                    public Response visit(GetRequest r)
+                                    public Response visit(GetRequest r) throws RemoteException
                                     {
-                                        readset.mark(r.key);
-                                        final Response response = r.accept(new ProcessRequest(state));
-                                        readset.unmark(r.key);
-                                        return response;
+                                        return read(r);
+                                    }
+
+                                    @Override
+                                    public Response visit(MultiGetRequest r) throws RemoteException
+                                    {
+                                        return read(r);
                                     }
                         
                                     @Override
@@ -923,9 +398,26 @@ class Store implements StoreService
                                     @Override
                                     public Response visit(PutRequest r) throws RemoteException
                                     {
+                                        enter(r);
                                         return coordinator.process(r, tid);
                                     }
                         
+                                    @Override
+                                    public Response visit(MultiPutRequest r) throws RemoteException
+                                    {
+                                        for (PutRequest put : r.puts)
+                                        {
+                                            enter(put);
+                                        }
+                                        return coordinator.process(r, tid);
+                                    }
+
+                                    @Override
+                                    public Response visit(MultiDeleteRequest r) throws RemoteException
+                                    {
+                                        return coordinator.process(r, tid);
+                                    }
+
                                     @Override
                                     public Response visit(PrintRequest r) throws RemoteException
                                     {
@@ -935,22 +427,53 @@ class Store implements StoreService
                                     @Override
                                     public Response visit(OpenRequest r) throws RemoteException
                                     {
-                                        // TODO handle open
-                                        return null;
+                                        return open();
                                     }
 
                                     @Override
                                     public Response visit(CommitRequest r) throws RemoteException
                                     {
-                                        // TODO handle commit
-                                        return null;
+                                        final Transaction t = r.tid == null ? null : transactions.remove(r.tid);
+                                        if (t == null)
+                                        {
+                                            return new ErrorResponse("Transaction " + r.tid + " isn't open on this server.");
+                                        }
+                                        // a single commit round for all the writes
+                                        return coordinator.process(t.commit(), r.tid);
                                     }
 
                                     @Override
                                     public Response visit(AbortRequest r) throws RemoteException
                                     {
-                                        // TODO handle abort
-                                        return null;
+                                        if (r.tid == null || transactions.remove(r.tid) == null)
+                                        {
+                                            return new ErrorResponse("Transaction " + r.tid + " isn't open on this server.");
+                                        }
+                                        return new TransactionResponse(r.tid);
+                                    }
+
+                                    @Override
+                                    public Response visit(ScanRequest r)
+                                    {
+                                        return r.accept(new ProcessRequest(state));
+                                    }
+
+                                    @Override
+                                    public Response visit(ExpireRequest r)
+                                    {
+                                        return new ErrorResponse("EXPIRE is only issued by the coordinator.");
+                                    }
+
+                                    @Override
+                                    public Response visit(EvictRequest r)
+                                    {
+                                        return new ErrorResponse("EVICT is only issued by the coordinator.");
+                                    }
+
+                                    @Override
+                                    public Response visit(BatchRequest r)
+                                    {
+                                        return new ErrorResponse("BATCH is only issued by the coordinator.");
                                     }
                               });
     }
@@ -1005,20 +528,24 @@ public class Server
             final EndPoint addr;
             final int port;
 
-            if (args.length == 3)
+            if (args.length == 3 || args.length == 5 && args[3].equals("--engine"))
             {
                 type = ServerType.parse(args[0]);
                 addr = CmdLineParser.parseEndPoint(args[1], Config.defaultServerPortNumber());
                 port = CmdLineParser.parsePort(args[2], Config.defaultServerPortNumber());
+                if (args.length == 5)
+                {
+                    System.setProperty("kv.engine", args[4]);
+                }
             }
             else
             {
-                throw new CmdLineParserException("Invalid server input. Usage: java server.Server coordinator <endpoint> <port>.");
+                throw new CmdLineParserException("Invalid server input. Usage: java server.Server <coordinator | replica> <endpoint> <port> (--engine <heap | offheap | lsm | class>)?.");
             }
             
             final EndPoint local;
-            final ReadSet readset;
             final ServerState state;
+            final WriteAheadLog wal;
             
             final CoordinatorService coordinator;
             final StoreService store;
@@ -1029,19 +556,43 @@ public class Server
                 System.setProperty("sun.rmi.transport.tcp.responseTimeout", String.valueOf(Config.defaultResponseTimeout()));
 
                 local = new EndPoint(InetAddress.getLocalHost(), port);
-                readset = new ReadSet();
                 
                 if (type.equals(ServerType.Coordinator))
                 {
                     UniqueIdService id = ServiceRegistry.connect(addr, UniqueIdService.class);            
                     state = new ServerState();
-                    Logger.log("Initialized coordinator server state.\n" + state);
+                    state.lease = new ReadLease(true);
+                    if (Config.shards().length > 0)
+                    {
+                        state.shard = Router.find(local);
+                        if (state.shard < 0)
+                        {
+                            throw new CmdLineParserException("The coordinator on port " + port + " isn't one of the shards of -Dkv.shards.");
+                        }
+                    }
+                    wal = new WriteAheadLog(Config.defaultWALPath(port));
+                    Logger.log("Replayed " + wal.replay(state.store, state.store.segment()) + " logged requests.");
+                    wal.discard(state.store.segment());
+                    state.checkpointer = new Checkpointer(state.store, wal, Config.defaultKVStorePath());
+                    state.checkpointer.start();
+                    Logger.log("Initialized coordinator server state with " + state.store.size() + " entries.");
                 
-                    coordinator = new Coordinator(id, state, readset, local);
+                    coordinator = new Coordinator(id, state, local, wal);
+                    if (Config.batchSize() > 1)
+                    {
+                        state.groupCommit = new GroupCommit((Coordinator) coordinator);
+                    }
+                    state.expirer = new Expirer(state.store, coordinator);
+                    state.expirer.start();
+                    if (Config.cacheBytes() > 0)
+                    {
+                        state.evictor = new Evictor(state.store, coordinator);
+                        state.evictor.start();
+                    }
                     Logger.log("Initialized coordinator service.");
                     registry.start(coordinator);
                     
-                    store = new Store(coordinator, state, readset);
+                    store = new Store(coordinator, state, local);
                     Logger.log("Initialized store service.");
                 }
                 else
@@ -1058,12 +609,19 @@ public class Server
                     }
                 
                     state = coordinator.connect(local);
-                    Logger.log("Connected coordinator service and initialized replicated server state.\n" + state);
+                    state.lease = new ReadLease(false);
+                    state.store = new KVStore();
+                    final long begin = System.nanoTime();
+                    final long entries = Transfer.receive(coordinator, local, state.store, Config.transferThreads());
+                    Logger.log("Connected coordinator service and initialized replicated server state with " + entries + " entries in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) + " ms.");
+
+                    // a replicated server takes its state from the coordinator whenever it joins, so it keeps no log
+                    wal = null;
                 
-                    store = new Store(coordinator, state, readset);
+                    store = new Store(coordinator, state, local);
                     Logger.log("Initialized store service.");
 
-                    ReplicaService replica = new Replica(state, readset, 
+                    ReplicaService replica = new Replica(state, 
                                                          new ParticipantListener()
                                                          {
                                                                 @Override
@@ -1096,41 +654,72 @@ public class Server
                                                                 }
                                                 
                                                                 @Override
-                                                                public void onValidate(Request request)
+                                                                public void onPrepare(Request request)
                                                                 {
-                                                                    Logger.log("Validating request " + request);
+                                                                    Logger.log(() -> "Prepare request " + request);
                                                                 }
                                                 
                                                                 @Override
                                                                 public void onCommit(Request request)
                                                                 {
-                                                                    Logger.log("Commit request " + request);
+                                                                    Logger.log(() -> "Commit request " + request);
                                                                 }
-                                                
+
                                                                 @Override
                                                                 public void onAbort(Request request)
                                                                 {
-                                                                    Logger.log("Abort request " + request);
+                                                                    Logger.log(() -> "Abort request " + request);
                                                                 }
                                                          });
                     
+                    // catch up on the requests committed meanwhile until few are left for register
                     registry.start(replica);
-                    coordinator.register(local, replica);
+                    do
+                    {
+                        for (ArrayList<Request> caught = coordinator.catchUp(local); ; caught = coordinator.catchUp(local))
+                        {
+                            replica.replay(caught);
+                            Logger.log("Caught up on " + caught.size() + " committed requests.");
+                            if (caught.size() <= Config.joinBacklog())
+                            {
+                                break;
+                            }
+                        }
+                    }
+                    while (!coordinator.register(local, replica));
                     Logger.log("Initialized replica service.");
                 }
+                if (Config.cacheBytes() > 0)
+                {
+                    state.tracker = new CacheTracker(coordinator);
+                }
+                state.compressor = new Compressor();
+                if (Config.shards().length > 0)
+                {
+                    state.router = new Router(Config.shards(), state.shard);
+                    Logger.log("Owning shard " + state.shard + " of " + Config.shards().length + ".");
+                }
                 registry.start(store);
 
                 Logger.log(type + " is up at host " + local.getHost().getHostName() + " with address " + local.getHost().getHostAddress() + " and port " + local.getPort() + ".");
 
-                // setup exit handler to save the store or disconnect the service when server exits
+                // setup exit handler to close the log and disconnect the service when server exits
                 Runtime.getRuntime().addShutdownHook(new Thread(() ->
                                                      {
                                                         Logger.log("Shutting down " + type + " ...");
                                                         
                                                         if (type.equals(ServerType.Coordinator))
                                                         {
-                                                            Logger.log("Saving the store ...");
-                                                            state.store.save(Config.defaultKVStorePath());
+                                                            if (state.evictor != null)
+                                                            {
+                                                                state.evictor.close();
+                                                            }
+                                                            state.expirer.close();
+                                                            if (state.groupCommit != null)
+                                                            {
+                                                                state.groupCommit.close();
+                                                            }
+                                                            state.checkpointer.close();
                                     
                                                             if (Config.exitWhenCoordinatorFails())
                                                             {
@@ -1162,6 +751,27 @@ public class Server
                                                                 }
                                                             }
                                                         }
+
+                                                        if (wal != null)
+                                                        {
+                                                            try
+                                                            {
+                                                                wal.close();
+                                                            }
+                                                            catch (IOException e)
+                                                            {
+                                                                Logger.error("Failed to close the log.", e);
+                                                            }
+                                                        }
+
+                                                        try
+                                                        {
+                                                            state.store.close();
+                                                        }
+                                                        catch (IOException e)
+                                                        {
+                                                            Logger.error("Failed to close the store.", e);
+                                                        }
                                                      }));
             }
             catch (Exception e)
@@ -1,31 +1,42 @@
 package server;
 
 import java.io.Serializable;
-import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import common.*;
 import protocol.Request;
 
 /**
  * The server states consists of the key value store, the endpoints of all
- * other available replicated servers, and the Paxos states.
+ * other available replicated servers, the Paxos states, and the shard of the
+ * key space the servers own.
  */
 public class ServerState implements Serializable
 {
     private static final long serialVersionUID = 1L;
 
     KVStore store;
-    HashMap<EndPoint, ReplicaService> replicas;
+    ConcurrentHashMap<EndPoint, ReplicaService> replicas;
     PaxosState<Request> paxos;
+    int shard; // the index of the shard of the group of servers
+    transient Checkpointer checkpointer;
+    transient Expirer expirer;
+    transient Evictor evictor;
+    transient CacheTracker tracker;
+    transient Compressor compressor;
+    transient GroupCommit groupCommit;
+    transient ReadLease lease;
+    transient FailureDetector detector;
+    transient Router router;
 
     public ServerState()
     {
         this.store = new KVStore(Config.defaultKVStorePath());
-        this.replicas = new HashMap<>();
+        this.replicas = new ConcurrentHashMap<>();
         this.paxos = new PaxosState<>();
     }
     
     public ServerState(KVStore store, 
-                       HashMap<EndPoint, ReplicaService> replicas,
+                       ConcurrentHashMap<EndPoint, ReplicaService> replicas,
                        PaxosState<Request> paxos)
     {
         this.store = store;
@@ -39,6 +50,15 @@ public class ServerState implements Serializable
         return "Current server state:\n" 
              + store + "\n" 
              + "Available replicated servers: " + replicas.keySet() + "\n"
-             + paxos;
+             + paxos
+             + (checkpointer == null ? "" : "\n" + checkpointer)
+             + (expirer == null ? "" : "\n" + expirer)
+             + (evictor == null ? "" : "\n" + evictor)
+             + (tracker == null ? "" : "\n" + tracker)
+             + (compressor == null ? "" : "\n" + compressor)
+             + (groupCommit == null ? "" : "\n" + groupCommit)
+             + (lease == null ? "" : "\n" + lease)
+             + (detector == null ? "" : "\n" + detector)
+             + (router == null ? "" : "\n" + router);
     }
 }
@@ -0,0 +1,464 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * The memory-mapped snapshot of a key value store.
+ *
+ * A snapshot file is laid out as
+ * <pre>
+ * [magic][version][first log segment to replay]
+ * block*  where block := [entry count]([key length][key][value length][value])*
+ * index   where index := ([block offset][block length][block CRC32][first key length][first key])*
+ * footer  := [index offset][index length][block count][entry count][index CRC32][magic]
+ * </pre>
+ * with keys and values in UTF-8 and entries sorted by key across all blocks.
+ * Opening a snapshot only reads its index; blocks are paged in by the mapping
+ * and verified against their CRC the first time they are read.
+ */
+class Snapshot
+{
+    static final int MAGIC = 0x4B56434B;
+    static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES;
+    private static final int FOOTER_SIZE = 4 * Integer.BYTES + 2 * Long.BYTES;
+    private static final int BLOCK_SIZE = 1 << 12;
+    private static final long REGION_SIZE = 1 << 30;
+
+    private final Path path;
+    private final long segment;
+    private final long entries;
+    private final String[] firstKeys;
+    private final int[] regionOf;
+    private final int[] offsets; // block offsets within their regions
+    private final int[] lengths;
+    private final int[] crcs;
+    private final boolean[] verified;
+    private final ArrayList<MappedByteBuffer> regions = new ArrayList<>();
+
+    /**
+     * @param f a file
+     * @return the snapshot format version of the file; -1 if it isn't a snapshot.
+     */
+    static int version(File f)
+    {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f)))
+        {
+            return in.readInt() == MAGIC ? in.readInt() : -1;
+        }
+        catch (IOException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * The blocks and the index of a snapshot being written.
+     */
+    private static class Builder
+    {
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        private final DataOutputStream iout = new DataOutputStream(index);
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(2 * BLOCK_SIZE);
+        private final DataOutputStream bout = new DataOutputStream(block);
+        private long offset = HEADER_SIZE;
+        private long entries;
+        private int blocks;
+        private int count;
+        private byte[] first;
+
+        Builder(DataOutputStream out)
+        {
+            this.out = out;
+        }
+
+        /**
+         * Add the next entry in key order, writing the block once it is full.
+         */
+        void add(String key, String val) throws IOException
+        {
+            byte[] k = key.getBytes(StandardCharsets.UTF_8);
+            byte[] v = StoredValue.bytes(val);
+            if (count == 0)
+            {
+                first = k;
+            }
+            bout.writeInt(k.length);
+            bout.write(k);
+            bout.writeInt(v.length);
+            bout.write(v);
+            count++;
+            entries++;
+            if (block.size() >= BLOCK_SIZE)
+            {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException
+        {
+            byte[] body = block.toByteArray();
+            ByteBuffer b = ByteBuffer.allocate(Integer.BYTES + body.length).putInt(count).put(body);
+            CRC32 crc = new CRC32();
+            crc.update(b.array());
+            out.write(b.array());
+
+            iout.writeLong(offset);
+            iout.writeInt(b.capacity());
+            iout.writeInt((int) crc.getValue());
+            iout.writeInt(first.length);
+            iout.write(first);
+
+            offset += b.capacity();
+            blocks++;
+            block.reset();
+            count = 0;
+        }
+
+        /**
+         * Write the last block, the index and the footer.
+         */
+        void finish() throws IOException
+        {
+            if (count > 0)
+            {
+                flush();
+            }
+
+            byte[] idx = index.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(idx);
+            out.write(idx);
+            out.writeLong(offset);
+            out.writeInt(idx.length);
+            out.writeInt(blocks);
+            out.writeLong(entries);
+            out.writeInt((int) crc.getValue());
+            out.writeInt(MAGIC);
+            out.flush();
+        }
+    }
+
+    /**
+     * Write a snapshot of a store as of the version current when it starts,
+     * streaming the entries in key order without holding back the writes.
+     *
+     * @param store the store
+     * @param segment the first log segment to replay on top of the snapshot
+     * @param os the stream to write to
+     * @return the number of entries written.
+     * @throws IOException if the snapshot cannot be written.
+     */
+    static long write(KVStore store, long segment, OutputStream os) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(segment);
+
+        Builder builder = new Builder(out);
+        try
+        {
+            store.orderedSnapshot((String k, String v) ->
+                                  {
+                                      try
+                                      {
+                                          builder.add(k, v);
+                                      }
+                                      catch (IOException e)
+                                      {
+                                          throw new UncheckedIOException(e);
+                                      }
+                                  });
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+        builder.finish();
+        return builder.entries;
+    }
+
+    /**
+     * Open a snapshot by mapping it and reading its index.
+     *
+     * @param f the snapshot file
+     * @throws IOException if the snapshot cannot be opened or its index is
+     *                     corrupted.
+     */
+    Snapshot(File f) throws IOException
+    {
+        this.path = f.toPath().toAbsolutePath().normalize();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (size < HEADER_SIZE + FOOTER_SIZE)
+            {
+                throw new IOException(path + " is truncated.");
+            }
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION)
+            {
+                throw new IOException(path + " is incompatible.");
+            }
+            segment = header.getLong();
+
+            ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            int indexLength = footer.getInt();
+            int blocks = footer.getInt();
+            entries = footer.getLong();
+            int indexCrc = footer.getInt();
+            if (footer.getInt() != MAGIC || indexOffset + indexLength + FOOTER_SIZE != size)
+            {
+                throw new IOException(path + " is truncated.");
+            }
+
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, indexLength);
+            CRC32 crc = new CRC32();
+            crc.update(index.duplicate());
+            if ((int) crc.getValue() != indexCrc)
+            {
+                throw new IOException(path + " has a corrupted index.");
+            }
+
+            firstKeys = new String[blocks];
+            regionOf = new int[blocks];
+            offsets = new int[blocks];
+            lengths = new int[blocks];
+            crcs = new int[blocks];
+            verified = new boolean[blocks];
+
+            long[] starts = new long[blocks];
+            for (int b = 0; b < blocks; b++)
+            {
+                starts[b] = index.getLong();
+                lengths[b] = index.getInt();
+                crcs[b] = index.getInt();
+                byte[] k = new byte[index.getInt()];
+                index.get(k);
+                firstKeys[b] = new String(k, StandardCharsets.UTF_8);
+            }
+
+            // map consecutive blocks into regions no larger than REGION_SIZE
+            for (int b = 0; b < blocks;)
+            {
+                long start = starts[b];
+                int e = b;
+                while (e < blocks && starts[e] + lengths[e] - start <= REGION_SIZE)
+                {
+                    regionOf[e] = regions.size();
+                    offsets[e] = (int) (starts[e] - start);
+                    e++;
+                }
+                if (e == b)
+                {
+                    throw new IOException(path + " has a block larger than " + REGION_SIZE + " bytes.");
+                }
+                regions.add(channel.map(FileChannel.MapMode.READ_ONLY, start, starts[e - 1] + lengths[e - 1] - start));
+                b = e;
+            }
+        }
+    }
+
+    /**
+     * @return the first log segment to replay on top of the snapshot.
+     */
+    long segment()
+    {
+        return segment;
+    }
+
+    /**
+     * @return the number of entries.
+     */
+    long size()
+    {
+        return entries;
+    }
+
+    private ByteBuffer block(int b)
+    {
+        ByteBuffer region = regions.get(regionOf[b]);
+        if (!verified[b])
+        {
+            CRC32 crc = new CRC32();
+            crc.update(region.slice(offsets[b], lengths[b]));
+            if ((int) crc.getValue() != crcs[b])
+            {
+                throw new UncheckedIOException(new IOException(path + " has a corrupted block " + b + "."));
+            }
+            verified[b] = true;
+        }
+        return region;
+    }
+
+    /**
+     * @return the last block whose first key is not greater than the key; -1 if
+     *         there is none.
+     */
+    private int floor(String key)
+    {
+        int lo = 0;
+        int hi = firstKeys.length - 1;
+        int b = -1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (firstKeys[mid].compareTo(key) <= 0)
+            {
+                b = mid;
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid - 1;
+            }
+        }
+        return b;
+    }
+
+    /**
+     * @param key the key
+     * @return the value of the key; null if the key doesn't exist.
+     */
+    String get(String key)
+    {
+        int b = floor(key);
+        if (b < 0)
+        {
+            return null;
+        }
+
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer region = block(b);
+        int o = offsets[b] + Integer.BYTES;
+        for (int n = region.getInt(offsets[b]); n > 0; n--)
+        {
+            int klen = region.getInt(o);
+            int vo = o + Integer.BYTES + klen;
+            int vlen = region.getInt(vo);
+            if (klen == k.length && equals(region, o + Integer.BYTES, k))
+            {
+                byte[] v = new byte[vlen];
+                region.get(vo + Integer.BYTES, v);
+                return StoredValue.of(v);
+            }
+            o = vo + Integer.BYTES + vlen;
+        }
+        return null;
+    }
+
+    private static boolean equals(ByteBuffer region, int offset, byte[] k)
+    {
+        for (int i = 0; i < k.length; i++)
+        {
+            if (region.get(offset + i) != k[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visit the entries of a block from a key.
+     *
+     * @return false if the action asked to stop.
+     */
+    private boolean visit(int b, String from, BiPredicate<String, String> action)
+    {
+        ByteBuffer region = block(b);
+        int o = offsets[b] + Integer.BYTES;
+        for (int n = region.getInt(offsets[b]); n > 0; n--)
+        {
+            byte[] k = new byte[region.getInt(o)];
+            region.get(o + Integer.BYTES, k);
+            o += Integer.BYTES + k.length;
+            byte[] v = new byte[region.getInt(o)];
+            region.get(o + Integer.BYTES, v);
+            o += Integer.BYTES + v.length;
+
+            String key = new String(k, StandardCharsets.UTF_8);
+            if (from == null || key.compareTo(from) >= 0)
+            {
+                if (!action.test(key, StoredValue.of(v)))
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void visit(int b, BiConsumer<String, String> action)
+    {
+        visit(b, null, (String k, String v) ->
+                       {
+                           action.accept(k, v);
+                           return true;
+                       });
+    }
+
+    /**
+     * Visit every entry in key order.
+     *
+     * @param action the action applied to every key value pair
+     */
+    void forEach(BiConsumer<String, String> action)
+    {
+        for (int b = 0; b < firstKeys.length; b++)
+        {
+            visit(b, action);
+        }
+    }
+
+    /**
+     * Visit the entries with keys in [from, to) in key order until the action
+     * returns false.
+     *
+     * @param from the first key, inclusive
+     * @param to the last key, exclusive; null for no upper bound
+     * @param action the action applied to every key value pair
+     */
+    void scan(String from, String to, BiPredicate<String, String> action)
+    {
+        BiPredicate<String, String> bounded = (String k, String v) -> (to == null || k.compareTo(to) < 0) && action.test(k, v);
+        for (int b = Math.max(0, floor(from)); b < firstKeys.length; b++)
+        {
+            if (!visit(b, from, bounded))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Visit every entry with the blocks spread over the common fork join pool.
+     *
+     * @param action the thread-safe action applied to every key value pair
+     */
+    void forEachParallel(BiConsumer<String, String> action)
+    {
+        IntStream.range(0, firstKeys.length).parallel().forEach((int b) -> visit(b, action));
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Snapshot [path=" + path + ", entries=" + entries + ", blocks=" + firstKeys.length + "]";
+    }
+}
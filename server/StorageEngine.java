@@ -0,0 +1,72 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.BiConsumer;
+
+/**
+ * The storage engine backing a key value store, chosen at startup by
+ * Config.kvStoreEngine() among the built-in engines or any implementation
+ * with a public no-argument constructor.
+ * 
+ * An engine only has to be safe for concurrent use, one key at a time. The
+ * versions, the snapshot reads and the consistent visits are layered on top of
+ * any engine by KVStore, and the durability by the write-ahead log and the
+ * checkpoints, so an engine may keep its entries wherever it likes.
+ */
+public interface StorageEngine extends Closeable
+{
+    /**
+     * @param key the key
+     * @return the value of the key; null if the key doesn't exist.
+     */
+    String get(String key);
+
+    /**
+     * @param key the key
+     * @param val the new value
+     * @return the previous value of the key; null if the key didn't exist.
+     */
+    String put(String key, String val);
+
+    /**
+     * @param key the key
+     * @return the removed value of the key; null if the key didn't exist.
+     */
+    String delete(String key);
+
+    /**
+     * @return the number of entries.
+     */
+    int size();
+
+    /**
+     * Visit every entry without blocking writes for the whole visit. Every entry
+     * present for the whole visit is visited at least once; entries written
+     * during the visit may or may not be. The action must not write back to the
+     * engine.
+     * 
+     * @param action the action applied to every key value pair
+     */
+    void forEach(BiConsumer<String, String> action);
+
+    /**
+     * Visit the entries with keys in [from, to) in ascending key order, up to a
+     * limit. Like forEach, the visit is not atomic with respect to concurrent
+     * writes.
+     *
+     * @param from the first key, inclusive
+     * @param to the last key, exclusive; null for no upper bound
+     * @param limit the maximum number of entries to visit
+     * @param action the action applied to every key value pair
+     */
+    void scan(String from, String to, int limit, BiConsumer<String, String> action);
+
+    /**
+     * Release the memory and the files of the engine, which isn't used anymore.
+     * 
+     * @throws IOException
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -19,4 +19,11 @@ public interface StoreService extends Remote
      * @throws RemoteException
      */
     Response process(Request request, TransactionId tid) throws RemoteException;
+
+    /**
+     * @return the servers of the cluster by shard, for the clients to send
+     *         their requests to the right server.
+     * @throws RemoteException
+     */
+    Topology topology() throws RemoteException;
 }
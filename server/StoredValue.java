@@ -0,0 +1,203 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The encoding of values as kept by the store, which lets per-key metadata
+ * travel with the value through the engines, the write-ahead log, the
+ * snapshots and the state sent to new replicas.
+ *
+ * A value not starting with \u0000 is stored as is. Otherwise the second
+ * character tells how the rest is encoded:
+ * <pre>
+ * \u0000\u0000value                the value itself started with \u0000
+ * \u0000E[16 hex digits]stored     the stored value expires at the deadline
+ *                                  in milliseconds since the epoch
+ * \u0000Z[8 hex digits]bytes       the UTF-8 bytes of the value, of the given
+ *                                  length, deflated and kept one per character
+ * </pre>
+ *
+ * Keeping deflated bytes as ISO-8859-1 characters lets compact strings hold
+ * them in a byte each, and the engines, the write-ahead log, the snapshots and
+ * the state transfer write a compressed stored value one byte per character
+ * through bytes, rather than in UTF-8 where half of them would take two.
+ */
+final class StoredValue
+{
+    private static final char MARK = '\u0000';
+    private static final char EXPIRING = 'E';
+    private static final int DEADLINE_DIGITS = 16;
+    private static final int EXPIRING_HEADER = 2 + DEADLINE_DIGITS;
+    private static final char COMPRESSED = 'Z';
+    private static final int LENGTH_DIGITS = 8;
+    private static final int COMPRESSED_HEADER = 2 + LENGTH_DIGITS;
+
+    private StoredValue()
+    {
+    }
+
+    private static StringBuilder header(char tag, long n, int digits, int length)
+    {
+        String hex = Long.toHexString(n);
+        StringBuilder s = new StringBuilder(2 + digits + length).append(MARK).append(tag);
+        for (int i = hex.length(); i < digits; i++)
+        {
+            s.append('0');
+        }
+        return s.append(hex);
+    }
+
+    /**
+     * @param val the value
+     * @param compressed true if the value has already been compressed
+     * @param deadline the time the value expires at in milliseconds since the
+     *                 epoch; not positive if it never expires
+     * @return the stored value.
+     */
+    static String encode(String val, boolean compressed, long deadline)
+    {
+        String stored = compressed || val.isEmpty() || val.charAt(0) != MARK ? val : MARK + val;
+        if (deadline <= 0)
+        {
+            return stored;
+        }
+        return header(EXPIRING, deadline, DEADLINE_DIGITS, stored.length()).append(stored).toString();
+    }
+
+    /**
+     * @param val the value
+     * @return the value deflated into a stored value; null if it wouldn't be
+     *         any shorter.
+     */
+    static String compress(String val)
+    {
+        byte[] raw = val.getBytes(StandardCharsets.UTF_8);
+        byte[] deflated = new byte[Math.max(0, val.length() - COMPRESSED_HEADER)];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try
+        {
+            deflater.setInput(raw);
+            deflater.finish();
+            int n = 0;
+            while (!deflater.finished() && n < deflated.length)
+            {
+                n += deflater.deflate(deflated, n, deflated.length - n);
+            }
+            if (!deflater.finished())
+            {
+                return null;
+            }
+            return header(COMPRESSED, raw.length, LENGTH_DIGITS, n).append(new String(deflated, 0, n, StandardCharsets.ISO_8859_1)).toString();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private static String decompress(String stored)
+    {
+        int length = Integer.parseUnsignedInt(stored.substring(2, COMPRESSED_HEADER), 16);
+        byte[] raw = new byte[length];
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(stored.substring(COMPRESSED_HEADER).getBytes(StandardCharsets.ISO_8859_1));
+            int n = 0;
+            while (n < length && !inflater.finished())
+            {
+                int m = inflater.inflate(raw, n, length - n);
+                if (m == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                n += m;
+            }
+            if (n != length)
+            {
+                throw new IllegalStateException("Truncated compressed value.");
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IllegalStateException("Corrupted compressed value.", e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param stored the stored value
+     * @return the bytes of the stored value, one per character if it is
+     *         compressed and in UTF-8 otherwise.
+     */
+    static byte[] bytes(String stored)
+    {
+        return stored.getBytes(isCompressed(stored) ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param bytes the bytes of a stored value
+     * @return the stored value.
+     */
+    static String of(byte[] bytes)
+    {
+        // the headers are ASCII, so they read the same in either charset
+        String header = new String(bytes, 0, Math.min(bytes.length, EXPIRING_HEADER + 2), StandardCharsets.ISO_8859_1);
+        return new String(bytes, isCompressed(header) ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    private static boolean isCompressed(String stored)
+    {
+        int i = isExpiring(stored) ? EXPIRING_HEADER : 0;
+        return stored.length() >= i + 2 && stored.charAt(i) == MARK && stored.charAt(i + 1) == COMPRESSED;
+    }
+
+    private static boolean isExpiring(String stored)
+    {
+        return stored.length() >= EXPIRING_HEADER && stored.charAt(0) == MARK && stored.charAt(1) == EXPIRING;
+    }
+
+    /**
+     * @param stored the stored value
+     * @return the deadline of the value; 0 if it never expires or doesn't exist.
+     */
+    static long deadline(String stored)
+    {
+        return stored != null && isExpiring(stored) ? Long.parseUnsignedLong(stored.substring(2, EXPIRING_HEADER), 16) : 0;
+    }
+
+    /**
+     * @param stored the stored value
+     * @return the value; null if the stored value is null.
+     */
+    static String value(String stored)
+    {
+        if (stored == null || stored.length() < 2 || stored.charAt(0) != MARK)
+        {
+            return stored;
+        }
+        if (isExpiring(stored))
+        {
+            return value(stored.substring(EXPIRING_HEADER));
+        }
+        return stored.charAt(1) == COMPRESSED && stored.length() >= COMPRESSED_HEADER ? decompress(stored) : stored.substring(1);
+    }
+
+    /**
+     * @param stored the stored value
+     * @param now the current time in milliseconds since the epoch
+     * @return the value; null if the stored value is null or has expired.
+     */
+    static String live(String stored, long now)
+    {
+        long deadline = deadline(stored);
+        return deadline > 0 && deadline <= now ? null : value(stored);
+    }
+}
@@ -0,0 +1,148 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timer wheel of key deadlines.
+ *
+ * Level 0 has one slot per tick, and every slot of level l spans all the slots
+ * of level l - 1. A key is kept in a single slot list at the lowest level whose
+ * span covers its deadline, and moves down a level whenever the wheel reaches
+ * the start of its slot, so scheduling is O(1) and each key is moved at most
+ * once per level. Keys are never cancelled; the owner checks whether a key
+ * returned by advance still expires at that time.
+ */
+class TimerWheel
+{
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private final long tick;
+    private final ArrayList<ArrayList<Entry>> slots = new ArrayList<>(LEVELS * SLOTS);
+    private long now; // the current tick
+    private int size;
+
+    private static class Entry
+    {
+        final String key;
+        final long due; // the tick the key expires at
+
+        Entry(String key, long due)
+        {
+            this.key = key;
+            this.due = due;
+        }
+    }
+
+    /**
+     * @param tick the length of a tick in milliseconds
+     * @param start the current time in milliseconds since the epoch
+     */
+    TimerWheel(long tick, long start)
+    {
+        this.tick = tick;
+        this.now = start / tick;
+        for (int i = 0; i < LEVELS * SLOTS; i++)
+        {
+            slots.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * @param key the key
+     * @param deadline the time the key expires at in milliseconds since the epoch
+     */
+    synchronized void schedule(String key, long deadline)
+    {
+        insert(new Entry(key, (deadline + tick - 1) / tick), null);
+        size++;
+    }
+
+    private void insert(Entry e, List<String> expired)
+    {
+        long delta = e.due - now;
+        if (delta <= 0)
+        {
+            if (expired != null)
+            {
+                expired.add(e.key);
+                size--;
+                return;
+            }
+            delta = 1; // fires at the next tick
+        }
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1)))
+        {
+            level++;
+        }
+        long due = Math.max(e.due, now + 1);
+        slots.get(level * SLOTS + (int) ((due >>> (BITS * level)) & MASK)).add(e);
+    }
+
+    /**
+     * Move the entries of the current slot of a level down the wheel.
+     */
+    private void cascade(int level, List<String> expired)
+    {
+        ArrayList<Entry> slot = slots.get(level * SLOTS + (int) ((now >>> (BITS * level)) & MASK));
+        if (slot.isEmpty())
+        {
+            return;
+        }
+
+        ArrayList<Entry> entries = new ArrayList<>(slot);
+        slot.clear();
+        for (Entry e : entries)
+        {
+            insert(e, expired);
+        }
+    }
+
+    /**
+     * Advance the wheel to a time.
+     *
+     * @param time the current time in milliseconds since the epoch
+     * @return the keys whose deadlines have passed.
+     */
+    synchronized List<String> advance(long time)
+    {
+        ArrayList<String> expired = new ArrayList<>();
+        for (long target = time / tick; now < target;)
+        {
+            now++;
+            // cascade the higher levels first, as their entries may land in
+            // the slots cascaded next
+            int level = 1;
+            while (level < LEVELS && (now & ((1L << (BITS * level)) - 1)) == 0)
+            {
+                level++;
+            }
+            for (int l = level - 1; l >= 1; l--)
+            {
+                cascade(l, expired);
+            }
+
+            ArrayList<Entry> slot = slots.get((int) (now & MASK));
+            for (Entry e : slot)
+            {
+                expired.add(e.key);
+            }
+            size -= slot.size();
+            slot.clear();
+        }
+        return expired;
+    }
+
+    /**
+     * @return the number of scheduled keys.
+     */
+    synchronized int size()
+    {
+        return size;
+    }
+}
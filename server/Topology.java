@@ -0,0 +1,76 @@
+package server;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import common.*;
+
+/**
+ * The topology of a cluster: the shards of the key space and, for the group of
+ * servers owning each shard, its coordinator and replicated servers.
+ */
+public class Topology implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String[] shards;
+    private final ArrayList<ArrayList<EndPoint>> groups;
+    private transient HashRing ring;
+
+    /**
+     * @param shards the shards of the servers; empty if not sharded
+     * @param groups for each shard, the coordinator followed by its
+     *        replicated servers
+     */
+    public Topology(String[] shards, ArrayList<ArrayList<EndPoint>> groups)
+    {
+        this.shards = shards;
+        this.groups = groups;
+    }
+
+    /**
+     * @param key a key
+     * @return the index of the shard owning the key.
+     */
+    public synchronized int shard(String key)
+    {
+        if (ring == null)
+        {
+            ring = new HashRing(shards);
+        }
+        return ring.shard(key);
+    }
+
+    /**
+     * @return the number of shards.
+     */
+    public int size()
+    {
+        return groups.size();
+    }
+
+    /**
+     * @param shard the index of a shard
+     * @return the coordinator of the shard.
+     */
+    public EndPoint coordinator(int shard)
+    {
+        return groups.get(shard).get(0);
+    }
+
+    /**
+     * @param shard the index of a shard
+     * @return the replicated servers of the shard.
+     */
+    public List<EndPoint> replicas(int shard)
+    {
+        return groups.get(shard).subList(1, groups.get(shard).size());
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Topology: " + groups;
+    }
+}
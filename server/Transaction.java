@@ -0,0 +1,105 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import protocol.*;
+import transaction.TransactionId;
+
+/**
+ * An open transaction of a client on the server it is connected to.
+ *
+ * The writes of the transaction are buffered here, a later write of a key
+ * replacing an earlier one, and its reads see its own writes first. Every
+ * other key it reads, including the previous values its writes report, is
+ * read from the latest version of the store once and recorded as stored, so
+ * that the transaction keeps seeing the same value. On COMMIT the coordinator
+ * checks that none of the recorded keys has changed since and commits all the
+ * writes together, or aborts the transaction.
+ */
+class Transaction
+{
+    final TransactionId tid;
+    private final LinkedHashMap<String, String> reads = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Request> writes = new LinkedHashMap<>();
+    private long used = System.currentTimeMillis();
+
+    Transaction(TransactionId tid)
+    {
+        this.tid = tid;
+    }
+
+    /**
+     * @param key the key
+     * @param store the store of the server
+     * @return the stored value of the key as seen by the transaction; null if
+     *         the key doesn't exist.
+     */
+    synchronized String read(String key, KVStore store)
+    {
+        used = System.currentTimeMillis();
+
+        final Request w = writes.get(key);
+        if (w instanceof PutRequest)
+        {
+            final PutRequest put = (PutRequest) w;
+            return StoredValue.encode(put.val, put.compressed, 0);
+        }
+        else if (w != null)
+        {
+            return null; // deleted
+        }
+        else if (reads.containsKey(key))
+        {
+            return reads.get(key);
+        }
+
+        final long version = store.beginRead();
+        try
+        {
+            final String stored = store.get(key, version);
+            reads.put(key, stored);
+            return stored;
+        }
+        finally
+        {
+            store.endRead();
+        }
+    }
+
+    /**
+     * Buffer a PUT or DELETE until the transaction commits.
+     *
+     * @param key the key written
+     * @param write the write
+     * @param store the store of the server
+     * @return the stored value the write replaces as seen by the transaction.
+     */
+    synchronized String write(String key, Request write, KVStore store)
+    {
+        final String prev = read(key, store);
+        writes.remove(key); // keep the keys in the order of their last write
+        writes.put(key, write);
+        return prev;
+    }
+
+    /**
+     * @param idle the time in milliseconds
+     * @return true if the transaction hasn't been used for the time.
+     */
+    synchronized boolean idle(long idle)
+    {
+        return System.currentTimeMillis() - used > idle;
+    }
+
+    /**
+     * @return the request committing the transaction on the coordinator.
+     */
+    synchronized CommitRequest commit()
+    {
+        final CommitRequest request = new CommitRequest(tid);
+        request.reads = new LinkedHashMap<>(reads);
+        request.writes = new ArrayList<>(writes.values());
+        return request;
+    }
+}
@@ -0,0 +1,293 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.*;
+import protocol.Request;
+
+/**
+ * The state transfer to a replicated server joining the cluster, run by the
+ * coordinator while it keeps committing writes.
+ *
+ * A thread pins the version of the store current when the server connected
+ * and streams the entries as of that version in chunks through a small
+ * queue, which the server drains with several calls in parallel. Every
+ * request committed since the server connected is logged in commit order, and
+ * the server replays the log once it has the whole snapshot, catching up in
+ * rounds until it registers, when the rest of the log is replayed before it
+ * takes part in any commit. While a round of the server doesn't take fewer
+ * requests than the round before, and more than Config.joinBacklog(), the
+ * writes briefly wait for the server to take the log, so that the server
+ * gains on them.
+ *
+ * A transfer left alone by its server for too long is cancelled, which
+ * releases the pinned version.
+ */
+class Transfer
+{
+    private static final int CHUNK = 1024; // entries per chunk
+    private static final int CHUNKS = 8; // chunks queued ahead
+    private static final long STALL = TimeUnit.SECONDS.toNanos(30);
+    private static final long THROTTLE = 5; // the longest a write waits for the server in milliseconds
+    private static final ArrayList<byte[]> END = new ArrayList<>(0);
+
+    private final EndPoint replica;
+    private final ArrayBlockingQueue<ArrayList<byte[]>> chunks = new ArrayBlockingQueue<>(CHUNKS);
+    private final ArrayList<Request> log = new ArrayList<>(); // guarded by this
+    private final int backlog = Config.joinBacklog();
+    private int drained = Integer.MAX_VALUE; // the requests taken by the last round; guarded by this
+    private boolean throttled; // guarded by this
+    private ArrayList<byte[]> filling; // the chunk being filled by the producer
+    private volatile long used = System.nanoTime();
+    private volatile boolean cancelled;
+
+    /**
+     * Start streaming the snapshot of a store as of now. The store mustn't be
+     * written until this returns.
+     *
+     * @param store the store
+     * @param replica the joining server
+     */
+    Transfer(KVStore store, EndPoint replica)
+    {
+        this.replica = replica;
+
+        final CountDownLatch pinned = new CountDownLatch(1);
+        final Thread producer = new Thread(() ->
+                              {
+                                  store.beginRead();
+                                  pinned.countDown();
+                                  try
+                                  {
+                                      stream(store);
+                                  }
+                                  catch (CancellationException e)
+                                  {
+                                      Logger.warning("Cancelled the state transfer to " + replica + ".");
+                                  }
+                                  finally
+                                  {
+                                      store.endRead();
+                                  }
+                              }, "transfer-" + replica.getPort());
+        producer.setDaemon(true);
+        producer.start();
+
+        try
+        {
+            pinned.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stream the entries as of the version pinned by the current thread.
+     */
+    private void stream(KVStore store)
+    {
+        final long begin = System.nanoTime();
+        final long[] entries = new long[1];
+        filling = new ArrayList<>(2 * CHUNK);
+        store.snapshot((String k, String v) ->
+                       {
+                           filling.add(k.getBytes(StandardCharsets.UTF_8));
+                           filling.add(StoredValue.bytes(v));
+                           entries[0]++;
+                           if (filling.size() == 2 * CHUNK)
+                           {
+                               put(filling);
+                               filling = new ArrayList<>(2 * CHUNK);
+                           }
+                       });
+        if (!filling.isEmpty())
+        {
+            put(filling);
+        }
+        put(END);
+        Logger.log("Streamed " + entries[0] + " entries to " + replica + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) + " ms.");
+    }
+
+    private void put(ArrayList<byte[]> chunk)
+    {
+        try
+        {
+            while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS))
+            {
+                if (stale())
+                {
+                    cancel();
+                }
+                if (cancelled)
+                {
+                    throw new CancellationException();
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * @return the next chunk of the snapshot, alternating the keys in UTF-8
+     *         and the stored values as their bytes; null once the whole
+     *         snapshot has been taken.
+     * @throws RemoteException if the transfer has been cancelled.
+     */
+    ArrayList<byte[]> next() throws RemoteException
+    {
+        used = System.nanoTime();
+        try
+        {
+            while (!cancelled)
+            {
+                final ArrayList<byte[]> chunk = chunks.poll(100, TimeUnit.MILLISECONDS);
+                if (chunk == END)
+                {
+                    chunks.offer(END); // for the other callers
+                    return null;
+                }
+                else if (chunk != null)
+                {
+                    return chunk;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        throw new RemoteException("The state transfer to " + replica + " has been cancelled.");
+    }
+
+    /**
+     * Log a committed request. Requests writing the same key are logged in the
+     * order they commit.
+     *
+     * @param request the request
+     */
+    synchronized void log(Request request)
+    {
+        log.add(request);
+
+        // the server isn't gaining on the writes
+        final long deadline = System.currentTimeMillis() + THROTTLE;
+        for (long left = THROTTLE; throttled && !cancelled && log.size() > backlog && left > 0; left = deadline - System.currentTimeMillis())
+        {
+            try
+            {
+                wait(left);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the requests logged since the last call, in commit order.
+     */
+    synchronized ArrayList<Request> drain()
+    {
+        used = System.nanoTime();
+        final ArrayList<Request> taken = new ArrayList<>(log);
+        log.clear();
+        throttled = taken.size() > backlog && taken.size() >= drained;
+        drained = taken.size();
+        notifyAll();
+        return taken;
+    }
+
+    /**
+     * @return the number of requests logged since the last call to drain.
+     */
+    synchronized int backlog()
+    {
+        return log.size();
+    }
+
+    /**
+     * @return true if the server has left the transfer alone for too long.
+     */
+    boolean stale()
+    {
+        return cancelled || System.nanoTime() - used > STALL;
+    }
+
+    /**
+     * Stop streaming and release the pinned version.
+     */
+    void cancel()
+    {
+        cancelled = true;
+        synchronized (this)
+        {
+            log.clear();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Take the snapshot of the coordinator in parallel chunks.
+     *
+     * @param coordinator the coordinator
+     * @param replica the joining server
+     * @param store the empty store of the server
+     * @param threads the number of chunks taken at a time
+     * @return the number of entries taken.
+     * @throws RemoteException if the transfer fails.
+     */
+    static long receive(CoordinatorService coordinator, EndPoint replica, KVStore store, int threads) throws RemoteException
+    {
+        final AtomicLong entries = new AtomicLong();
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            final ArrayList<Future<Void>> takers = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++)
+            {
+                takers.add(pool.submit(() ->
+                                       {
+                                           for (ArrayList<byte[]> chunk = coordinator.transfer(replica); chunk != null; chunk = coordinator.transfer(replica))
+                                           {
+                                               for (int j = 0; j < chunk.size(); j += 2)
+                                               {
+                                                   store.put(new String(chunk.get(j), StandardCharsets.UTF_8), StoredValue.of(chunk.get(j + 1)));
+                                               }
+                                               entries.addAndGet(chunk.size() / 2);
+                                           }
+                                           return null;
+                                       }));
+            }
+            for (Future<Void> f : takers)
+            {
+                f.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while taking the state of the coordinator.");
+        }
+        catch (ExecutionException e)
+        {
+            throw new RemoteException("Failed to take the state of the coordinator.", e.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+        return entries.get();
+    }
+}
@@ -0,0 +1,294 @@
+package server;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The versions of the key value store behind its snapshot reads.
+ *
+ * Every write request applied to the store commits the next version, and the
+ * values it supersedes are kept in per-key chains, newest first, tagged with
+ * that version. A reader pins the current version in a slot of its thread and
+ * reads a key as the oldest superseded value tagged with a later version, or
+ * else the latest value. Superseded values are dropped by the writers once no
+ * pinned version is older than their tag.
+ *
+ * Write requests are applied concurrently, as the writes to the same keys are
+ * already ordered by the caller, and only the publication of their versions
+ * is serialized: a version becomes current once every earlier one is, so a
+ * pinned version always includes all the writes before it. Pinning a version
+ * only touches the slot of the reading thread, so readers never block writers
+ * nor each other. A superseded value is entered in its chain before the
+ * mutation and set to what the mutation returns, and a reader of an earlier
+ * version only waits for the mutation in between.
+ */
+class Versions
+{
+    private static final long IDLE = Long.MAX_VALUE;
+    private static final Object PENDING = new Object(); // the mutation hasn't returned yet
+    private static final Object FAILED = new Object(); // the mutation has thrown, so the latest value holds
+
+    private static class Version
+    {
+        final String key;
+        final long until; // the version superseding the value
+        volatile Object value; // a String, or null if the key didn't exist
+        volatile Version next;
+
+        Version(String key, long until, Version next)
+        {
+            this.key = key;
+            this.until = until;
+            this.value = PENDING;
+            this.next = next;
+        }
+    }
+
+    private static class Slot
+    {
+        final Thread owner = Thread.currentThread();
+        volatile long pinned = IDLE;
+        int depth;
+        long writing; // the version being applied by the thread; 0 if none
+    }
+
+    private final ConcurrentHashMap<String, Version> chains = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Version> garbage = new ConcurrentLinkedQueue<>(); // roughly in version order
+    private final Set<Slot> slots = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<Slot> slot = ThreadLocal.withInitial(() ->
+                                           {
+                                               Slot s = new Slot();
+                                               slots.add(s);
+                                               return s;
+                                           });
+    private final AtomicLong last = new AtomicLong(); // the last version handed to a writer
+    private volatile long current; // guarded by this when written
+
+    /**
+     * Apply the mutations of a write request as the next version, visible to
+     * the reads pinning a version once they and the earlier versions have all
+     * been applied.
+     *
+     * @param mutations the mutations
+     * @return the result of the mutations.
+     */
+    <T> T write(Supplier<T> mutations)
+    {
+        final Slot s = slot.get();
+        final long version = last.incrementAndGet();
+        s.writing = version;
+        try
+        {
+            return mutations.get();
+        }
+        finally
+        {
+            s.writing = 0;
+            publish(version);
+            collect();
+        }
+    }
+
+    /**
+     * Make a version current once the version before it is.
+     */
+    private synchronized void publish(long version)
+    {
+        boolean interrupted = false;
+        while (current != version - 1)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        current = version;
+        notifyAll();
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if the current thread is applying a write request.
+     */
+    boolean isWriting()
+    {
+        return slot.get().writing != 0;
+    }
+
+    /**
+     * Apply a mutation of the write request being applied by the current
+     * thread, keeping the value it supersedes.
+     *
+     * @param key the key
+     * @param mutation the mutation, returning the value before it; null if the
+     *        key didn't exist
+     * @return the result of the mutation.
+     */
+    String supersede(String key, Supplier<String> mutation)
+    {
+        final long writing = slot.get().writing;
+        final Version v = chains.compute(key, (String k, Version head) -> new Version(k, writing, head));
+        garbage.add(v);
+        boolean applied = false;
+        try
+        {
+            final String prev = mutation.get();
+            v.value = prev;
+            applied = true;
+            return prev;
+        }
+        finally
+        {
+            if (!applied)
+            {
+                v.value = FAILED;
+            }
+        }
+    }
+
+    /**
+     * Pin the current version for the reads of the current thread, until unpin
+     * is called as many times as pin.
+     *
+     * @return the pinned version.
+     */
+    long pin()
+    {
+        Slot s = slot.get();
+        if (s.depth++ > 0)
+        {
+            return s.pinned;
+        }
+
+        // recheck, as a writer might have collected the values superseded
+        // by the next version before seeing the pinned one
+        for (long v = current;; v = current)
+        {
+            s.pinned = v;
+            if (current == v)
+            {
+                return v;
+            }
+        }
+    }
+
+    /**
+     * Unpin the version pinned by the current thread.
+     */
+    void unpin()
+    {
+        Slot s = slot.get();
+        if (--s.depth == 0)
+        {
+            s.pinned = IDLE;
+        }
+    }
+
+    /**
+     * @param key the key
+     * @param latest the latest value of the key, read before calling this
+     * @param version the pinned version
+     * @return the value of the key at the version.
+     */
+    String read(String key, String latest, long version)
+    {
+        String val = latest;
+        for (Version v = chains.get(key); v != null && v.until > version; v = v.next)
+        {
+            Object value = v.value;
+            while (value == PENDING)
+            {
+                Thread.onSpinWait();
+                value = v.value;
+            }
+            if (value != FAILED)
+            {
+                val = (String) value;
+            }
+        }
+        return val;
+    }
+
+    /**
+     * Visit the keys with superseded values, which include all the keys removed
+     * since any pinned version.
+     *
+     * @param action the action applied to every key
+     */
+    void forEachKey(Consumer<String> action)
+    {
+        chains.keySet().forEach(action);
+    }
+
+    /**
+     * Drop the superseded values no pinned version can read anymore.
+     */
+    private void collect()
+    {
+        if (garbage.isEmpty())
+        {
+            return;
+        }
+
+        long horizon = current;
+        for (Iterator<Slot> i = slots.iterator(); i.hasNext();)
+        {
+            Slot s = i.next();
+            long pinned = s.pinned;
+            if (pinned == IDLE && !s.owner.isAlive())
+            {
+                i.remove();
+            }
+            horizon = Math.min(horizon, pinned);
+        }
+
+        // the writers collecting concurrently each take the values they remove
+        for (Version v = garbage.peek(); v != null && v.until <= horizon; v = garbage.peek())
+        {
+            if (garbage.remove(v))
+            {
+                prune(v.key, horizon);
+            }
+        }
+    }
+
+    private void prune(String key, long horizon)
+    {
+        Version head = chains.get(key);
+        if (head == null)
+        {
+            return;
+        }
+        if (head.until <= horizon)
+        {
+            chains.remove(key, head);
+            return;
+        }
+        for (Version v = head; v.next != null; v = v.next)
+        {
+            if (v.next.until <= horizon)
+            {
+                v.next = null;
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Versions [current=" + current + ", superseded=" + garbage.size() + ", readers=" + slots.size() + "]";
+    }
+}
@@ -0,0 +1,531 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import common.*;
+import protocol.*;
+
+/**
+ * The append-only log of committed requests.
+ *
+ * The log is a sequence of numbered segment files, path.0, path.1, ..., and
+ * every record is [payload length][CRC32 of payload][payload], where the
+ * payload is [mutation count]([op][key length][key][value length][value])*
+ * with keys and values in UTF-8. Values are logged as stored, and the value of
+ * an expiration is its time in decimal. Appends only write to the file; durability is
+ * reached through sync, which lets one caller fsync on behalf of all the
+ * records appended so far while the others wait for it.
+ */
+class WriteAheadLog implements Closeable
+{
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte EXPIRE = 3;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+    private final String path;
+    private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    private long segment; // the segment being appended
+    private long base; // log position where the current segment starts
+    private long written; // end of the last appended record
+    private long synced; // end of the last durable record
+    private boolean syncing;
+    private volatile IOException failure; // the first failure to log, after which nothing is logged
+
+    /**
+     * Open the log for appending. Records are always appended to a new segment
+     * so that a torn tail left by a crash stays at the end of its own segment.
+     *
+     * @param path the log path prefix of all the segments
+     * @throws IOException if the log cannot be opened.
+     */
+    WriteAheadLog(String path) throws IOException
+    {
+        this.path = path;
+        List<Long> segments = segments();
+        this.segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+        this.channel = open(segment);
+    }
+
+    private Path file(long segment)
+    {
+        return Paths.get(path + "." + segment);
+    }
+
+    private FileChannel open(long segment) throws IOException
+    {
+        return FileChannel.open(file(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * @return the numbers of all the existing segments in ascending order.
+     * @throws IOException if the log directory cannot be listed.
+     */
+    private List<Long> segments() throws IOException
+    {
+        Path prefix = Paths.get(path).toAbsolutePath();
+        String name = prefix.getFileName() + ".";
+        ArrayList<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(prefix.getParent(), name + "*"))
+        {
+            for (Path p : dir)
+            {
+                try
+                {
+                    segments.add(Long.parseLong(p.getFileName().toString().substring(name.length())));
+                }
+                catch (NumberFormatException e)
+                {
+                    // not a segment
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Encode the mutations of a request.
+     */
+    private static class Encoder implements RequestVisitor<Boolean, NoThrow>
+    {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int count;
+
+        private void write(byte op, String key, String val)
+        {
+            try
+            {
+                byte[] k = key.getBytes(StandardCharsets.UTF_8);
+                byte[] v = val == null ? new byte[0] : StoredValue.bytes(val);
+                out.writeByte(op);
+                out.writeInt(k.length);
+                out.write(k);
+                out.writeInt(v.length);
+                out.write(v);
+                count++;
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e); // not thrown by in-memory streams
+            }
+        }
+
+        /**
+         * @return the payload; null if there is no mutation.
+         */
+        byte[] payload()
+        {
+            if (count == 0)
+            {
+                return null;
+            }
+
+            byte[] body = bytes.toByteArray();
+            return ByteBuffer.allocate(Integer.BYTES + body.length).putInt(count).put(body).array();
+        }
+
+        @Override
+        public Boolean visit(GetRequest r)
+        {
+            return false;
+        }
+
+        @Override
+        public Boolean visit(DeleteRequest r)
+        {
+            write(DELETE, r.key, null);
+            return true;
+        }
+
+        @Override
+        public Boolean visit(PutRequest r)
+        {
+            write(PUT, r.key, StoredValue.encode(r.val, r.compressed, r.deadline));
+            return true;
+        }
+
+        @Override
+        public Boolean visit(PrintRequest r)
+        {
+            return false;
+        }
+
+        @Override
+        public Boolean visit(OpenRequest r)
+        {
+            return false;
+        }
+
+        @Override
+        public Boolean visit(CommitRequest r)
+        {
+            return false;
+        }
+
+        @Override
+        public Boolean visit(AbortRequest r)
+        {
+            return false;
+        }
+
+        @Override
+        public Boolean visit(ScanRequest r)
+        {
+            return false;
+        }
+
+        @Override
+        public Boolean visit(ExpireRequest r)
+        {
+            for (String key : r.keys)
+            {
+                write(EXPIRE, key, String.valueOf(r.time));
+            }
+            return true;
+        }
+
+        @Override
+        public Boolean visit(MultiGetRequest r)
+        {
+            return false;
+        }
+
+        @Override
+        public Boolean visit(EvictRequest r)
+        {
+            for (String key : r.keys)
+            {
+                write(DELETE, key, null);
+            }
+            return true;
+        }
+
+        @Override
+        public Boolean visit(MultiPutRequest r)
+        {
+            for (PutRequest put : r.puts)
+            {
+                visit(put);
+            }
+            return true;
+        }
+
+        @Override
+        public Boolean visit(MultiDeleteRequest r)
+        {
+            for (String key : r.keys)
+            {
+                write(DELETE, key, null);
+            }
+            return true;
+        }
+
+        @Override
+        public Boolean visit(BatchRequest r)
+        {
+            for (Request request : r.requests)
+            {
+                request.accept(this);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Append the mutations of a committed request without waiting for them to be
+     * durable.
+     *
+     * @param request the committed request
+     * @return the log position to sync up to; 0 if the request doesn't mutate the
+     *         store.
+     * @throws IOException if the record cannot be written.
+     */
+    private long append(Request request) throws IOException
+    {
+        Encoder e = new Encoder();
+        request.accept(e);
+        byte[] payload = e.payload();
+        if (payload == null)
+        {
+            return 0;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+
+        synchronized (this)
+        {
+            while (record.hasRemaining())
+            {
+                channel.write(record);
+            }
+            written = base + channel.position();
+            return written;
+        }
+    }
+
+    /**
+     * Wait until the log is durable up to a position. Only one caller forces the
+     * file at a time and every force covers all the records appended before it
+     * started, so concurrent commits share a single fsync.
+     *
+     * @param position the log position returned by append
+     * @throws IOException if the log cannot be forced.
+     */
+    private void sync(long position) throws IOException
+    {
+        final long target;
+        final FileChannel c;
+        synchronized (this)
+        {
+            while (synced < position && syncing)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the log to be synced.");
+                }
+            }
+
+            if (synced >= position)
+            {
+                return;
+            }
+
+            syncing = true;
+            target = written;
+            c = channel;
+        }
+
+        boolean forced = false;
+        try
+        {
+            c.force(false);
+            forced = true;
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                syncing = false;
+                if (forced)
+                {
+                    synced = Math.max(synced, target);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Log a committed request, wait for it to be durable and then apply it. A
+     * request that fails to be logged isn't applied, and neither is any request
+     * after it, since the log may have been left with a partial record.
+     *
+     * @param <T> the result type
+     * @param request the committed request
+     * @param apply the action applying the request to the store
+     * @return the result of apply.
+     * @throws IOException if the request cannot be logged.
+     */
+    <T> T commit(Request request, Supplier<T> apply) throws IOException
+    {
+        gate.readLock().lock();
+        try
+        {
+            if (failure != null)
+            {
+                throw new IOException("The write-ahead log has failed earlier; restart the server.", failure);
+            }
+            try
+            {
+                long position = append(request);
+                if (position > 0)
+                {
+                    sync(position);
+                }
+            }
+            catch (IOException e)
+            {
+                failure = e;
+                Logger.error("Failed to log request " + request + ".", e);
+                throw e;
+            }
+            return apply.get();
+        }
+        finally
+        {
+            gate.readLock().unlock();
+        }
+    }
+
+    /**
+     * Switch to a new segment once every request logged in the previous segments
+     * has been applied.
+     *
+     * @return the new segment. Replaying from it on top of a store containing all
+     *         the requests applied so far recovers all later requests.
+     * @throws IOException if the new segment cannot be created.
+     */
+    long rotate() throws IOException
+    {
+        gate.writeLock().lock();
+        try
+        {
+            synchronized (this)
+            {
+                while (syncing)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the log to be synced.");
+                    }
+                }
+
+                FileChannel next = open(segment + 1);
+                channel.force(false);
+                base += channel.position();
+                channel.close();
+                synced = written;
+                channel = next;
+                return ++segment;
+            }
+        }
+        finally
+        {
+            gate.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Delete all the segments before a segment.
+     *
+     * @param segment the first segment to keep
+     * @throws IOException if the log directory cannot be listed.
+     */
+    void discard(long segment) throws IOException
+    {
+        for (long s : segments())
+        {
+            if (s < segment)
+            {
+                Files.deleteIfExists(file(s));
+            }
+        }
+    }
+
+    /**
+     * Apply all the logged mutations from a segment on to a store. A segment is
+     * replayed up to its first torn or corrupted record.
+     *
+     * @param store the store to replay the log into
+     * @param from the first segment to replay
+     * @return the number of replayed records.
+     * @throws IOException if the log cannot be read.
+     */
+    int replay(KVStore store, long from) throws IOException
+    {
+        int records = 0;
+        for (long s : segments())
+        {
+            if (s >= from && s != segment)
+            {
+                records += replay(store, file(s));
+            }
+        }
+        return records;
+    }
+
+    private static int replay(KVStore store, Path file) throws IOException
+    {
+        int records = 0;
+        long good = 0;
+        long size = Files.size(file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+        {
+            while (good < size)
+            {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || good + HEADER_SIZE + length > size)
+                {
+                    throw new EOFException();
+                }
+
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum)
+                {
+                    throw new EOFException();
+                }
+
+                apply(store, payload);
+                good += HEADER_SIZE + length;
+                records++;
+            }
+        }
+        catch (EOFException e)
+        {
+            Logger.warning("Ignored the torn or corrupted tail of " + file.toAbsolutePath() + " from " + good + ".");
+        }
+        return records;
+    }
+
+    private static void apply(KVStore store, byte[] payload)
+    {
+        ByteBuffer b = ByteBuffer.wrap(payload);
+        for (int n = b.getInt(); n > 0; n--)
+        {
+            byte op = b.get();
+            byte[] k = new byte[b.getInt()];
+            b.get(k);
+            byte[] v = new byte[b.getInt()];
+            b.get(v);
+
+            String key = new String(k, StandardCharsets.UTF_8);
+            if (op == PUT)
+            {
+                store.put(key, StoredValue.of(v));
+            }
+            else if (op == EXPIRE)
+            {
+                store.expire(key, Long.parseLong(new String(v, StandardCharsets.UTF_8)));
+            }
+            else
+            {
+                store.delete(key);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        channel.force(true);
+        channel.close();
+    }
+}
@@ -8,7 +8,7 @@ public class TransactionId implements Serializable, Comparable<TransactionId>
     private static final long serialVersionUID = 1L;
     private long id;
     
-    TransactionId(long id)
+    public TransactionId(long id)
     {
         this.id = id;
     }